@@ -0,0 +1,87 @@
+package webserver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+
+/*
+    Class measuring what the access log costs a request thread, from four threads logging at once: the record
+    put into its ring, or only the check of a disabled log. The writer formats and writes the records to a
+    temporary file in the background, on a machine with fewer cores than threads its time is part of the
+    result; the records written and dropped are printed at the end of a trial (a ring filled faster than the
+    writer drains it drops records, which is cheaper than logging them)
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class AccessLogBenchmark {
+
+    @Param({"disabled", AccessLog.COMMON, AccessLog.JSON})
+    public String format;
+
+    private Path directory;
+    private AccessLog accessLog;
+    private InetAddress client;
+    private Map<String, String> requestData;
+
+
+    @Setup(Level.Trial)
+    public void start() throws IOException {
+        boolean disabled = this.format.equals("disabled");
+
+        this.directory = Files.createTempDirectory("webserver-bench");
+        this.accessLog = new AccessLog(disabled ? "" : this.directory.resolve("access.log").toString(),
+                disabled ? AccessLog.COMMON : this.format, 64 * 1024, 100, 0, 1);
+        this.accessLog.start();
+
+        this.client = InetAddress.getLoopbackAddress();
+        this.requestData = new HashMap<>();
+        this.requestData.put("Method", "GET");
+        this.requestData.put("Resource", "/index.html");
+        this.requestData.put("Protocol", "HTTP/1.1");
+        this.requestData.put("User-Agent", "Mozilla/5.0 (X11; Linux x86_64; rv:109.0) Gecko/20100101 Firefox/115.0");
+    }
+
+
+    @TearDown(Level.Trial)
+    public void stop() throws IOException {
+        this.accessLog.close();
+        System.out.println("Access log: " + this.accessLog.getWritten() + " written, "
+                + this.accessLog.getDropped() + " dropped");
+
+        Files.deleteIfExists(this.directory.resolve("access.log"));
+        Files.delete(this.directory);
+    }
+
+
+    @Benchmark
+    public void log() {
+        if (this.accessLog.isEnabled()) {
+            this.accessLog.log(this.client, this.requestData, ErrorCodes.OK, 4096, 250_000);
+        }
+    }
+}
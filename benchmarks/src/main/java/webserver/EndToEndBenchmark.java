@@ -0,0 +1,200 @@
+package webserver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+
+/*
+    Class benchmarking whole requests over loopback: a server is started for every combination of thread
+    model and number of workers, each benchmark thread keeps one persistent connection to it; the sample
+    time mode reports the p50/p99/p999 latencies. It has to be run from the project directory, where the
+    error pages are
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class EndToEndBenchmark {
+
+    private static final String HOST = "127.0.0.1";
+    private static final int PORT = 18089;
+    private static final int PAGE_SIZE = 4 * 1024;
+
+    private static final byte[] REQUEST = ("GET /index.html HTTP/1.1\r\n"
+            + "Host: localhost\r\n"
+            + "Connection: keep-alive\r\n"
+            + "\r\n").getBytes(StandardCharsets.US_ASCII);
+
+
+    /*
+        Class holding the server shared by all the benchmark threads
+     */
+    @State(Scope.Benchmark)
+    public static class ServerState {
+
+        // the number of benchmark threads (persistent connections) must not exceed the workers in blocking mode
+        @Param({"4", "16"})
+        public int workers;
+
+        @Param({ThreadModels.BLOCKING, ThreadModels.NIO})
+        public String mode;
+
+        private Path root;
+        private Server server;
+        private Thread serverThread;
+
+
+        @Setup(Level.Trial)
+        public void start() throws IOException, InterruptedException {
+            byte[] page = new byte[EndToEndBenchmark.PAGE_SIZE];
+            Arrays.fill(page, (byte) 'a');
+
+            this.root = Files.createTempDirectory("webserver-bench");
+            Files.write(this.root.resolve("index.html"), page);
+
+            ServerContext context = new ServerContext(this.root.toString(), "www/html/error_pages", 60000,
+                    Integer.MAX_VALUE, new StaticCache(64 * 1024 * 1024, 1024 * 1024), new MappedFiles(0, 0),
+                    new Durability(Durability.NONE, 0),
+                    new AdmissionControl(10000, 256, this.workers, 256, true, 1),
+                    new ClientLimits(8 * 1024, 100, 16 * 1024, Long.MAX_VALUE, 10000, 30000, 30000, 0),
+                    new AccessLog("", AccessLog.COMMON, 0, 0, 0, 0), new Lifecycle(0, 30000),
+                    true, 1024, 100, true);
+
+            this.server = new Server(EndToEndBenchmark.PORT, this.workers, this.mode,
+                    Runtime.getRuntime().availableProcessors(), context, new SocketSettings(1, 1024, true, 0, 0, false),
+                    null);
+            this.serverThread = new Thread(this.server, "server");
+            this.serverThread.start();
+
+            // wait until the server accepts connections
+            while (true) {
+                try (Socket probe = new Socket(EndToEndBenchmark.HOST, EndToEndBenchmark.PORT)) {
+                    break;
+                } catch (IOException e) {
+                    Thread.sleep(10);
+                }
+            }
+        }
+
+
+        @TearDown(Level.Trial)
+        public void stop() throws IOException, InterruptedException {
+            this.server.shutdown();
+            this.serverThread.join(TimeUnit.SECONDS.toMillis(30));
+
+            try (Stream<Path> paths = Files.walk(this.root)) {
+                paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+    }
+
+
+    /*
+        Class holding the persistent connection of one benchmark thread
+     */
+    @State(Scope.Thread)
+    public static class ClientState {
+
+        private Socket socket;
+        private OutputStream output;
+        private InputStream input;
+        private byte[] body;
+
+
+        @Setup(Level.Trial)
+        public void connect(ServerState server) throws IOException {
+            this.socket = new Socket(EndToEndBenchmark.HOST, EndToEndBenchmark.PORT);
+            this.socket.setTcpNoDelay(true);
+            this.output = this.socket.getOutputStream();
+            this.input = new BufferedInputStream(this.socket.getInputStream());
+            this.body = new byte[EndToEndBenchmark.PAGE_SIZE];
+        }
+
+
+        @TearDown(Level.Trial)
+        public void disconnect() throws IOException {
+            this.socket.close();
+        }
+
+
+        // Method sending one request and reading its whole response; returns the number of body bytes
+        int exchange() throws IOException {
+            this.output.write(EndToEndBenchmark.REQUEST);
+            this.output.flush();
+
+            int contentLength = this.readHeaders();
+            int read = 0;
+
+            while (read < contentLength) {
+                int count = this.input.read(this.body, 0, Math.min(this.body.length, contentLength - read));
+                if (count < 0) {
+                    throw new EOFException("Connection closed in the middle of the response body");
+                }
+                read += count;
+            }
+            return read;
+        }
+
+
+        // Method reading the header lines up to the empty line, returning the Content-Length value
+        private int readHeaders() throws IOException {
+            StringBuilder line = new StringBuilder();
+            int contentLength = 0;
+
+            while (true) {
+                int current = this.input.read();
+                if (current < 0) {
+                    throw new EOFException("Connection closed in the middle of the response headers");
+                }
+
+                if (current == '\n') {
+                    if (line.length() == 0) {
+                        return contentLength;
+                    }
+                    String header = line.toString();
+                    if (header.regionMatches(true, 0, "Content-Length:", 0, 15)) {
+                        contentLength = Integer.parseInt(header.substring(15).trim());
+                    }
+                    line.setLength(0);
+                } else if (current != '\r') {
+                    line.append((char) current);
+                }
+            }
+        }
+    }
+
+
+    @Benchmark
+    public int get(ClientState client) throws IOException {
+        return client.exchange();
+    }
+}
@@ -0,0 +1,208 @@
+package webserver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+
+/*
+    Class benchmarking the ways a large static file is sent, over loopback: from the static cache (off-heap
+    copy), from its memory mapping, or opened and sent with transferTo (sendfile) for every request. The file
+    is binary, so it is never compressed. It has to be run from the project directory, where the error pages are
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class FileServingBenchmark {
+
+    private static final String HOST = "127.0.0.1";
+    private static final int PORT = 18090;
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private static final String CACHE = "cache";
+    private static final String MMAP = "mmap";
+    private static final String TRANSFER_TO = "transferTo";
+
+    private static final byte[] REQUEST = ("GET /asset.bin HTTP/1.1\r\n"
+            + "Host: localhost\r\n"
+            + "Connection: keep-alive\r\n"
+            + "\r\n").getBytes(StandardCharsets.US_ASCII);
+
+
+    /*
+        Class holding the server shared by all the benchmark threads, configured for one way of sending the file
+     */
+    @State(Scope.Benchmark)
+    public static class ServerState {
+
+        @Param({FileServingBenchmark.CACHE, FileServingBenchmark.MMAP, FileServingBenchmark.TRANSFER_TO})
+        public String serving;
+
+        @Param({"1048576", "8388608"})
+        public int fileSize;
+
+        @Param({ThreadModels.BLOCKING, ThreadModels.NIO})
+        public String mode;
+
+        private Path root;
+        private Server server;
+        private Thread serverThread;
+
+
+        @Setup(Level.Trial)
+        public void start() throws IOException, InterruptedException {
+            byte[] content = new byte[this.fileSize];
+            ThreadLocalRandom.current().nextBytes(content);
+
+            this.root = Files.createTempDirectory("webserver-bench");
+            Files.write(this.root.resolve("asset.bin"), content);
+
+            // only the selected store is big enough for the file
+            long cacheBytes = this.serving.equals(FileServingBenchmark.CACHE) ? 2L * this.fileSize : 0;
+            long mappedBytes = this.serving.equals(FileServingBenchmark.MMAP) ? 2L * this.fileSize : 0;
+
+            ServerContext context = new ServerContext(this.root.toString(), "www/html/error_pages", 60000,
+                    Integer.MAX_VALUE, new StaticCache(cacheBytes, cacheBytes), new MappedFiles(mappedBytes, 0),
+                    new Durability(Durability.NONE, 0), new AdmissionControl(10000, 256, 4, 256, false, 1),
+                    new ClientLimits(8 * 1024, 100, 16 * 1024, Long.MAX_VALUE, 10000, 30000, 30000, 0),
+                    new AccessLog("", AccessLog.COMMON, 0, 0, 0, 0), new Lifecycle(0, 30000),
+                    true, -1, 100, true);
+
+            this.server = new Server(FileServingBenchmark.PORT, 4, this.mode,
+                    Runtime.getRuntime().availableProcessors(), context, new SocketSettings(1, 1024, true, 0, 0, false),
+                    null);
+            this.serverThread = new Thread(this.server, "server");
+            this.serverThread.start();
+
+            // wait until the server accepts connections
+            while (true) {
+                try (Socket probe = new Socket(FileServingBenchmark.HOST, FileServingBenchmark.PORT)) {
+                    break;
+                } catch (IOException e) {
+                    Thread.sleep(10);
+                }
+            }
+        }
+
+
+        @TearDown(Level.Trial)
+        public void stop() throws IOException, InterruptedException {
+            this.server.shutdown();
+            this.serverThread.join(TimeUnit.SECONDS.toMillis(30));
+
+            try (Stream<Path> paths = Files.walk(this.root)) {
+                paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+    }
+
+
+    /*
+        Class holding the persistent connection of one benchmark thread
+     */
+    @State(Scope.Thread)
+    public static class ClientState {
+
+        private Socket socket;
+        private OutputStream output;
+        private InputStream input;
+        private byte[] body;
+
+
+        @Setup(Level.Trial)
+        public void connect(ServerState server) throws IOException {
+            this.socket = new Socket(FileServingBenchmark.HOST, FileServingBenchmark.PORT);
+            this.socket.setTcpNoDelay(true);
+            this.output = this.socket.getOutputStream();
+            this.input = new BufferedInputStream(this.socket.getInputStream(), FileServingBenchmark.READ_BUFFER_SIZE);
+            this.body = new byte[FileServingBenchmark.READ_BUFFER_SIZE];
+        }
+
+
+        @TearDown(Level.Trial)
+        public void disconnect() throws IOException {
+            this.socket.close();
+        }
+
+
+        // Method sending one request and reading its whole response; returns the number of body bytes
+        long exchange() throws IOException {
+            this.output.write(FileServingBenchmark.REQUEST);
+            this.output.flush();
+
+            long contentLength = this.readHeaders();
+            long read = 0;
+
+            while (read < contentLength) {
+                int count = this.input.read(this.body, 0, (int) Math.min(this.body.length, contentLength - read));
+                if (count < 0) {
+                    throw new EOFException("Connection closed in the middle of the response body");
+                }
+                read += count;
+            }
+            return read;
+        }
+
+
+        // Method reading the header lines up to the empty line, returning the Content-Length value
+        private long readHeaders() throws IOException {
+            StringBuilder line = new StringBuilder();
+            long contentLength = 0;
+
+            while (true) {
+                int current = this.input.read();
+                if (current < 0) {
+                    throw new EOFException("Connection closed in the middle of the response headers");
+                }
+
+                if (current == '\n') {
+                    if (line.length() == 0) {
+                        return contentLength;
+                    }
+                    String header = line.toString();
+                    if (header.regionMatches(true, 0, "Content-Length:", 0, 15)) {
+                        contentLength = Long.parseLong(header.substring(15).trim());
+                    }
+                    line.setLength(0);
+                } else if (current != '\r') {
+                    line.append((char) current);
+                }
+            }
+        }
+    }
+
+
+    @Benchmark
+    public long get(ClientState client) throws IOException {
+        return client.exchange();
+    }
+}
@@ -0,0 +1,137 @@
+package webserver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+
+/*
+    Class benchmarking the request parser on a realistic request mix and the response header builder
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HTTPParserBenchmark {
+
+    // a minimal GET, a browser GET with many skipped headers and a small PATCH with a body
+    private static final String SIMPLE_GET = "GET /index.html HTTP/1.1\r\n"
+            + "Host: localhost:8080\r\n"
+            + "Connection: keep-alive\r\n"
+            + "\r\n";
+    private static final String BROWSER_GET = "GET /index.html HTTP/1.1\r\n"
+            + "Host: localhost:8080\r\n"
+            + "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:109.0) Gecko/20100101 Firefox/115.0\r\n"
+            + "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,image/avif,*/*;q=0.8\r\n"
+            + "Accept-Language: en-US,en;q=0.5\r\n"
+            + "Accept-Encoding: gzip, deflate, br\r\n"
+            + "Connection: keep-alive\r\n"
+            + "Upgrade-Insecure-Requests: 1\r\n"
+            + "Cache-Control: max-age=0\r\n"
+            + "\r\n";
+    private static final String PATCH = "PATCH /log.txt HTTP/1.1\r\n"
+            + "Host: localhost:8080\r\n"
+            + "Content-Type: text/plain\r\n"
+            + "Content-Length: 64\r\n"
+            + "\r\n"
+            + "0123456789abcdef0123456789abcdef0123456789abcdef0123456789abcdef";
+
+    private Map<String, String> responseData;
+    private ResponseHeaders headers;
+
+
+    /*
+        Class holding the parser and the encoded request mix it is fed with
+     */
+    @State(Scope.Thread)
+    public static class RequestState {
+
+        @Param({"simple", "browser", "patch", "pipelined"})
+        public String request;
+
+        private ByteBuffer buffer;
+        private HTTPParser parser;
+
+
+        // Method encoding the selected request once, the benchmark only rewinds the buffer
+        @Setup
+        public void setup() {
+            String text;
+
+            switch (this.request) {
+                case "simple":
+                    text = HTTPParserBenchmark.SIMPLE_GET;
+                    break;
+                case "browser":
+                    text = HTTPParserBenchmark.BROWSER_GET;
+                    break;
+                case "patch":
+                    text = HTTPParserBenchmark.PATCH;
+                    break;
+                default:
+                    text = HTTPParserBenchmark.SIMPLE_GET + HTTPParserBenchmark.BROWSER_GET + HTTPParserBenchmark.PATCH;
+                    break;
+            }
+
+            this.buffer = ByteBuffer.wrap(text.getBytes(StandardCharsets.ISO_8859_1));
+            this.parser = new HTTPParser(new ClientLimits(8 * 1024, 100, 16 * 1024, Long.MAX_VALUE, 10000, 30000,
+                    30000, 0), false);
+        }
+    }
+
+
+    // Method preparing the data of a typical 200 response
+    @Setup
+    public void setup() {
+        this.responseData = new HashMap<>();
+        this.responseData.put("Protocol", "HTTP/1.1");
+        this.responseData.put("Code", ErrorCodes.OK);
+        this.responseData.put("Connection", "keep-alive");
+        this.responseData.put("Content-Length", "1024");
+        this.responseData.put("Content-Type", "text/html");
+        this.responseData.put("ETag", "\"400-18b3c2f1a20\"");
+        this.headers = new ResponseHeaders(new DateHeader());
+    }
+
+
+    // Method parsing every request found in the buffer, the way a connection does after one read
+    @Benchmark
+    public void parse(RequestState state, Blackhole blackhole) {
+        state.buffer.clear();
+
+        while (state.buffer.hasRemaining()) {
+            if (!state.parser.parse(state.buffer)) {
+                break;
+            }
+            blackhole.consume(state.parser.getRequest());
+            blackhole.consume(state.parser.getBody(state.buffer, null));
+            state.parser.reset();
+        }
+    }
+
+
+    // Method encoding the header block of a typical 200 response into the reused buffer, as a connection does
+    @Benchmark
+    public ByteBuffer createResponse() {
+        this.headers.clear();
+        this.headers.append(this.responseData);
+        return this.headers.flip();
+    }
+}
@@ -0,0 +1,212 @@
+package webserver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+
+/*
+    Class benchmarking the Helper operations (one request, no socket) against a temporary document root, the
+    lookups in the index of the root compared with the stat calls made without it; it has to be run from the
+    project directory, where the error pages are
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HelperBenchmark {
+
+    private static final int PAGE_SIZE = 16 * 1024;
+
+    private Path root;
+    private byte[] page;
+    private byte[] patch;
+
+    private ServerContext cachedContext;
+    private ServerContext uncachedContext;
+    private ServerContext unindexedContext;
+
+
+    // Method creating the document root with the page read and rewritten by the benchmarks
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        this.root = Files.createTempDirectory("webserver-bench");
+        this.page = new byte[HelperBenchmark.PAGE_SIZE];
+        Arrays.fill(this.page, (byte) 'a');
+        this.patch = "0123456789abcdef\n".getBytes(StandardCharsets.US_ASCII);
+
+        Files.write(this.root.resolve("index.html"), this.page);
+
+        this.cachedContext = new ServerContext(this.root.toString(), "www/html/error_pages", 5000, 100,
+                new StaticCache(64 * 1024 * 1024, 1024 * 1024), new MappedFiles(0, 0),
+                new Durability(Durability.NONE, 0), new AdmissionControl(10000, 256, 1, 256, false, 1),
+                new ClientLimits(8 * 1024, 100, 16 * 1024, Long.MAX_VALUE, 10000, 30000, 30000, 0),
+                new AccessLog("", AccessLog.COMMON, 0, 0, 0, 0), new Lifecycle(0, 30000),
+                false, 1024, 100, true);
+        this.uncachedContext = new ServerContext(this.root.toString(), "www/html/error_pages", 5000, 100,
+                new StaticCache(0, 0), new MappedFiles(0, 0), new Durability(Durability.NONE, 0),
+                new AdmissionControl(10000, 256, 1, 256, false, 1),
+                new ClientLimits(8 * 1024, 100, 16 * 1024, Long.MAX_VALUE, 10000, 30000, 30000, 0),
+                new AccessLog("", AccessLog.COMMON, 0, 0, 0, 0), new Lifecycle(0, 30000),
+                false, 1024, 100, true);
+        this.unindexedContext = new ServerContext(this.root.toString(), "www/html/error_pages", 5000, 100,
+                new StaticCache(64 * 1024 * 1024, 1024 * 1024), new MappedFiles(0, 0),
+                new Durability(Durability.NONE, 0), new AdmissionControl(10000, 256, 1, 256, false, 1),
+                new ClientLimits(8 * 1024, 100, 16 * 1024, Long.MAX_VALUE, 10000, 30000, 30000, 0),
+                new AccessLog("", AccessLog.COMMON, 0, 0, 0, 0), new Lifecycle(0, 30000),
+                false, 1024, 100, false);
+    }
+
+
+    // Method truncating the appended file, so every iteration patches a file of the same size
+    @Setup(Level.Iteration)
+    public void resetPatchedFile() throws IOException {
+        Files.write(this.root.resolve("log.txt"), this.page);
+
+        // the file is written behind the server's back, its index entry is read again as the watcher would
+        this.cachedContext.index.update("/log.txt");
+    }
+
+
+    /*
+        Class recreating the file removed by the delete benchmark before every invocation, kept apart so the
+        other benchmarks do not pay for a per-invocation setup
+     */
+    @State(Scope.Thread)
+    public static class DeletedFile {
+
+        static final String PATH = "/delete.html";
+
+
+        @Setup(Level.Invocation)
+        public void create(HelperBenchmark benchmark) throws IOException {
+            Files.write(benchmark.root.resolve(DeletedFile.PATH.substring(1)), benchmark.page);
+
+            // created behind the server's back as well, so the index is told about it as the watcher would
+            benchmark.cachedContext.index.update(DeletedFile.PATH);
+        }
+    }
+
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        try (Stream<Path> paths = Files.walk(this.root)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+
+    @Benchmark
+    public Map<String, String> getCached() throws IOException {
+        return this.apply("GET", "/index.html", null, this.cachedContext);
+    }
+
+
+    @Benchmark
+    public Map<String, String> getUncached() throws IOException {
+        return this.apply("GET", "/index.html", null, this.uncachedContext);
+    }
+
+
+    @Benchmark
+    public Map<String, String> getUnindexed() throws IOException {
+        return this.apply("GET", "/index.html", null, this.unindexedContext);
+    }
+
+
+    @Benchmark
+    public Map<String, String> head() throws IOException {
+        return this.apply("HEAD", "/index.html", null, this.cachedContext);
+    }
+
+
+    @Benchmark
+    public Map<String, String> put() throws IOException {
+        return this.apply("PUT", "/put.html", this.page, this.cachedContext);
+    }
+
+
+    @Benchmark
+    public Map<String, String> post() throws IOException {
+        return this.apply("POST", "/post.html", this.page, this.cachedContext);
+    }
+
+
+    @Benchmark
+    public Map<String, String> delete(DeletedFile file) throws IOException {
+        return this.apply("DELETE", DeletedFile.PATH, null, this.cachedContext);
+    }
+
+
+    @Benchmark
+    public Map<String, String> options() throws IOException {
+        return this.apply("OPTIONS", "/index.html", null, this.cachedContext);
+    }
+
+
+    @Benchmark
+    public Map<String, String> patch() throws IOException {
+        return this.apply("PATCH", "/log.txt", this.patch, this.cachedContext);
+    }
+
+
+    @Benchmark
+    public Map<String, String> notFound() throws IOException {
+        return this.apply("GET", "/missing.html", null, this.cachedContext);
+    }
+
+
+    @Benchmark
+    public Map<String, String> notFoundUnindexed() throws IOException {
+        return this.apply("GET", "/missing.html", null, this.unindexedContext);
+    }
+
+
+    // Method running one request through a new Helper, as a connection does, and releasing its body
+    private Map<String, String> apply(String method, String resource, byte[] body, ServerContext context)
+            throws IOException {
+        Map<String, String> requestData = new HashMap<>();
+        Map<String, String> responseData = new HashMap<>();
+
+        requestData.put("Method", method);
+        requestData.put("Resource", resource);
+        requestData.put("Protocol", "HTTP/1.1");
+
+        Helper helper = new Helper(requestData, body != null ? new RequestBody(body) : null, responseData, context);
+        helper.applyAction();
+
+        FileChannel responseFile = helper.getResponseFile();
+        if (responseFile != null) {
+            responseFile.close();
+        }
+        GzipEncoder responseEncoder = helper.getResponseEncoder();
+        if (responseEncoder != null) {
+            responseEncoder.close();
+        }
+        return responseData;
+    }
+}
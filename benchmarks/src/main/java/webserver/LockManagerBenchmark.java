@@ -0,0 +1,171 @@
+package webserver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/*
+    Class stress-testing the server-wide lock manager: readers and writers lock the same resources at once, one
+    hot resource or spread over many, and the read throughput with writers is compared with the one of readers
+    alone. Every resource is a pair of counters a writer increments one after the other under the exclusive
+    lock, pausing in between so a writer let in next to another one (the PATCHes interleaving) or next to a
+    reader is caught: a reader or a writer seeing the counters differ counts a torn read or an interleaved
+    write, and two writers at once lose increments. The end of a trial fails if a read was torn, writes were
+    interleaved or lost, or a lock was left in the manager
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Group)
+public class LockManagerBenchmark {
+
+    // work done by a writer between the increments of the two counters, holding the exclusive lock
+    private static final long WRITE_TOKENS = 64;
+
+    @Param({"1", "64"})
+    public int resources;
+
+    private LockManager locks;
+    private String[] paths;
+    private long[][] counters;
+    private LongAdder writes;
+    private LongAdder tornReads;
+    private LongAdder interleavedWrites;
+
+
+    @Setup(Level.Trial)
+    public void setup() {
+        this.locks = new LockManager();
+        this.paths = new String[this.resources];
+        this.counters = new long[this.resources][2];
+        this.writes = new LongAdder();
+        this.tornReads = new LongAdder();
+        this.interleavedWrites = new LongAdder();
+
+        for (int i = 0; i < this.resources; i++) {
+            this.paths[i] = "www/html/resource" + i + ".html";
+        }
+    }
+
+
+    // Method checking the state left by the trial: every write seen whole, none lost, every lock released
+    @TearDown(Level.Trial)
+    public void check() {
+        long written = 0;
+
+        for (long[] counter : this.counters) {
+            if (counter[0] != counter[1]) {
+                throw new IllegalStateException("A write was interleaved with another one.");
+            }
+            written += counter[0];
+        }
+
+        if (this.interleavedWrites.sum() > 0) {
+            throw new IllegalStateException(this.interleavedWrites.sum() + " writes saw a half-done write.");
+        }
+        if (this.tornReads.sum() > 0) {
+            throw new IllegalStateException(this.tornReads.sum() + " reads saw a half-done write.");
+        }
+        if (written != this.writes.sum()) {
+            throw new IllegalStateException((this.writes.sum() - written) + " writes were lost.");
+        }
+        if (this.locks.size() != 0) {
+            throw new IllegalStateException(this.locks.size() + " locks are still held after the trial.");
+        }
+    }
+
+
+    @Benchmark
+    @Group("readWrite")
+    @GroupThreads(3)
+    public long read() {
+        return this.readResource();
+    }
+
+
+    @Benchmark
+    @Group("readWrite")
+    @GroupThreads(2)
+    public long write() {
+        return this.writeResource();
+    }
+
+
+    // writers alone, the exclusion of concurrent writes to the same resources
+    @Benchmark
+    @Group("writeOnly")
+    @GroupThreads(4)
+    public long writeAlone() {
+        return this.writeResource();
+    }
+
+
+    // the same readers without a writer, the throughput the readWrite readers are compared with
+    @Benchmark
+    @Group("readOnly")
+    @GroupThreads(4)
+    public long readAlone() {
+        return this.readResource();
+    }
+
+
+    private long writeResource() {
+        int resource = ThreadLocalRandom.current().nextInt(this.resources);
+        LockManager.ResourceLock lock = this.locks.lockWrite(this.paths[resource]);
+
+        try {
+            // the value is read before the pause and written after it: a writer let in meanwhile is overwritten
+            long[] counter = this.counters[resource];
+            long value = counter[0];
+            if (counter[1] != value) {
+                this.interleavedWrites.increment();
+            }
+            Blackhole.consumeCPU(LockManagerBenchmark.WRITE_TOKENS);
+            counter[0] = value + 1;
+            Blackhole.consumeCPU(LockManagerBenchmark.WRITE_TOKENS);
+            counter[1] = value + 1;
+            return value + 1;
+        } finally {
+            lock.unlock();
+            this.writes.increment();
+        }
+    }
+
+
+    private long readResource() {
+        int resource = ThreadLocalRandom.current().nextInt(this.resources);
+        LockManager.ResourceLock lock = this.locks.lockRead(this.paths[resource]);
+
+        try {
+            long[] counter = this.counters[resource];
+            long first = counter[0];
+            long second = counter[1];
+            if (first != second) {
+                this.tornReads.increment();
+            }
+            return second;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
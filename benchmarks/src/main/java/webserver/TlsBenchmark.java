@@ -0,0 +1,287 @@
+package webserver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+
+/*
+    Class comparing TLS with cleartext over loopback, with a self-signed certificate generated by keytool: a
+    request on a persistent connection (the cost of the records), and a new connection for every request (the
+    cost of the handshake), full or resumed from the client's session cache. The handshake counts of the
+    server are printed at the end of a trial. It has to be run from the project directory, where the error
+    pages are
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class TlsBenchmark {
+
+    private static final String HOST = "127.0.0.1";
+    private static final int PORT = 18089;
+    private static final int TLS_PORT = 18443;
+    private static final int PAGE_SIZE = 4 * 1024;
+    private static final String PASSWORD = "benchmark";
+
+    private static final String PLAIN = "plain";
+    private static final String TLS_FULL = "tls-full";
+    private static final String TLS_RESUMED = "tls-resumed";
+
+    private static final byte[] KEEP_ALIVE_REQUEST = ("GET /index.html HTTP/1.1\r\n"
+            + "Host: localhost\r\n"
+            + "Connection: keep-alive\r\n"
+            + "\r\n").getBytes(StandardCharsets.US_ASCII);
+
+    private static final byte[] CLOSE_REQUEST = ("GET /index.html HTTP/1.1\r\n"
+            + "Host: localhost\r\n"
+            + "Connection: close\r\n"
+            + "\r\n").getBytes(StandardCharsets.US_ASCII);
+
+
+    /*
+        Class holding the server, listening on both ports, and the client's TLS context trusting its certificate
+     */
+    @State(Scope.Benchmark)
+    public static class ServerState {
+
+        // the two TLS transports only differ on the new connections
+        @Param({TlsBenchmark.PLAIN, TlsBenchmark.TLS_FULL, TlsBenchmark.TLS_RESUMED})
+        public String transport;
+
+        private Path root;
+        private Server server;
+        private Thread serverThread;
+        private TlsTermination tls;
+        private SSLSocketFactory clientFactory;
+
+
+        @Setup(Level.Trial)
+        public void start() throws IOException, InterruptedException, GeneralSecurityException {
+            byte[] page = new byte[TlsBenchmark.PAGE_SIZE];
+            Arrays.fill(page, (byte) 'a');
+
+            this.root = Files.createTempDirectory("webserver-bench");
+            Files.write(this.root.resolve("index.html"), page);
+            Path keyStore = TlsBenchmark.generateKeyStore(this.root.resolve("server.p12"));
+
+            ServerContext context = new ServerContext(this.root.toString(), "www/html/error_pages", 60000,
+                    Integer.MAX_VALUE, new StaticCache(64 * 1024 * 1024, 1024 * 1024), new MappedFiles(0, 0),
+                    new Durability(Durability.NONE, 0),
+                    new AdmissionControl(10000, 256, 8, 256, false, 1),
+                    new ClientLimits(8 * 1024, 100, 16 * 1024, Long.MAX_VALUE, 10000, 30000, 30000, 0),
+                    new AccessLog("", AccessLog.COMMON, 0, 0, 0, 0), new Lifecycle(0, 30000),
+                    true, 1024, 100, true);
+            this.tls = new TlsTermination(TlsBenchmark.TLS_PORT, keyStore.toString(), "PKCS12",
+                    TlsBenchmark.PASSWORD, new String[]{"TLSv1.3"}, 20480, 86400, true, context);
+
+            this.server = new Server(TlsBenchmark.PORT, 8, ThreadModels.BLOCKING,
+                    Runtime.getRuntime().availableProcessors(), context, new SocketSettings(1, 1024, true, 0, 0, false),
+                    this.tls);
+            this.serverThread = new Thread(this.server, "server");
+            this.serverThread.start();
+
+            // the client trusts the self-signed certificate of the server
+            KeyStore trusted = KeyStore.getInstance("PKCS12");
+            try (InputStream input = Files.newInputStream(keyStore)) {
+                trusted.load(input, TlsBenchmark.PASSWORD.toCharArray());
+            }
+            TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(
+                    TrustManagerFactory.getDefaultAlgorithm());
+            trustManagers.init(trusted);
+            SSLContext clientContext = SSLContext.getInstance("TLS");
+            clientContext.init(null, trustManagers.getTrustManagers(), null);
+            this.clientFactory = clientContext.getSocketFactory();
+
+            // wait until the server accepts connections
+            while (true) {
+                try (Socket probe = new Socket(TlsBenchmark.HOST, TlsBenchmark.TLS_PORT)) {
+                    break;
+                } catch (IOException e) {
+                    Thread.sleep(10);
+                }
+            }
+        }
+
+
+        @TearDown(Level.Trial)
+        public void stop() throws IOException, InterruptedException {
+            System.out.println("TLS handshakes: " + this.tls.getFullHandshakes() + " full, "
+                    + this.tls.getResumedHandshakes() + " resumed");
+
+            this.server.shutdown();
+            this.serverThread.join(TimeUnit.SECONDS.toMillis(30));
+
+            try (Stream<Path> paths = Files.walk(this.root)) {
+                paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+
+
+        // Method opening a connection with the transport of the trial; a full handshake is forced by dropping
+        // the session from the client's cache once the connection is done
+        Socket connect() throws IOException {
+            if (this.transport.equals(TlsBenchmark.PLAIN)) {
+                Socket socket = new Socket(TlsBenchmark.HOST, TlsBenchmark.PORT);
+                socket.setTcpNoDelay(true);
+                return socket;
+            }
+
+            SSLSocket socket = (SSLSocket) this.clientFactory.createSocket(TlsBenchmark.HOST, TlsBenchmark.TLS_PORT);
+            socket.setTcpNoDelay(true);
+            socket.startHandshake();
+            return socket;
+        }
+
+
+        void disconnect(Socket socket) throws IOException {
+            if (this.transport.equals(TlsBenchmark.TLS_FULL)) {
+                ((SSLSocket) socket).getSession().invalidate();
+            }
+            socket.close();
+        }
+    }
+
+
+    /*
+        Class holding the persistent connection of one benchmark thread
+     */
+    @State(Scope.Thread)
+    public static class ClientState {
+
+        private Socket socket;
+        private byte[] body;
+
+
+        @Setup(Level.Trial)
+        public void connect(ServerState server) throws IOException {
+            this.socket = server.connect();
+            this.body = new byte[TlsBenchmark.PAGE_SIZE];
+        }
+
+
+        @TearDown(Level.Trial)
+        public void disconnect() throws IOException {
+            this.socket.close();
+        }
+    }
+
+
+    @Benchmark
+    public int keepAlive(ClientState client) throws IOException {
+        return TlsBenchmark.exchange(client.socket, TlsBenchmark.KEEP_ALIVE_REQUEST, client.body);
+    }
+
+
+    // one thread: with more, a connection could resume the session another thread is about to drop
+    @Benchmark
+    @Threads(1)
+    public int newConnection(ServerState server) throws IOException {
+        Socket socket = server.connect();
+
+        try {
+            return TlsBenchmark.exchange(socket, TlsBenchmark.CLOSE_REQUEST, new byte[TlsBenchmark.PAGE_SIZE]);
+        } finally {
+            server.disconnect(socket);
+        }
+    }
+
+
+    // Method generating a keystore with a self-signed certificate for localhost
+    private static Path generateKeyStore(Path keyStore) throws IOException, InterruptedException {
+        String keytool = Path.of(System.getProperty("java.home"), "bin", "keytool").toString();
+        Process process = new ProcessBuilder(keytool, "-genkeypair", "-alias", "server", "-keyalg", "EC",
+                "-groupname", "secp256r1", "-dname", "CN=localhost", "-ext", "san=ip:" + TlsBenchmark.HOST,
+                "-validity", "1", "-storetype", "PKCS12", "-keystore", keyStore.toString(),
+                "-storepass", TlsBenchmark.PASSWORD, "-keypass", TlsBenchmark.PASSWORD)
+                .redirectErrorStream(true).redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+
+        if (process.waitFor() != 0) {
+            throw new IOException("keytool could not generate the keystore");
+        }
+        return keyStore;
+    }
+
+
+    // Method sending one request and reading its whole response; returns the number of body bytes
+    private static int exchange(Socket socket, byte[] request, byte[] body) throws IOException {
+        OutputStream output = socket.getOutputStream();
+        InputStream input = new BufferedInputStream(socket.getInputStream(), 256);
+
+        output.write(request);
+        output.flush();
+
+        int contentLength = TlsBenchmark.readHeaders(input);
+        int read = 0;
+
+        while (read < contentLength) {
+            int count = input.read(body, 0, Math.min(body.length, contentLength - read));
+            if (count < 0) {
+                throw new EOFException("Connection closed in the middle of the response body");
+            }
+            read += count;
+        }
+        return read;
+    }
+
+
+    // Method reading the header lines up to the empty line, returning the Content-Length value
+    private static int readHeaders(InputStream input) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int contentLength = 0;
+
+        while (true) {
+            int current = input.read();
+            if (current < 0) {
+                throw new EOFException("Connection closed in the middle of the response headers");
+            }
+
+            if (current == '\n') {
+                if (line.length() == 0) {
+                    return contentLength;
+                }
+                String header = line.toString();
+                if (header.regionMatches(true, 0, "Content-Length:", 0, 15)) {
+                    contentLength = Integer.parseInt(header.substring(15).trim());
+                }
+                line.setLength(0);
+            } else if (current != '\r') {
+                line.append((char) current);
+            }
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package webserver;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/*
+    Class holding the state of one acceptor thread: its listening socket (shared by all the acceptors of the port if
+    it cannot be reused), whether it is the TLS port, the buffer discarding the requests of the rejected
+    connections, its round-robin position among the event loops and the number of connections it has accepted
+ */
+public class Acceptor {
+
+    private static final int DISCARD_BUFFER_SIZE = 8192;
+
+    final int index;
+    final ServerSocketChannel channel;
+    final boolean tls;
+    final ByteBuffer discardBuffer;
+
+    private final LongAdder accepted;
+    private int nextEventLoop;
+
+    Acceptor(int index, ServerSocketChannel channel, boolean tls) {
+        this.index = index;
+        this.channel = channel;
+        this.tls = tls;
+        this.discardBuffer = ByteBuffer.allocate(Acceptor.DISCARD_BUFFER_SIZE);
+        this.accepted = new LongAdder();
+
+        // the acceptors start at different event loops, so their connections are spread from the first one
+        this.nextEventLoop = index;
+    }
+
+
+    void accepted() {
+        this.accepted.increment();
+    }
+
+
+    long getAccepted() {
+        return this.accepted.sum();
+    }
+
+
+    // Method returning the event loop the next connection is handed to (round-robin)
+    int nextEventLoop(int noEventLoops) {
+        int eventLoop = this.nextEventLoop % noEventLoops;
+
+        this.nextEventLoop = eventLoop + 1;
+        return eventLoop;
+    }
+}
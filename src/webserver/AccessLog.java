@@ -0,0 +1,442 @@
+package webserver;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+
+/*
+    Class implementing the access log: one line per request, in the Common or Combined Log Format (followed by
+    the duration in microseconds) or in JSON. A request thread only fills a record and puts it into a bounded
+    lock-free ring, one per stripe of threads (a worker has a stripe to itself unless there are more workers than
+    stripes), and never blocks: a record finding its ring full is dropped and counted. A writer thread drains the
+    rings every flush interval, formats the records and appends them to the file in large writes; the file is
+    rotated (access.log.1, .2, ...) once it reaches its maximum size. Without a file the log is disabled
+ */
+public class AccessLog implements Runnable {
+
+    static final String COMMON = "common";
+    static final String COMBINED = "combined";
+    static final String JSON = "json";
+
+    // text formatted before it is written to the file, in one write
+    private static final int BATCH_SIZE = 64 * 1024;
+
+    private static final DateTimeFormatter CLF_DATE = DateTimeFormatter
+            .ofPattern("dd/MMM/yyyy:HH:mm:ss Z", Locale.US).withZone(ZoneId.systemDefault());
+
+    private final Path file;
+    private final String format;
+    private final long flushMillis;
+    private final long maxBytes;
+    private final int maxFiles;
+
+    private final Ring[] rings;
+    private final int mask;
+    private final LongAdder written;
+    private final LongAdder dropped;
+
+    // used by the writer thread only
+    private final StringBuilder text;
+    private FileChannel channel;
+    private long size;
+    private long dateSecond;
+    private String date;
+
+    private volatile boolean running;
+    private Thread writer;
+
+    /*
+        An empty file disables the log; every ring holds bufferSize records (rounded up to a power of two), the
+        file is rotated once it has maxBytes bytes (0 never rotates it) and maxFiles rotated files are kept
+     */
+    AccessLog(String file, String format, int bufferSize, long flushMillis, long maxBytes, int maxFiles) {
+        int stripes = Integer.highestOneBit(Math.max(1, 2 * Runtime.getRuntime().availableProcessors() - 1)) << 1;
+
+        this.file = file.isEmpty() ? null : Path.of(file);
+        this.format = format;
+        this.flushMillis = flushMillis;
+        this.maxBytes = maxBytes;
+        this.maxFiles = maxFiles;
+        this.rings = new Ring[this.file != null ? stripes : 0];
+        this.mask = stripes - 1;
+        this.written = new LongAdder();
+        this.dropped = new LongAdder();
+        this.text = new StringBuilder(AccessLog.BATCH_SIZE + 1024);
+        this.dateSecond = -1;
+
+        for (int i = 0; i < this.rings.length; i++) {
+            this.rings[i] = new Ring(bufferSize);
+        }
+    }
+
+
+    boolean isEnabled() {
+        return this.file != null;
+    }
+
+
+    // Method telling whether the Referer and User-Agent headers are logged, so the parser keeps them
+    boolean logsHeaders() {
+        return this.file != null && !this.format.equals(AccessLog.COMMON);
+    }
+
+
+    // Method logging a served request (the caller checks isEnabled first); bytes is the length of the response
+    // body, -1 if it was not known (compressed while it was sent)
+    void log(InetAddress client, Map<String, String> requestData, String code, long bytes, long nanos) {
+        Ring ring = this.rings[(int) Thread.currentThread().getId() & this.mask];
+        long slot = ring.claim();
+
+        // the record is only built once it has a slot, dropping one costs no allocation
+        if (slot < 0) {
+            this.dropped.increment();
+            return;
+        }
+        ring.publish(slot, new Record(System.currentTimeMillis(), client, requestData.get("Method"),
+                requestData.get("Resource"), requestData.get("Protocol"), code, bytes, nanos,
+                requestData.get("Referer"), requestData.get("User-Agent")));
+    }
+
+
+    long getWritten() {
+        return this.written.sum();
+    }
+
+
+    long getDropped() {
+        return this.dropped.sum();
+    }
+
+
+    // Method opening the file and starting the writer thread (by the server, before it accepts connections)
+    void start() throws IOException {
+        if (this.file == null) {
+            return;
+        }
+
+        try {
+            this.open();
+        } catch (IOException e) {
+            throw new IOException("Cannot open the access log " + this.file + ": " + e.getMessage(), e);
+        }
+        this.running = true;
+        this.writer = new Thread(this, "access-log-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+
+    // Method stopping the writer thread once it has written the records left in the rings
+    void close() {
+        if (this.writer == null) {
+            return;
+        }
+
+        this.running = false;
+        LockSupport.unpark(this.writer);
+        try {
+            this.writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    // Method run by the writer thread: the rings are drained every flush interval, and a last time at the end.
+    // It is woken up by unpark rather than interrupted, an interrupt would close the file channel
+    @Override
+    public void run() {
+        while (this.running) {
+            LockSupport.parkNanos(this.flushMillis * 1_000_000L);
+            this.flush();
+        }
+        this.flush();
+
+        try {
+            this.channel.close();
+        } catch (IOException e) {
+            Log.error("Could not close the access log: " + e.getMessage());
+        }
+    }
+
+
+    // Method formatting the records of all the rings and appending them to the file, in batches
+    private void flush() {
+        long count = 0;
+
+        for (Ring ring : this.rings) {
+            Record record;
+            while ((record = ring.poll()) != null) {
+                this.format(record);
+                count++;
+
+                if (this.text.length() >= AccessLog.BATCH_SIZE) {
+                    this.write();
+                }
+            }
+        }
+
+        this.write();
+        this.written.add(count);
+    }
+
+
+    // Method appending the formatted batch to the file, rotating the file once it is full
+    private void write() {
+        if (this.text.length() == 0) {
+            return;
+        }
+
+        ByteBuffer batch = ByteBuffer.wrap(this.text.toString().getBytes(StandardCharsets.UTF_8));
+        this.text.setLength(0);
+
+        try {
+            while (batch.hasRemaining()) {
+                this.size += this.channel.write(batch);
+            }
+            if (this.maxBytes > 0 && this.size >= this.maxBytes) {
+                this.rotate();
+            }
+        } catch (IOException e) {
+            Log.error("Could not write the access log: " + e.getMessage());
+        }
+    }
+
+
+    // Method renaming the file to access.log.1 (and the older ones to the next number, the oldest being
+    // dropped) and starting a new one
+    private void rotate() throws IOException {
+        this.channel.close();
+
+        for (int i = this.maxFiles - 1; i >= 1; i--) {
+            Path older = this.rotated(i);
+            if (Files.exists(older)) {
+                Files.move(older, this.rotated(i + 1), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        Files.move(this.file, this.rotated(1), StandardCopyOption.REPLACE_EXISTING);
+
+        this.open();
+    }
+
+
+    private Path rotated(int index) {
+        return this.file.resolveSibling(this.file.getFileName() + "." + index);
+    }
+
+
+    private void open() throws IOException {
+        this.channel = FileChannel.open(this.file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        this.size = this.channel.size();
+    }
+
+
+    // Method appending the line of a record to the batch
+    private void format(Record record) {
+        StringBuilder text = this.text;
+        String status = record.code != null ? record.code.substring(0, Math.min(3, record.code.length())) : "-";
+        String client = record.client != null ? record.client.getHostAddress() : "-";
+
+        if (this.format.equals(AccessLog.JSON)) {
+            text.append("{\"time\":\"").append(Instant.ofEpochMilli(record.time))
+                    .append("\",\"client\":\"").append(client)
+                    .append("\",\"method\":");
+            AccessLog.appendJson(text, record.method);
+            text.append(",\"resource\":");
+            AccessLog.appendJson(text, record.resource);
+            text.append(",\"protocol\":");
+            AccessLog.appendJson(text, record.protocol);
+            text.append(",\"status\":").append(record.code != null ? status : "null")
+                    .append(",\"bytes\":").append(record.bytes >= 0 ? String.valueOf(record.bytes) : "null")
+                    .append(",\"duration_us\":").append(record.nanos / 1000)
+                    .append(",\"referer\":");
+            AccessLog.appendJson(text, record.referer);
+            text.append(",\"user_agent\":");
+            AccessLog.appendJson(text, record.userAgent);
+            text.append("}\n");
+            return;
+        }
+
+        // host ident authuser [date] "request line" status bytes, then "referer" "user-agent" if combined
+        text.append(client).append(" - - [").append(this.date(record.time)).append("] \"");
+        AccessLog.appendQuoted(text, record.method);
+        text.append(' ');
+        AccessLog.appendQuoted(text, record.resource);
+        text.append(' ');
+        AccessLog.appendQuoted(text, record.protocol);
+        text.append("\" ").append(status).append(' ').append(record.bytes > 0 ? String.valueOf(record.bytes) : "-");
+
+        if (this.format.equals(AccessLog.COMBINED)) {
+            text.append(" \"");
+            AccessLog.appendQuoted(text, record.referer);
+            text.append("\" \"");
+            AccessLog.appendQuoted(text, record.userAgent);
+            text.append('"');
+        }
+        text.append(' ').append(record.nanos / 1000).append('\n');
+    }
+
+
+    // Method returning the date of a record in the Common Log Format, formatted once per second
+    private String date(long time) {
+        long second = time / 1000;
+
+        if (second != this.dateSecond) {
+            this.dateSecond = second;
+            this.date = AccessLog.CLF_DATE.format(Instant.ofEpochMilli(time));
+        }
+        return this.date;
+    }
+
+
+    // Method appending a value inside a quoted field of the Common Log Format: the quotes, backslashes and control
+    // characters are escaped as \" \\ and \xHH, a missing value is "-"
+    private static void appendQuoted(StringBuilder text, String value) {
+        if (value == null) {
+            text.append('-');
+            return;
+        }
+
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+
+            if (c == '"' || c == '\\') {
+                text.append('\\').append(c);
+            } else if (c < 0x20 || c == 0x7f) {
+                text.append("\\x").append(Character.forDigit(c >> 4, 16)).append(Character.forDigit(c & 0xf, 16));
+            } else {
+                text.append(c);
+            }
+        }
+    }
+
+
+    // Method appending a JSON string (null if the value is missing)
+    private static void appendJson(StringBuilder text, String value) {
+        if (value == null) {
+            text.append("null");
+            return;
+        }
+
+        text.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+
+            if (c == '"' || c == '\\') {
+                text.append('\\').append(c);
+            } else if (c < 0x20) {
+                text.append("\\u00").append(Character.forDigit(c >> 4, 16)).append(Character.forDigit(c & 0xf, 16));
+            } else {
+                text.append(c);
+            }
+        }
+        text.append('"');
+    }
+
+
+    /*
+        Class holding what is logged of a request, taken from the request data when it is served (the maps are
+        reused by the next request)
+     */
+    private static class Record {
+        private final long time;
+        private final InetAddress client;
+        private final String method;
+        private final String resource;
+        private final String protocol;
+        private final String code;
+        private final long bytes;
+        private final long nanos;
+        private final String referer;
+        private final String userAgent;
+
+        Record(long time, InetAddress client, String method, String resource, String protocol, String code,
+               long bytes, long nanos, String referer, String userAgent) {
+            this.time = time;
+            this.client = client;
+            this.method = method;
+            this.resource = resource;
+            this.protocol = protocol;
+            this.code = code;
+            this.bytes = bytes;
+            this.nanos = nanos;
+            this.referer = referer;
+            this.userAgent = userAgent;
+        }
+    }
+
+
+    /*
+        Class implementing a bounded ring of records, written by several threads and read by the writer thread:
+        a producer claims a slot by advancing the tail with a CAS, then publishes its record in it; the reader
+        takes the records in order, stopping at a slot claimed but not published yet, and clears every slot it
+        reads before moving the head past it, so a slot is empty when a producer claims it again
+     */
+    private static class Ring {
+        private final AtomicReferenceArray<Record> slots;
+        private final int mask;
+        private final AtomicLong tail;
+        private volatile long head;
+
+        Ring(int capacity) {
+            int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+
+            this.slots = new AtomicReferenceArray<>(size);
+            this.mask = size - 1;
+            this.tail = new AtomicLong();
+        }
+
+
+        // Method claiming the next slot, -1 if the ring is full
+        long claim() {
+            long tail;
+
+            do {
+                tail = this.tail.get();
+                if (tail - this.head >= this.slots.length()) {
+                    return -1;
+                }
+            } while (!this.tail.compareAndSet(tail, tail + 1));
+
+            return tail;
+        }
+
+
+        // Method publishing the record of a claimed slot to the reader
+        void publish(long slot, Record record) {
+            this.slots.lazySet((int) slot & this.mask, record);
+        }
+
+
+        // Method taking the oldest record, null if there is none (or it is not published yet)
+        Record poll() {
+            long head = this.head;
+            int index = (int) head & this.mask;
+            Record record = this.slots.get(index);
+
+            if (record == null) {
+                return null;
+            }
+            this.slots.lazySet(index, null);
+            this.head = head + 1;
+            return record;
+        }
+    }
+}
@@ -0,0 +1,274 @@
+package webserver;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/*
+    Class implementing the admission control of the server: a cap on the open connections and on those switched
+    to HTTP/2 (each holds a reader thread), the size of the workers' queue and an adaptive limit of the requests
+    in flight (queued for or running on a worker). The limit follows the measured latency in the way of a
+    gradient concurrency limiter: while the recent latency stays close to the long-term one the limit grows by
+    about its square root, once requests start queueing and the latency rises it is cut in proportion. The work
+    above the limits is shed at once with 503 and Retry-After (a GOAWAY for an HTTP/2 preface), which costs the
+    server less than queueing it and lets the clients back off
+ */
+public class AdmissionControl {
+
+    // the limit is recomputed from the latencies of every window
+    private static final long WINDOW_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    // the long-term latency is an average over about 100 windows (10 seconds)
+    private static final double LONG_TERM_WINDOWS = 100;
+
+    // recent latency up to 1.5 times the long-term one is not taken as queueing
+    private static final double TOLERANCE = 1.5;
+
+    // a window cuts the limit at most by half, and only a part of the new limit is applied at once
+    private static final double MIN_GRADIENT = 0.5;
+    private static final double SMOOTHING = 0.2;
+
+    final int queueSize;
+
+    private final boolean adaptive;
+    private final int minLimit;
+    private final int maxLimit;
+
+    // changed by a configuration reload
+    private volatile int maxConnections;
+    private volatile int maxHttp2Connections;
+    private volatile byte[] serviceUnavailable;
+    private volatile int retryAfter;
+
+    private final AtomicInteger openConnections;
+    private final AtomicInteger http2Connections;
+    private final AtomicInteger inFlight;
+
+    // latencies of the current window and the highest number of requests in flight seen during it
+    private final LongAdder windowNanos;
+    private final LongAdder windowCount;
+    private final AtomicInteger windowPeak;
+    private final AtomicLong windowEnd;
+
+    private final LongAdder rejectedConnections;
+    private final LongAdder rejectedHttp2;
+    private final LongAdder rejectedQueue;
+    private final LongAdder rejectedLimit;
+
+    // only updated by the thread which closes a window
+    private volatile double limit;
+    private double longTermNanos;
+
+    AdmissionControl(int maxConnections, int maxHttp2Connections, int noWorkers, int queueSize, boolean adaptive,
+                     int retryAfter) {
+        this.queueSize = queueSize;
+        this.adaptive = adaptive;
+
+        // the workers are always kept busy, and more requests than the queue holds are rejected anyway
+        this.minLimit = noWorkers;
+        this.maxLimit = noWorkers + queueSize;
+        this.limit = this.maxLimit;
+        this.reconfigure(maxConnections, maxHttp2Connections, retryAfter);
+
+        this.openConnections = new AtomicInteger();
+        this.http2Connections = new AtomicInteger();
+        this.inFlight = new AtomicInteger();
+        this.windowNanos = new LongAdder();
+        this.windowCount = new LongAdder();
+        this.windowPeak = new AtomicInteger();
+        this.windowEnd = new AtomicLong(System.nanoTime() + AdmissionControl.WINDOW_NANOS);
+        this.rejectedConnections = new LongAdder();
+        this.rejectedHttp2 = new LongAdder();
+        this.rejectedQueue = new LongAdder();
+        this.rejectedLimit = new LongAdder();
+    }
+
+
+    // Method setting the connection caps and the Retry-After of the 503 responses (at start and on a configuration
+    // reload; the connections open above a lowered cap are not closed)
+    void reconfigure(int maxConnections, int maxHttp2Connections, int retryAfter) {
+        this.maxConnections = maxConnections;
+        this.maxHttp2Connections = maxHttp2Connections;
+        this.retryAfter = retryAfter;
+        this.serviceUnavailable = ("HTTP/1.1 " + ErrorCodes.SERVICE_UNAVAILABLE
+                + "\r\nServer: webserver.WebServer"
+                + "\r\nRetry-After: " + retryAfter
+                + "\r\nConnection: close"
+                + "\r\nContent-Length: 0\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+
+    // Method returning the whole 503 response sent to the work which is shed (pre-encoded, it has no body)
+    byte[] getServiceUnavailable() {
+        return this.serviceUnavailable;
+    }
+
+
+    // Method returning the Retry-After seconds of the 503 responses (for the HTTP/2 streams, which are not sent
+    // the pre-encoded response)
+    int getRetryAfter() {
+        return this.retryAfter;
+    }
+
+
+    // Method admitting a newly accepted connection if the server holds less than the maximum number of them
+    boolean admitConnection() {
+        return AdmissionControl.admit(this.openConnections, this.maxConnections, this.rejectedConnections);
+    }
+
+
+    // Method releasing the place of an admitted connection once it is closed
+    void connectionClosed() {
+        this.openConnections.decrementAndGet();
+    }
+
+
+    // Method admitting a connection switching to HTTP/2 if the server holds less than the maximum number of them
+    boolean admitHttp2Connection() {
+        return AdmissionControl.admit(this.http2Connections, this.maxHttp2Connections, this.rejectedHttp2);
+    }
+
+
+    // Method releasing the place of an HTTP/2 connection once its reader is done
+    void http2ConnectionClosed() {
+        this.http2Connections.decrementAndGet();
+    }
+
+
+    // Method taking a place under the cap, or counting the rejection if there is none left
+    private static boolean admit(AtomicInteger open, int max, LongAdder rejected) {
+        while (true) {
+            int current = open.get();
+
+            if (current >= max) {
+                rejected.increment();
+                return false;
+            }
+            if (open.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+
+    // Method counting the work rejected because the workers' queue is full
+    void queueFull() {
+        this.rejectedQueue.increment();
+    }
+
+
+    // Method admitting a request to the workers if the requests in flight are below the current limit
+    boolean admitRequest() {
+        int current = this.inFlight.incrementAndGet();
+
+        if (this.adaptive && current > (int) this.limit) {
+            this.inFlight.decrementAndGet();
+            this.rejectedLimit.increment();
+            return false;
+        }
+
+        this.windowPeak.accumulateAndGet(current, Math::max);
+        return true;
+    }
+
+
+    // Method releasing the place of an admitted request which could not be queued (the queue is full)
+    void requestRejected() {
+        this.inFlight.decrementAndGet();
+        this.rejectedQueue.increment();
+    }
+
+
+    // Method releasing the place of a processed request and recording its latency (queueing included)
+    void requestDone(long nanos) {
+        this.inFlight.decrementAndGet();
+
+        if (!this.adaptive) {
+            return;
+        }
+
+        this.windowNanos.add(nanos);
+        this.windowCount.increment();
+
+        long now = System.nanoTime();
+        long end = this.windowEnd.get();
+        if (now - end >= 0 && this.windowEnd.compareAndSet(end, now + AdmissionControl.WINDOW_NANOS)) {
+            this.updateLimit();
+        }
+    }
+
+
+    // Method computing the limit from the average latency of the window which has just ended
+    private void updateLimit() {
+        long count = this.windowCount.sumThenReset();
+        long nanos = this.windowNanos.sumThenReset();
+        int peak = this.windowPeak.getAndSet(this.inFlight.get());
+
+        if (count == 0) {
+            return;
+        }
+
+        double recentNanos = (double) nanos / count;
+        if (this.longTermNanos == 0) {
+            this.longTermNanos = recentNanos;
+        } else {
+            this.longTermNanos += (recentNanos - this.longTermNanos) / AdmissionControl.LONG_TERM_WINDOWS;
+        }
+
+        double current = this.limit;
+        double gradient = Math.max(AdmissionControl.MIN_GRADIENT,
+                Math.min(1.0, AdmissionControl.TOLERANCE * this.longTermNanos / recentNanos));
+        double target = current * gradient + Math.sqrt(current);
+
+        // a server far below its limit tells nothing about a higher one
+        if (target > current && peak < current / 2) {
+            return;
+        }
+
+        double next = current * (1 - AdmissionControl.SMOOTHING) + target * AdmissionControl.SMOOTHING;
+        this.limit = Math.max(this.minLimit, Math.min(this.maxLimit, next));
+    }
+
+
+    int getLimit() {
+        return (int) this.limit;
+    }
+
+
+    int getInFlight() {
+        return this.inFlight.get();
+    }
+
+
+    int getOpenConnections() {
+        return this.openConnections.get();
+    }
+
+
+    int getHttp2Connections() {
+        return this.http2Connections.get();
+    }
+
+
+    long getRejectedConnections() {
+        return this.rejectedConnections.sum();
+    }
+
+
+    long getRejectedHttp2() {
+        return this.rejectedHttp2.sum();
+    }
+
+
+    long getRejectedQueue() {
+        return this.rejectedQueue.sum();
+    }
+
+
+    long getRejectedLimit() {
+        return this.rejectedLimit.sum();
+    }
+}
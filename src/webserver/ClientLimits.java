@@ -0,0 +1,185 @@
+package webserver;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/*
+    Class holding the limits protecting the server from slow or oversized clients: the sizes of the request
+    line, of the headers and of the body, the time a client may take to send the headers, to send the next
+    bytes of the body or to read the next bytes of the response, and the lowest transfer rate accepted once
+    a body or a response has been transferring for a few seconds. Every rejection is counted by its reason
+ */
+public class ClientLimits {
+
+    // a transfer is not checked against the minimum rate before this much time, so a slow start
+    // (or a short pause) of a client is tolerated
+    private static final long RATE_GRACE_MILLIS = 5000;
+
+    // the limits can be changed by a configuration reload, the open connections apply them from their next read
+    volatile int maxRequestLine;
+    volatile int maxHeaderCount;
+    volatile int maxHeaderBytes;
+    volatile long maxBodyBytes;
+
+    volatile int headerTimeout;
+    volatile int bodyTimeout;
+    volatile int writeTimeout;
+
+    // lowest average rate (bytes per second) of a body or response transfer, 0 if it is not enforced
+    volatile long minRate;
+
+    // the connections writing with blocking writes register themselves here, so the watchdog can close those
+    // stuck in a write
+    private final Set<Watched> connections;
+
+    private final LongAdder requestLineTooLong;
+    private final LongAdder tooManyHeaders;
+    private final LongAdder headersTooLarge;
+    private final LongAdder bodyTooLarge;
+    private final LongAdder headerTimeouts;
+    private final LongAdder bodyTimeouts;
+    private final LongAdder writeTimeouts;
+    private final LongAdder belowMinRate;
+
+    ClientLimits(int maxRequestLine, int maxHeaderCount, int maxHeaderBytes, long maxBodyBytes,
+                 int headerTimeout, int bodyTimeout, int writeTimeout, long minRate) {
+        this.update(maxRequestLine, maxHeaderCount, maxHeaderBytes, maxBodyBytes, headerTimeout, bodyTimeout,
+                writeTimeout, minRate);
+
+        this.connections = ConcurrentHashMap.newKeySet();
+        this.requestLineTooLong = new LongAdder();
+        this.tooManyHeaders = new LongAdder();
+        this.headersTooLarge = new LongAdder();
+        this.bodyTooLarge = new LongAdder();
+        this.headerTimeouts = new LongAdder();
+        this.bodyTimeouts = new LongAdder();
+        this.writeTimeouts = new LongAdder();
+        this.belowMinRate = new LongAdder();
+    }
+
+
+    // Method setting the limits (at start and on a configuration reload)
+    void update(int maxRequestLine, int maxHeaderCount, int maxHeaderBytes, long maxBodyBytes,
+                int headerTimeout, int bodyTimeout, int writeTimeout, long minRate) {
+        this.maxRequestLine = maxRequestLine;
+        this.maxHeaderCount = maxHeaderCount;
+        this.maxHeaderBytes = maxHeaderBytes;
+        this.maxBodyBytes = maxBodyBytes;
+        this.headerTimeout = headerTimeout;
+        this.bodyTimeout = bodyTimeout;
+        this.writeTimeout = writeTimeout;
+        this.minRate = minRate;
+    }
+
+
+    // Method returning the time until which a transfer of the given bytes, started at the given time, keeps the
+    // minimum rate without transferring more: after the grace period its average rate has to stay above it
+    long rateDeadline(long bytes, long startMillis) {
+        long minRate = this.minRate;
+
+        if (minRate == 0) {
+            return Long.MAX_VALUE;
+        }
+        return startMillis + Math.max(ClientLimits.RATE_GRACE_MILLIS, bytes * 1000 / minRate);
+    }
+
+
+    // Method telling whether a transfer of the given bytes, started at the given time, is below the minimum rate
+    boolean isTooSlow(long bytes, long startMillis, long now) {
+        return now > this.rateDeadline(bytes, startMillis);
+    }
+
+
+    /*
+        Interface implemented by the connections whose blocked writes are watched
+     */
+    interface Watched {
+        // Method closing the connection if its client has stopped reading (called by the watchdog thread)
+        void checkWrite(long now);
+    }
+
+
+    void watch(Watched connection) {
+        this.connections.add(connection);
+    }
+
+
+    void unwatch(Watched connection) {
+        this.connections.remove(connection);
+    }
+
+
+    // Method run periodically by the watchdog: the connections whose client has stopped reading the response
+    // (or reads it too slowly) are closed, which fails their blocked write
+    void checkWrites() {
+        long now = System.currentTimeMillis();
+
+        for (Watched connection : this.connections) {
+            connection.checkWrite(now);
+        }
+    }
+
+
+    void requestLineTooLong() {
+        this.requestLineTooLong.increment();
+    }
+
+
+    void tooManyHeaders() {
+        this.tooManyHeaders.increment();
+    }
+
+
+    void headersTooLarge() {
+        this.headersTooLarge.increment();
+    }
+
+
+    void bodyTooLarge() {
+        this.bodyTooLarge.increment();
+    }
+
+
+    void headerTimeout() {
+        this.headerTimeouts.increment();
+    }
+
+
+    void bodyTimeout() {
+        this.bodyTimeouts.increment();
+    }
+
+
+    void writeTimeout() {
+        this.writeTimeouts.increment();
+    }
+
+
+    void belowMinRate() {
+        this.belowMinRate.increment();
+    }
+
+
+    // Method appending the rejection counters in the Prometheus text format
+    void render(StringBuilder text) {
+        text.append("# HELP webserver_client_rejected_total Requests and connections refused for exceeding "
+                + "a client limit, by reason.\n")
+                .append("# TYPE webserver_client_rejected_total counter\n");
+        ClientLimits.renderReason(text, "request_line", this.requestLineTooLong);
+        ClientLimits.renderReason(text, "header_count", this.tooManyHeaders);
+        ClientLimits.renderReason(text, "header_size", this.headersTooLarge);
+        ClientLimits.renderReason(text, "body_size", this.bodyTooLarge);
+        ClientLimits.renderReason(text, "header_timeout", this.headerTimeouts);
+        ClientLimits.renderReason(text, "body_timeout", this.bodyTimeouts);
+        ClientLimits.renderReason(text, "write_timeout", this.writeTimeouts);
+        ClientLimits.renderReason(text, "min_rate", this.belowMinRate);
+    }
+
+
+    private static void renderReason(StringBuilder text, String reason, LongAdder counter) {
+        text.append("webserver_client_rejected_total{reason=\"").append(reason).append("\"} ")
+                .append(counter.sum()).append('\n');
+    }
+}
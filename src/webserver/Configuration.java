@@ -0,0 +1,474 @@
+package webserver;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+
+/*
+    Class holding the typed configuration of the server. Every setting has a key (e.g. cache.maxBytes) whose
+    value is taken, from the highest priority down, from the command line (port and workers), a system
+    property (-Dwebserver.cache.maxBytes), an environment variable (WEBSERVER_CACHE_MAXBYTES), the
+    configuration file or the default. The file is a properties file named by -Dwebserver.config or
+    WEBSERVER_CONFIG, or webserver.properties in the working directory if it exists. A configuration is
+    validated as a whole when it is loaded; the safe settings of a reloaded one are applied to the running
+    server, the others only take effect after a restart
+ */
+public class Configuration {
+
+    private static final String PROPERTY_PREFIX = "webserver.";
+    private static final String ENVIRONMENT_PREFIX = "WEBSERVER_";
+    private static final String CONFIG_KEY = "config";
+    private static final String DEFAULT_FILE = "webserver.properties";
+
+    private static final int MINIMUM_PORT_NUMBER = 1024;
+
+    // document root and directory of the error pages (relative to the working directory)
+    private static final String DEFAULT_ROOT = "www/html";
+    private static final String DEFAULT_ERROR_PAGES = "www/html/error_pages";
+
+    // keep-alive limits (keepAlive.timeout in ms, keepAlive.maxRequests)
+    private static final int DEFAULT_IDLE_TIMEOUT = 5000;
+    private static final int DEFAULT_MAX_REQUESTS = 100;
+
+    // thread model (mode=blocking|nio|virtual); the NIO mode runs nio.eventLoops selector threads (one per core
+    // by default)
+    private static final int DEFAULT_NO_EVENT_LOOPS = Runtime.getRuntime().availableProcessors();
+
+    // static cache budget in bytes (cache.maxBytes) and biggest cached file (cache.maxEntryBytes)
+    private static final long DEFAULT_CACHE_BYTES = 64 * 1024 * 1024;
+    private static final long DEFAULT_CACHE_ENTRY_BYTES = 1024 * 1024;
+
+    // budget of the memory-mapped files (mmap.maxBytes, 0 to disable the mapping) and smallest file mapped
+    // (mmap.minBytes); the smaller files are cached or sent from disk
+    private static final long DEFAULT_MMAP_BYTES = 256 * 1024 * 1024;
+    private static final long DEFAULT_MMAP_MIN_BYTES = 1024 * 1024;
+
+    // durability of the writes (write.durability=none|request|group), the group commit window
+    // (write.groupCommitMillis) and whether writes echo the file (write.echo=true|false)
+    private static final long DEFAULT_GROUP_COMMIT_MILLIS = 2;
+
+    // smallest body compressed on the fly (compression.minBytes, negative to only send the precompressed
+    // .gz/.br files)
+    private static final long DEFAULT_COMPRESSION_MIN_BYTES = 1024;
+
+    // most streams open at once on an HTTP/2 connection (http2.maxConcurrentStreams, 0 to disable HTTP/2) and
+    // most connections switched to HTTP/2 at once, each holding a reader thread (http2.maxConnections)
+    private static final int DEFAULT_MAX_CONCURRENT_STREAMS = 100;
+    private static final int DEFAULT_MAX_HTTP2_CONNECTIONS = 256;
+
+    // admission control: most connections open at once (maxConnections), tasks waiting for a worker
+    // (queue.size), adaptive limit of the requests in flight (admission.adaptive) and the Retry-After seconds
+    // of the 503 responses (admission.retryAfter)
+    private static final int DEFAULT_MAX_CONNECTIONS = 10000;
+    private static final int DEFAULT_QUEUE_SIZE = 256;
+    private static final int DEFAULT_RETRY_AFTER = 1;
+
+    // slow and oversized clients: request line, header count and header section sizes (limits.requestLine,
+    // limits.headerCount, limits.headerBytes), body size (limits.bodyBytes), timeouts in ms to send the headers,
+    // the next body bytes and to read the next response bytes (timeout.header, timeout.body, timeout.write) and
+    // the lowest transfer rate in bytes per second (limits.minRate, 0 to disable it)
+    private static final int DEFAULT_MAX_REQUEST_LINE = 8 * 1024;
+    private static final int DEFAULT_MAX_HEADER_COUNT = 100;
+    private static final int DEFAULT_MAX_HEADER_BYTES = 16 * 1024;
+    private static final long DEFAULT_MAX_BODY_BYTES = 1024 * 1024 * 1024;
+    private static final int DEFAULT_HEADER_TIMEOUT = 10000;
+    private static final int DEFAULT_BODY_TIMEOUT = 30000;
+    private static final int DEFAULT_WRITE_TIMEOUT = 30000;
+    private static final long DEFAULT_MIN_RATE = 256;
+
+    // sockets: acceptor threads, each with its own listening socket bound with SO_REUSEPORT (acceptors), accept
+    // backlog (socket.backlog), TCP_NODELAY (socket.noDelay), the buffer sizes of the accepted sockets
+    // (socket.sendBuffer, socket.receiveBuffer, 0 for the defaults) and whether the port is shared with the
+    // server this one replaces (socket.handover)
+    private static final int DEFAULT_NO_ACCEPTORS = 1;
+    private static final int DEFAULT_BACKLOG = 1024;
+
+    // TLS: the port of the TLS listeners (tls.port, 0 for none), the keystore with the certificate and key
+    // (tls.keyStore, tls.keyStoreType, tls.keyStorePassword), the enabled versions (tls.protocols), the size and
+    // lifetime in seconds of the session cache (tls.sessionCacheSize, tls.sessionTimeout) and whether stateless
+    // session tickets are issued (tls.sessionTickets)
+    private static final String DEFAULT_KEYSTORE_TYPE = "PKCS12";
+    private static final String DEFAULT_TLS_PROTOCOLS = "TLSv1.3,TLSv1.2";
+    private static final int DEFAULT_SESSION_CACHE_SIZE = 20480;
+    private static final int DEFAULT_SESSION_TIMEOUT = 86400;
+
+    // access log: the file (accessLog.file, none to disable it), the format (accessLog.format=common|combined|
+    // json), the records each ring holds until the writer drains it (accessLog.bufferSize), the milliseconds
+    // between two writes (accessLog.flushMillis), the size at which the file is rotated (accessLog.maxBytes, 0 to
+    // never rotate it) and the rotated files kept (accessLog.maxFiles)
+    private static final int DEFAULT_ACCESS_LOG_BUFFER_SIZE = 4096;
+    private static final long DEFAULT_ACCESS_LOG_FLUSH_MILLIS = 1000;
+    private static final long DEFAULT_ACCESS_LOG_MAX_BYTES = 64 * 1024 * 1024;
+    private static final int DEFAULT_ACCESS_LOG_MAX_FILES = 5;
+
+    // shutdown: the milliseconds the server stays unready, still accepting connections, before it closes its
+    // listening sockets (drain.delay, for the load balancer to see it leave) and the longest drain of the open
+    // connections (drain.timeout), after which they are closed
+    private static final long DEFAULT_DRAIN_DELAY = 0;
+    private static final long DEFAULT_DRAIN_TIMEOUT = 30000;
+
+    // level of the log (log.level=error|warn|info|debug)
+    private static final String DEFAULT_LOG_LEVEL = "info";
+
+    // seconds between two checks of the configuration file for changes (config.reloadSeconds, 0 to disable)
+    private static final int DEFAULT_RELOAD_SECONDS = 5;
+
+    // the settings which need a restart to change (the listening sockets, the threads, the document root)
+    private static final String[] RESTART_KEYS = {"port", "workers", "root", "errorPages", "mode", "nio.eventLoops",
+            "write.durability", "write.groupCommitMillis", "queue.size", "admission.adaptive", "acceptors",
+            "socket.backlog", "socket.noDelay", "socket.sendBuffer", "socket.receiveBuffer", "config.reloadSeconds",
+            "tls.port", "tls.keyStore", "tls.keyStoreType", "tls.keyStorePassword", "tls.protocols",
+            "tls.sessionCacheSize", "tls.sessionTimeout", "tls.sessionTickets", "index.enabled", "accessLog.file",
+            "accessLog.format", "accessLog.bufferSize", "accessLog.flushMillis", "accessLog.maxBytes",
+            "accessLog.maxFiles", "socket.handover"};
+
+    private final Properties file;
+    private final Map<String, String> environment;
+    private final String[] args;
+
+    final File source;
+    final long sourceModified;
+
+    final int port;
+    final int workers;
+    final String root;
+    final String errorPages;
+    final String threadModel;
+    final int noEventLoops;
+    final int idleTimeout;
+    final int maxRequests;
+    final long cacheBytes;
+    final long cacheEntryBytes;
+    final long mmapBytes;
+    final long mmapMinBytes;
+    final boolean indexed;
+    final String durability;
+    final long groupCommitMillis;
+    final boolean echoWrites;
+    final long compressionMinBytes;
+    final int maxConcurrentStreams;
+    final int maxHttp2Connections;
+    final int maxConnections;
+    final int queueSize;
+    final boolean adaptiveAdmission;
+    final int retryAfter;
+    final int maxRequestLine;
+    final int maxHeaderCount;
+    final int maxHeaderBytes;
+    final long maxBodyBytes;
+    final int headerTimeout;
+    final int bodyTimeout;
+    final int writeTimeout;
+    final long minRate;
+    final int noAcceptors;
+    final int backlog;
+    final boolean noDelay;
+    final int sendBuffer;
+    final int receiveBuffer;
+    final boolean handover;
+    final int tlsPort;
+    final String keyStore;
+    final String keyStoreType;
+    final String keyStorePassword;
+    final String[] tlsProtocols;
+    final int sessionCacheSize;
+    final int sessionTimeout;
+    final boolean sessionTickets;
+    final String accessLogFile;
+    final String accessLogFormat;
+    final int accessLogBufferSize;
+    final long accessLogFlushMillis;
+    final long accessLogMaxBytes;
+    final int accessLogMaxFiles;
+    final long drainDelay;
+    final long drainTimeout;
+    final int logLevel;
+    final int reloadSeconds;
+
+    private Configuration(String[] args, Map<String, String> environment) throws IOException {
+        this.args = args;
+        this.environment = environment;
+        this.file = new Properties();
+
+        String path = this.lookUp(Configuration.CONFIG_KEY, false);
+        this.source = new File(path != null ? path : Configuration.DEFAULT_FILE);
+        if (path != null || this.source.isFile()) {
+            try (InputStream input = new FileInputStream(this.source)) {
+                this.file.load(input);
+            }
+        }
+        this.sourceModified = this.source.lastModified();
+
+        this.port = this.getInt("port", -1);
+        this.workers = this.getInt("workers", -1);
+
+        if (this.port < 0 || this.workers < 0) {
+            throw new IllegalArgumentException("Usage: java webserver.WebServer <port no> <maximum no of workers> "
+                    + "(or port and workers set in the configuration)");
+        }
+        Configuration.check(this.port >= Configuration.MINIMUM_PORT_NUMBER,
+                "Port number should be greater or equal to 1024");
+        Configuration.check(this.workers > 0, "Maximum number of workers should be positive");
+
+        this.root = this.getString("root", Configuration.DEFAULT_ROOT);
+        this.errorPages = this.getString("errorPages", Configuration.DEFAULT_ERROR_PAGES);
+
+        this.idleTimeout = this.getInt("keepAlive.timeout", Configuration.DEFAULT_IDLE_TIMEOUT);
+        this.maxRequests = this.getInt("keepAlive.maxRequests", Configuration.DEFAULT_MAX_REQUESTS);
+        Configuration.check(this.idleTimeout > 0 && this.maxRequests > 0,
+                "Keep-alive timeout and maximum number of requests should be positive");
+
+        this.threadModel = this.getString("mode", ThreadModels.BLOCKING);
+        this.noEventLoops = this.getInt("nio.eventLoops", Configuration.DEFAULT_NO_EVENT_LOOPS);
+        Configuration.check(this.threadModel.equals(ThreadModels.BLOCKING)
+                        || this.threadModel.equals(ThreadModels.NIO) || this.threadModel.equals(ThreadModels.VIRTUAL),
+                "Thread model should be one of: blocking, nio, virtual");
+        Configuration.check(this.noEventLoops > 0, "Number of event loops should be positive");
+
+        this.cacheBytes = this.getLong("cache.maxBytes", Configuration.DEFAULT_CACHE_BYTES);
+        this.cacheEntryBytes = this.getLong("cache.maxEntryBytes", Configuration.DEFAULT_CACHE_ENTRY_BYTES);
+        Configuration.check(this.cacheBytes >= 0 && this.cacheEntryBytes >= 0, "Cache sizes should not be negative");
+
+        this.mmapBytes = this.getLong("mmap.maxBytes", Configuration.DEFAULT_MMAP_BYTES);
+        this.mmapMinBytes = this.getLong("mmap.minBytes", Configuration.DEFAULT_MMAP_MIN_BYTES);
+        Configuration.check(this.mmapBytes >= 0 && this.mmapMinBytes >= 0,
+                "Mapped file sizes should not be negative");
+
+        this.indexed = this.getBoolean("index.enabled", true);
+
+        this.durability = this.getString("write.durability", Durability.NONE);
+        this.groupCommitMillis = this.getLong("write.groupCommitMillis", Configuration.DEFAULT_GROUP_COMMIT_MILLIS);
+        this.echoWrites = this.getBoolean("write.echo", true);
+        Configuration.check(this.durability.equals(Durability.NONE) || this.durability.equals(Durability.REQUEST)
+                || this.durability.equals(Durability.GROUP), "Write durability should be one of: none, request, group");
+        Configuration.check(this.groupCommitMillis >= 0, "Group commit window should not be negative");
+
+        this.compressionMinBytes = this.getLong("compression.minBytes", Configuration.DEFAULT_COMPRESSION_MIN_BYTES);
+
+        this.maxConcurrentStreams = this.getInt("http2.maxConcurrentStreams",
+                Configuration.DEFAULT_MAX_CONCURRENT_STREAMS);
+        Configuration.check(this.maxConcurrentStreams >= 0, "Maximum number of HTTP/2 streams should not be negative");
+        this.maxHttp2Connections = this.getInt("http2.maxConnections", Configuration.DEFAULT_MAX_HTTP2_CONNECTIONS);
+        Configuration.check(this.maxHttp2Connections > 0, "Maximum number of HTTP/2 connections should be positive");
+
+        this.maxConnections = this.getInt("maxConnections", Configuration.DEFAULT_MAX_CONNECTIONS);
+        this.queueSize = this.getInt("queue.size", Configuration.DEFAULT_QUEUE_SIZE);
+        this.adaptiveAdmission = this.getBoolean("admission.adaptive", true);
+        this.retryAfter = this.getInt("admission.retryAfter", Configuration.DEFAULT_RETRY_AFTER);
+        Configuration.check(this.maxConnections > 0 && this.queueSize > 0,
+                "Maximum number of connections and queue size should be positive");
+        Configuration.check(this.retryAfter >= 0, "Retry-After should not be negative");
+
+        this.maxRequestLine = this.getInt("limits.requestLine", Configuration.DEFAULT_MAX_REQUEST_LINE);
+        this.maxHeaderCount = this.getInt("limits.headerCount", Configuration.DEFAULT_MAX_HEADER_COUNT);
+        this.maxHeaderBytes = this.getInt("limits.headerBytes", Configuration.DEFAULT_MAX_HEADER_BYTES);
+        this.maxBodyBytes = this.getLong("limits.bodyBytes", Configuration.DEFAULT_MAX_BODY_BYTES);
+        this.headerTimeout = this.getInt("timeout.header", Configuration.DEFAULT_HEADER_TIMEOUT);
+        this.bodyTimeout = this.getInt("timeout.body", Configuration.DEFAULT_BODY_TIMEOUT);
+        this.writeTimeout = this.getInt("timeout.write", Configuration.DEFAULT_WRITE_TIMEOUT);
+        this.minRate = this.getLong("limits.minRate", Configuration.DEFAULT_MIN_RATE);
+        Configuration.check(this.maxRequestLine > 0 && this.maxHeaderCount > 0 && this.maxHeaderBytes > 0
+                && this.maxBodyBytes >= 0, "Request size limits should be positive");
+        Configuration.check(this.headerTimeout > 0 && this.bodyTimeout > 0 && this.writeTimeout > 0
+                && this.minRate >= 0, "Client timeouts should be positive and the minimum rate should not be negative");
+
+        this.noAcceptors = this.getInt("acceptors", Configuration.DEFAULT_NO_ACCEPTORS);
+        this.backlog = this.getInt("socket.backlog", Configuration.DEFAULT_BACKLOG);
+        this.noDelay = this.getBoolean("socket.noDelay", true);
+        this.sendBuffer = this.getInt("socket.sendBuffer", 0);
+        this.receiveBuffer = this.getInt("socket.receiveBuffer", 0);
+        this.handover = this.getBoolean("socket.handover", false);
+        Configuration.check(this.noAcceptors > 0 && this.backlog > 0,
+                "Number of acceptors and backlog should be positive");
+        Configuration.check(this.sendBuffer >= 0 && this.receiveBuffer >= 0,
+                "Socket buffer sizes should not be negative");
+
+        this.tlsPort = this.getInt("tls.port", 0);
+        this.keyStore = this.getString("tls.keyStore", null);
+        this.keyStoreType = this.getString("tls.keyStoreType", Configuration.DEFAULT_KEYSTORE_TYPE);
+        this.keyStorePassword = this.getString("tls.keyStorePassword", "");
+        this.tlsProtocols = this.getString("tls.protocols", Configuration.DEFAULT_TLS_PROTOCOLS).split("\\s*,\\s*");
+        this.sessionCacheSize = this.getInt("tls.sessionCacheSize", Configuration.DEFAULT_SESSION_CACHE_SIZE);
+        this.sessionTimeout = this.getInt("tls.sessionTimeout", Configuration.DEFAULT_SESSION_TIMEOUT);
+        this.sessionTickets = this.getBoolean("tls.sessionTickets", true);
+        Configuration.check(this.tlsPort == 0 || (this.tlsPort >= Configuration.MINIMUM_PORT_NUMBER
+                && this.tlsPort != this.port), "TLS port should be 0 or another port greater or equal to 1024");
+        Configuration.check(this.tlsPort == 0 || this.keyStore != null, "The TLS port needs tls.keyStore");
+        Configuration.check(this.sessionCacheSize >= 0 && this.sessionTimeout >= 0,
+                "TLS session cache size and timeout should not be negative");
+
+        this.accessLogFile = this.getString("accessLog.file", "");
+        this.accessLogFormat = this.getString("accessLog.format", AccessLog.COMBINED);
+        this.accessLogBufferSize = this.getInt("accessLog.bufferSize", Configuration.DEFAULT_ACCESS_LOG_BUFFER_SIZE);
+        this.accessLogFlushMillis = this.getLong("accessLog.flushMillis",
+                Configuration.DEFAULT_ACCESS_LOG_FLUSH_MILLIS);
+        this.accessLogMaxBytes = this.getLong("accessLog.maxBytes", Configuration.DEFAULT_ACCESS_LOG_MAX_BYTES);
+        this.accessLogMaxFiles = this.getInt("accessLog.maxFiles", Configuration.DEFAULT_ACCESS_LOG_MAX_FILES);
+        Configuration.check(this.accessLogFormat.equals(AccessLog.COMMON) || this.accessLogFormat.equals(
+                AccessLog.COMBINED) || this.accessLogFormat.equals(AccessLog.JSON),
+                "Access log format should be one of: common, combined, json");
+        Configuration.check(this.accessLogBufferSize > 0 && this.accessLogFlushMillis > 0
+                && this.accessLogMaxFiles > 0, "Access log buffer size, flush interval and files should be positive");
+        Configuration.check(this.accessLogMaxBytes >= 0, "Access log rotation size should not be negative");
+
+        this.drainDelay = this.getLong("drain.delay", Configuration.DEFAULT_DRAIN_DELAY);
+        this.drainTimeout = this.getLong("drain.timeout", Configuration.DEFAULT_DRAIN_TIMEOUT);
+        Configuration.check(this.drainDelay >= 0 && this.drainTimeout >= 0,
+                "Drain delay and timeout should not be negative");
+
+        this.logLevel = Log.parseLevel(this.getString("log.level", Configuration.DEFAULT_LOG_LEVEL));
+        Configuration.check(this.logLevel >= 0, "Log level should be one of: error, warn, info, debug");
+
+        this.reloadSeconds = this.getInt("config.reloadSeconds", Configuration.DEFAULT_RELOAD_SECONDS);
+        Configuration.check(this.reloadSeconds >= 0, "Configuration reload period should not be negative");
+    }
+
+
+    // Method loading and validating the configuration; an invalid one is reported with an
+    // IllegalArgumentException, a configuration file which cannot be read with an IOException
+    static Configuration load(String[] args) throws IOException {
+        return new Configuration(args, System.getenv());
+    }
+
+
+    // Method building the server-wide objects of the configuration
+    ServerContext newContext() {
+        return new ServerContext(this.root, this.errorPages, this.idleTimeout, this.maxRequests,
+                new StaticCache(this.cacheBytes, this.cacheEntryBytes),
+                new MappedFiles(this.mmapBytes, this.mmapMinBytes),
+                new Durability(this.durability, this.groupCommitMillis),
+                new AdmissionControl(this.maxConnections, this.maxHttp2Connections, this.workers, this.queueSize,
+                        this.adaptiveAdmission, this.retryAfter),
+                new ClientLimits(this.maxRequestLine, this.maxHeaderCount, this.maxHeaderBytes, this.maxBodyBytes,
+                        this.headerTimeout, this.bodyTimeout, this.writeTimeout, this.minRate),
+                new AccessLog(this.accessLogFile, this.accessLogFormat, this.accessLogBufferSize,
+                        this.accessLogFlushMillis, this.accessLogMaxBytes, this.accessLogMaxFiles),
+                new Lifecycle(this.drainDelay, this.drainTimeout),
+                this.echoWrites, this.compressionMinBytes, this.maxConcurrentStreams, this.indexed);
+    }
+
+
+    SocketSettings newSocketSettings() {
+        return new SocketSettings(this.noAcceptors, this.backlog, this.noDelay, this.sendBuffer, this.receiveBuffer,
+                this.handover);
+    }
+
+
+    // Method loading the keystore of the TLS port; null is returned if the server has none, an IOException
+    // thrown if the keystore cannot be used
+    TlsTermination newTls(ServerContext context) throws IOException {
+        if (this.tlsPort == 0) {
+            return null;
+        }
+        return new TlsTermination(this.tlsPort, this.keyStore, this.keyStoreType, this.keyStorePassword,
+                this.tlsProtocols, this.sessionCacheSize, this.sessionTimeout, this.sessionTickets, context);
+    }
+
+
+    // Method applying the safe settings to the running server (the open connections are kept, the new values
+    // apply from their next request or read); returns the keys of the changed settings which need a restart
+    List<String> apply(ServerContext context, Configuration previous) {
+        List<String> restartKeys = new ArrayList<>();
+
+        Log.setLevel(this.logLevel);
+        context.reconfigure(this.idleTimeout, this.maxRequests, this.echoWrites, this.compressionMinBytes,
+                this.maxConcurrentStreams);
+        context.cache.resize(this.cacheBytes, this.cacheEntryBytes);
+        context.mappedFiles.resize(this.mmapBytes, this.mmapMinBytes);
+        context.admission.reconfigure(this.maxConnections, this.maxHttp2Connections, this.retryAfter);
+        context.lifecycle.reconfigure(this.drainDelay, this.drainTimeout);
+        context.limits.update(this.maxRequestLine, this.maxHeaderCount, this.maxHeaderBytes, this.maxBodyBytes,
+                this.headerTimeout, this.bodyTimeout, this.writeTimeout, this.minRate);
+
+        for (String key : Configuration.RESTART_KEYS) {
+            if (!String.valueOf(this.lookUp(key, true)).equals(String.valueOf(previous.lookUp(key, true)))) {
+                restartKeys.add(key);
+            }
+        }
+        return restartKeys;
+    }
+
+
+    // Method returning the raw value of a setting from the highest priority source having it, null if none has
+    // it; the configuration file is skipped while it is being located
+    private String lookUp(String key, boolean inFile) {
+        String value = null;
+
+        if (key.equals("port") && this.args.length > 0) {
+            return this.args[0];
+        }
+        if (key.equals("workers") && this.args.length > 1) {
+            return this.args[1];
+        }
+
+        if (System.getProperty(Configuration.PROPERTY_PREFIX + key) != null) {
+            value = System.getProperty(Configuration.PROPERTY_PREFIX + key);
+        } else if (this.environment.get(Configuration.environmentName(key)) != null) {
+            value = this.environment.get(Configuration.environmentName(key));
+        } else if (inFile) {
+            value = this.file.getProperty(key);
+        }
+        return value != null ? value.trim() : null;
+    }
+
+
+    // Method returning the environment variable of a key: cache.maxBytes is WEBSERVER_CACHE_MAXBYTES
+    private static String environmentName(String key) {
+        return Configuration.ENVIRONMENT_PREFIX + key.toUpperCase().replace('.', '_');
+    }
+
+
+    private String getString(String key, String defaultValue) {
+        String value = this.lookUp(key, true);
+
+        return value != null ? value : defaultValue;
+    }
+
+
+    private int getInt(String key, int defaultValue) {
+        String value = this.lookUp(key, true);
+
+        try {
+            return value != null ? Integer.parseInt(value) : defaultValue;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(key + " should be an integer, not \"" + value + "\"");
+        }
+    }
+
+
+    private long getLong(String key, long defaultValue) {
+        String value = this.lookUp(key, true);
+
+        try {
+            return value != null ? Long.parseLong(value) : defaultValue;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(key + " should be an integer, not \"" + value + "\"");
+        }
+    }
+
+
+    private boolean getBoolean(String key, boolean defaultValue) {
+        String value = this.lookUp(key, true);
+
+        if (value == null) {
+            return defaultValue;
+        }
+        if (!value.equalsIgnoreCase("true") && !value.equalsIgnoreCase("false")) {
+            throw new IllegalArgumentException(key + " should be true or false, not \"" + value + "\"");
+        }
+        return Boolean.parseBoolean(value);
+    }
+
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new IllegalArgumentException(message);
+        }
+    }
+}
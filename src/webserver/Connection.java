@@ -1,62 +1,537 @@
 package webserver;
 
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSocket;
 import java.io.*;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
 
 /*
-    Class implementing the connection behaviour
+    Class implementing the connection behaviour; a connection accepted on the TLS port runs the TLS handshake
+    first, then reads and writes through the TLS socket layered over the accepted one
  */
-public class Connection implements Runnable {
+public class Connection implements Runnable, ClientLimits.Watched, Lifecycle.Drained {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    // a file is sent in slices of this size, so the watchdog sees the progress of a long transfer
+    private static final long TRANSFER_SLICE = 256 * 1024;
 
     private final Socket connectionSocket;
-    private final String rootDirectory;
+    private final TlsTermination tls;
+    private final ExecutorService workersPool;
+    private final ServerContext context;
+    private final ClientLimits limits;
+    private final HTTPParser parser;
 
-    private BufferedReader inputBuffer;
-    private DataOutputStream outputBuffer;
+    private SSLSocket tlsSocket;
+    private InputStream inputStream;
+    private ByteBuffer inputBuffer;
+    private GatheringByteChannel outputChannel;
+    private ResponseHeaders headers;
+
+    // the headers and a single body buffer are sent together by a gathering write, reusing this array
+    private final ByteBuffer[] headersAndBody;
 
     private Map<String, String> responseData;
 
-    Connection(Socket socket, String dir) {
+    // time spent in the parser for the current request (the waits for the client's bytes are left out)
+    private long parseNanos;
+
+    // start and bytes of the streamed request body being received, checked against the minimum rate
+    private long bodyStart;
+    private long bodyBytes;
+
+    // set when the client has sent the HTTP/2 preface instead of a request
+    private boolean prefaceReceived;
+
+    // set once the socket has been handed over to an HTTP/2 connection, which closes it
+    private boolean handedOver;
+
+    // progress of the response being written (0 when none is), checked by the watchdog from another thread
+    private volatile long writingSince;
+    private volatile long lastWrite;
+    private volatile long writtenBytes;
+
+    // set while the connection waits for the first byte of a request, so a drain closes it
+    private volatile boolean idle;
+
+    Connection(Socket socket, TlsTermination tls, ExecutorService workersPool, ServerContext context) {
         this.connectionSocket = socket;
-        this.rootDirectory = dir;
-        this.responseData = new HashMap<>();
+        this.tls = tls;
+        this.workersPool = workersPool;
+        this.context = context;
+        this.limits = context.limits;
+        this.parser = new HTTPParser(context.limits, context.accessLog.logsHeaders());
+        this.headersAndBody = new ByteBuffer[2];
     }
 
     @Override
     public void run() {
-        System.out.println(this.connectionSocket + " has started working.");
+        Log.debug(this.connectionSocket, " has started working.");
+        this.context.metrics.connectionOpened();
+        this.limits.watch(this);
+        this.context.lifecycle.register(this);
 
         Map<String, String> requestData;
+        RequestBody requestBody;
+        Helper helper;
+        int servedRequests = 0;
+        boolean keepAlive = true;
+        long actionStart;
+        long writeStart;
 
         try {
-            // get the input and output stream
-            this.inputBuffer = new BufferedReader(new InputStreamReader(this.connectionSocket.getInputStream()));
-            this.outputBuffer = new DataOutputStream(this.connectionSocket.getOutputStream());
-
-            // parse the http request
-            requestData = HTTPParser.parseRequest(this.inputBuffer);
-            // apply the requested operations and filling in the requestData
-            new Helper(requestData, this.responseData, this.rootDirectory).applyAction();
-            // send the parsed response to the client
-            this.outputBuffer.write(HTTPParser.createResponse(this.responseData));
-            this.outputBuffer.flush();
-
-            // close the streams and the socket
-            this.inputBuffer.close();
-            this.outputBuffer.close();
-            this.connectionSocket.close();
+            // get the input and output stream, those of the TLS socket once its handshake is done
+            if (this.tls != null) {
+                this.tlsSocket = this.tls.handshake(this.connectionSocket);
+                this.inputStream = this.tlsSocket.getInputStream();
+                this.outputChannel = TlsTermination.outputOf(this.tlsSocket);
+            } else {
+                this.inputStream = this.connectionSocket.getInputStream();
+                this.outputChannel = this.connectionSocket.getChannel();
+            }
+            this.inputBuffer = ByteBuffer.allocate(Connection.BUFFER_SIZE);
+            this.headers = new ResponseHeaders(this.context.date);
+
+            // a client which chose h2 with ALPN speaks HTTP/2 from its first byte
+            if (this.tlsSocket != null && TlsTermination.HTTP_2.equals(this.tlsSocket.getApplicationProtocol())) {
+                this.handOver(null, null);
+                return;
+            }
+
+            // serve requests on the same socket until one of the sides asks for the connection to be closed
+            while (keepAlive) {
+                // parse the http request (false means the client closed the connection)
+                if (!this.readRequest(servedRequests == 0)) {
+                    break;
+                }
+                requestData = this.parser.getRequest();
+
+                // a client speaking HTTP/2 (from the start or after asking to upgrade, which only a cleartext
+                // connection can) is served by its own thread
+                byte[] upgradeSettings = this.tlsSocket == null
+                        ? Http2Connection.getUpgradeSettings(requestData, this.parser.hasBody()) : null;
+                if (this.prefaceReceived || (upgradeSettings != null && this.context.maxConcurrentStreams > 0)) {
+                    this.flushHeaders();
+                    this.handOver(this.prefaceReceived ? null : requestData, upgradeSettings);
+                    break;
+                }
+                servedRequests++;
+
+                keepAlive = Connection.isKeepAlive(requestData, servedRequests, this.context.maxRequests);
+
+                // apply the requested operations and filling in the requestData
+                actionStart = System.nanoTime();
+                this.responseData = new HashMap<>();
+                this.bodyStart = 0;
+                requestBody = this.parser.getBody(this.inputBuffer, this::receiveBody);
+                helper = new Helper(requestData, requestBody, this.responseData, this.context);
+                helper.applyAction();
+
+                // the part of a streamed body which was not read cannot be told apart from the next request
+                if (requestBody != null && !requestBody.isFinished()) {
+                    keepAlive = false;
+                }
+                // a body compressed while it is sent has no length, if it is not chunked closing the connection
+                // marks its end
+                if (helper.getResponseEncoder() != null && !this.responseData.containsKey("Transfer-Encoding")) {
+                    keepAlive = false;
+                }
+                // a draining server closes the connection after this response
+                if (this.context.lifecycle.isDraining()) {
+                    keepAlive = false;
+                }
+                this.responseData.put("Connection", keepAlive ? "keep-alive" : "close");
+                writeStart = System.nanoTime();
+                this.startWriting();
 
+                // encode the response headers (or the whole pre-rendered error response) after those not sent
+                // yet, then send them to the client followed by the cached or file content if any
+                if (helper.getErrorPage() != null) {
+                    this.headers.append(helper.getErrorPage(), this.responseData, helper.hasErrorBody());
+                } else {
+                    this.headers.append(this.responseData);
+                }
+                try {
+                    if (helper.getResponseBuffers() != null) {
+                        this.writeBody(helper.getResponseBuffers());
+                    } else if (helper.getResponseFile() != null) {
+                        this.flushHeaders();
+                        this.transferBody(helper.getResponseFile(), helper.getResponseFilePosition(),
+                                helper.getResponseFileLength());
+                    } else if (helper.getResponseEncoder() != null) {
+                        this.flushHeaders();
+                        this.writeEncoded(helper.getResponseEncoder());
+                    } else if (!keepAlive
+                            || (this.inputBuffer.position() == 0 && this.inputStream.available() == 0)) {
+                        // pipelined requests already waiting in the buffer are answered before flushing
+                        this.flushHeaders();
+                    }
+                } finally {
+                    // the mapping the body was sent from can be unmapped once no response uses it
+                    if (helper.getResponseMapping() != null) {
+                        helper.getResponseMapping().close();
+                    }
+                }
+                this.writingSince = 0;
+
+                long writeEnd = System.nanoTime();
+                this.context.metrics.recordRequest(requestData.get("Method"), this.responseData.get("Code"),
+                        this.parseNanos, writeStart - actionStart, writeEnd - writeStart);
+                if (this.context.accessLog.isEnabled()) {
+                    this.context.accessLog.log(this.connectionSocket.getInetAddress(), requestData,
+                            this.responseData.get("Code"), helper.getBodyLength(),
+                            this.parseNanos + writeEnd - actionStart);
+                }
+            }
+
+            this.flushHeaders();
+
+            // a TLS connection ends with close_notify, so the client can tell its end from a truncation
+            if (this.tlsSocket != null) {
+                this.startWriting();
+                this.tlsSocket.shutdownOutput();
+                this.writingSince = 0;
+            }
+
+        } catch (SocketTimeoutException e) {
+            // the idle or the header timeout expired, the connection is closed below
+        } catch (SSLException e) {
+            // a failed handshake or a corrupted record
+            Log.debug(this.connectionSocket, " TLS error: " + e.getMessage());
         } catch (IOException e) {
+            Log.warn("Connection error on " + this.connectionSocket);
+
+        } finally {
+            this.limits.unwatch(this);
+            this.context.lifecycle.unregister(this);
+
+            // close the streams and the socket, unless the HTTP/2 connection owns them now (the TLS socket is
+            // not closed itself, it would wait to send close_notify to a client which may not read it)
+            if (!this.handedOver) {
+                try {
+                    if (this.inputStream != null && this.tlsSocket == null) {
+                        this.inputStream.close();
+                    }
+                    this.connectionSocket.close();
+                } catch (IOException f) { }
+
+                this.context.metrics.connectionClosed();
+                this.context.admission.connectionClosed();
+                Log.debug(this.connectionSocket, " has stopped after " + servedRequests + " requests.");
+            }
+        }
+    }
+
+
+    // Method handing the socket, and the bytes received after the preface or the upgrade request, over to an
+    // HTTP/2 connection running on a thread of its own: this worker is released
+    private void handOver(Map<String, String> upgradeRequest, byte[] upgradeSettings) {
+        this.inputBuffer.flip();
+        new Http2Connection(this.connectionSocket, this.tlsSocket, this.inputBuffer, upgradeRequest,
+                upgradeSettings, this.workersPool, this.context).start();
+        this.handedOver = true;
+    }
+
+
+    // Method reading from the socket until the parser has a complete request; returns false if the client
+    // closed the connection (the buffer is kept in write mode between the calls). The first bytes of a connection
+    // are compared with the HTTP/2 preface before they are parsed
+    private boolean readRequest(boolean firstRequest) throws IOException {
+        int count;
+        long parseStart;
+        boolean complete;
+        long requestStart = 0;
+        int preface = firstRequest && this.context.maxConcurrentStreams > 0
+                ? Http2Connection.PARTIAL_PREFACE : Http2Connection.NO_PREFACE;
+
+        this.parser.reset();
+        this.parseNanos = 0;
+        this.inputBuffer.flip();
+
+        while (true) {
+            if (preface == Http2Connection.PARTIAL_PREFACE) {
+                preface = Http2Connection.matchPreface(this.inputBuffer);
+            }
+            if (preface == Http2Connection.FULL_PREFACE) {
+                this.prefaceReceived = true;
+                break;
+            }
+
+            parseStart = System.nanoTime();
+            complete = preface == Http2Connection.NO_PREFACE && this.parser.parse(this.inputBuffer);
+            this.parseNanos += System.nanoTime() - parseStart;
+            if (complete) {
+                break;
+            }
+
+            this.inputBuffer = HTTPParser.compact(this.inputBuffer);
+
+            // an idle keep-alive connection is closed after the idle timeout without a new request; once its
+            // first byte has arrived, the headers (and a body small enough to be parsed with them) have to
+            // arrive within the header timeout, however slowly the client trickles them
+            if (requestStart == 0 && this.parser.isStarted(this.inputBuffer)) {
+                requestStart = System.currentTimeMillis();
+            }
+            this.connectionSocket.setSoTimeout(requestStart == 0 ? this.context.idleTimeout
+                    : (int) Math.max(1, requestStart + this.limits.headerTimeout - System.currentTimeMillis()));
+
+            // a draining server closes the idle connection: the flag is set before the state is read, and the
+            // drain changes the state before it reads the flag, so one of them sees the other
+            if (requestStart == 0) {
+                this.idle = true;
+                if (this.context.lifecycle.isDraining()) {
+                    this.idle = false;
+                    return false;
+                }
+            }
+
             try {
-                this.inputBuffer.close();
-                this.outputBuffer.close();
-                this.connectionSocket.close();
-            } catch (IOException f) { }
+                count = this.inputStream.read(this.inputBuffer.array(), this.inputBuffer.position(),
+                        this.inputBuffer.remaining());
+            } catch (SocketTimeoutException e) {
+                if (requestStart != 0) {
+                    this.limits.headerTimeout();
+                }
+                throw e;
+            } finally {
+                this.idle = false;
+            }
+            if (count < 0) {
+                return false;
+            }
+
+            this.inputBuffer.position(this.inputBuffer.position() + count);
+            this.inputBuffer.flip();
+        }
+
+        this.inputBuffer = HTTPParser.compact(this.inputBuffer);
+        return true;
+    }
+
+
+    // Method reading more bytes of a streamed request body from the socket (called by the Helper through the
+    // RequestBody), after sending 100 Continue if the client waits for it; returns false if the client closed
+    // the connection. A client which stops sending the body, or sends it below the minimum rate, fails the
+    // request with a SocketTimeoutException (408 Request Timeout)
+    private boolean receiveBody(ByteBuffer buffer, boolean sendContinue) throws IOException {
+        int count;
+        long now;
+        long rateDeadline;
+        boolean rateBound;
+
+        if (sendContinue) {
+            this.headers.append(HTTPParser.CONTINUE);
+            this.flushHeaders();
+        }
+        if (this.bodyStart == 0) {
+            this.bodyStart = System.currentTimeMillis();
+            this.bodyBytes = 0;
+        }
 
+        // the read waits for the body timeout, or less if the body would fall below the minimum rate before
+        now = System.currentTimeMillis();
+        rateDeadline = this.limits.rateDeadline(this.bodyBytes, this.bodyStart);
+        rateBound = rateDeadline - now < this.limits.bodyTimeout;
+        this.connectionSocket.setSoTimeout(rateBound
+                ? (int) Math.max(1, rateDeadline - now) : this.limits.bodyTimeout);
+
+        try {
+            count = this.inputStream.read(buffer.array(), buffer.position(), buffer.remaining());
+        } catch (SocketTimeoutException e) {
+            if (rateBound) {
+                this.limits.belowMinRate();
+            } else {
+                this.limits.bodyTimeout();
+            }
+            throw e;
+        }
+        if (count < 0) {
+            return false;
+        }
+
+        buffer.position(buffer.position() + count);
+        this.bodyBytes += count;
+
+        if (this.limits.isTooSlow(this.bodyBytes, this.bodyStart, System.currentTimeMillis())) {
+            this.limits.belowMinRate();
+            throw new SocketTimeoutException("The request body is sent below the minimum rate.");
+        }
+        return true;
+    }
+
+
+    // Method marking the start of a response, whose progress is followed by the watchdog
+    private void startWriting() {
+        long now = System.currentTimeMillis();
+
+        this.writtenBytes = 0;
+        this.lastWrite = now;
+        this.writingSince = now;
+    }
+
+
+    // Method recording the bytes of the response written by the last write
+    private void wrote(long count) {
+        if (count > 0) {
+            this.writtenBytes += count;
+            this.lastWrite = System.currentTimeMillis();
+        }
+    }
+
+
+    // Method called by the server thread when it drains: shutting the input down ends the read of an idle
+    // connection as if the client had closed it; a busy one closes after its response
+    @Override
+    public void drain() {
+        if (this.idle) {
+            try {
+                this.connectionSocket.shutdownInput();
+            } catch (IOException e) { }
+        }
+    }
+
+
+    // Method called by the server thread at the end of the drain timeout
+    @Override
+    public void abort() {
+        try {
+            this.connectionSocket.shutdownOutput();
+            this.connectionSocket.close();
+        } catch (IOException e) { }
+    }
+
+
+    // Method called by the watchdog thread: a response whose client has read nothing for the write timeout, or
+    // reads below the minimum rate, is abandoned; shutting the output down fails the blocked write (closing
+    // the socket alone would wait for it)
+    @Override
+    public void checkWrite(long now) {
+        long start = this.writingSince;
+
+        if (start == 0) {
+            return;
+        }
+
+        if (now - this.lastWrite > this.limits.writeTimeout) {
+            this.limits.writeTimeout();
+        } else if (this.limits.isTooSlow(this.writtenBytes, start, now)) {
+            this.limits.belowMinRate();
+        } else {
+            return;
+        }
+
+        this.writingSince = 0;
+        try {
+            this.connectionSocket.shutdownOutput();
+            this.connectionSocket.close();
+        } catch (IOException e) { }
+    }
+
+
+    // Method writing the pending headers (of this response and of the pipelined ones answered before it)
+    private void flushHeaders() throws IOException {
+        ByteBuffer pending;
+
+        if (this.headers.isEmpty()) {
+            return;
+        }
+
+        pending = this.headers.flip();
+        while (pending.hasRemaining()) {
+            this.wrote(this.outputChannel.write(pending));
+        }
+        this.headers.clear();
+    }
+
+
+    // Method sending the pending headers and the cached content (off-heap buffers) with one gathering write;
+    // the last buffer may be an empty body, so the headers are checked too
+    private void writeBody(ByteBuffer[] body) throws IOException {
+        ByteBuffer[] buffers;
+
+        if (body.length == 1) {
+            buffers = this.headersAndBody;
+            buffers[1] = body[0];
+        } else {
+            buffers = new ByteBuffer[body.length + 1];
+            System.arraycopy(body, 0, buffers, 1, body.length);
+        }
+        buffers[0] = this.headers.flip();
+
+        try {
+            while (buffers[0].hasRemaining() || buffers[buffers.length - 1].hasRemaining()) {
+                this.wrote(this.outputChannel.write(buffers));
+            }
+        } finally {
+            this.headers.clear();
+            buffers[1] = null;
+        }
+    }
+
+
+    // Method sending size bytes of the file, from the given position, straight from disk to the socket
+    // (sendfile), without copying them to the heap
+    private void transferBody(FileChannel body, long position, long size) throws IOException {
+        long end = position + size;
+
+        try {
+            while (position < end) {
+                long count = body.transferTo(position, Math.min(end - position, Connection.TRANSFER_SLICE),
+                        this.outputChannel);
+                if (count <= 0) {
+                    throw new IOException("The response file was truncated while being sent.");
+                }
+                position += count;
+                this.wrote(count);
+            }
+        } finally {
+            body.close();
+        }
+    }
+
+
+    // Method sending the output of the encoder (a file compressed while it is sent) as it is produced
+    private void writeEncoded(GzipEncoder encoder) throws IOException {
+        ByteBuffer chunk;
+
+        try {
+            while ((chunk = encoder.next()) != null) {
+                while (chunk.hasRemaining()) {
+                    this.wrote(this.outputChannel.write(chunk));
+                }
+            }
         } finally {
-            System.out.println(this.connectionSocket + " has stopped.");
+            encoder.close();
         }
     }
+
+
+    // Method deciding whether the connection stays open after the current request:
+    // HTTP/1.1 defaults to keep-alive, HTTP/1.0 only if the client asked for it explicitly
+    static boolean isKeepAlive(Map<String, String> requestData, int servedRequests, int maxRequests) {
+        String connectionHeader = requestData.get("Connection");
+
+        // a bad request leaves the stream in an unknown state, so the connection is closed
+        if (requestData.containsKey("Code") || servedRequests >= maxRequests) {
+            return false;
+        }
+
+        if (connectionHeader != null && connectionHeader.equalsIgnoreCase("close")) {
+            return false;
+        }
+
+        if (requestData.get("Protocol").equals("HTTP/1.0")) {
+            return connectionHeader != null && connectionHeader.equalsIgnoreCase("keep-alive");
+        }
+
+        return true;
+    }
 }
@@ -0,0 +1,105 @@
+package webserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+
+/*
+    Class holding the content codings served by the server and the Accept-Encoding negotiation: gzip is
+    produced by the server itself, brotli is only sent from precompressed files (.br next to the resource)
+ */
+public class ContentEncoding {
+
+    static final String GZIP = "gzip";
+    static final String BROTLI = "br";
+
+    // the variants kept in the cache are compressed once, so the best (slowest) level is used; the bodies
+    // compressed while they are sent use the default level
+    static final int CACHED_LEVEL = Deflater.BEST_COMPRESSION;
+    static final int STREAMED_LEVEL = Deflater.DEFAULT_COMPRESSION;
+
+    private ContentEncoding() {
+    }
+
+
+    // Method returning the precompressed sibling of a file (<file>.gz or <file>.br)
+    static String siblingPath(String filePath, String encoding) {
+        return filePath + (encoding.equals(ContentEncoding.GZIP) ? ".gz" : ".br");
+    }
+
+
+    // Method telling whether a content type is worth compressing: text and the text-based application
+    // formats, the already compressed ones (images, audio, video, archives, fonts) are left as they are
+    static boolean isCompressible(String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+
+        return contentType.startsWith("text/") || contentType.contains("javascript")
+                || contentType.contains("json") || contentType.contains("xml")
+                || contentType.equals("application/wasm");
+    }
+
+
+    // Method choosing the coding of the response from the Accept-Encoding header among the available ones,
+    // null if the identity has to be sent; brotli wins a tie, as it compresses better
+    static String negotiate(String acceptEncoding, boolean brotli, boolean gzip) {
+        double brotliQuality = brotli ? ContentEncoding.quality(acceptEncoding, ContentEncoding.BROTLI) : 0;
+        double gzipQuality = gzip ? ContentEncoding.quality(acceptEncoding, ContentEncoding.GZIP) : 0;
+
+        if (brotliQuality <= 0 && gzipQuality <= 0) {
+            return null;
+        }
+        return brotliQuality >= gzipQuality ? ContentEncoding.BROTLI : ContentEncoding.GZIP;
+    }
+
+
+    // Method returning the quality (q value) given to a coding by "coding;q=0.8, other, *;q=0.1",
+    // 0 if it is not accepted
+    private static double quality(String acceptEncoding, String coding) {
+        double wildcard = 0;
+
+        for (String element : acceptEncoding.split(",")) {
+            String[] parameters = element.split(";");
+            String name = parameters[0].trim();
+            double quality = 1;
+
+            for (int i = 1; i < parameters.length; i++) {
+                String parameter = parameters[i].trim();
+                if (parameter.startsWith("q=")) {
+                    try {
+                        quality = Double.parseDouble(parameter.substring(2));
+                    } catch (NumberFormatException e) {
+                        quality = 0;
+                    }
+                }
+            }
+
+            if (name.equalsIgnoreCase(coding)
+                    || (coding.equals(ContentEncoding.GZIP) && name.equalsIgnoreCase("x-gzip"))) {
+                return quality;
+            }
+            if (name.equals("*")) {
+                wildcard = quality;
+            }
+        }
+        return wildcard;
+    }
+
+
+    // Method compressing a whole body in memory
+    static byte[] gzip(byte[] content, int level) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(content.length / 4 + 64);
+
+        try (GZIPOutputStream stream = new GZIPOutputStream(compressed) {
+            {
+                this.def.setLevel(level);
+            }
+        }) {
+            stream.write(content);
+        }
+        return compressed.toByteArray();
+    }
+}
@@ -0,0 +1,40 @@
+package webserver;
+
+import java.nio.charset.StandardCharsets;
+
+
+/*
+    Class holding the Date header line of the responses (an IMF-fixdate, which has a precision of one second):
+    it is encoded once and refreshed every second by the server's timer thread, instead of being formatted
+    for every response
+ */
+public class DateHeader {
+
+    private volatile String value;
+    private volatile byte[] line;
+
+    DateHeader() {
+        this.refresh();
+    }
+
+
+    // Method encoding the line of the current time (called by the timer thread)
+    void refresh() {
+        String value = HTTPParser.formatDate(System.currentTimeMillis());
+
+        this.line = ("Date: " + value + "\r\n").getBytes(StandardCharsets.US_ASCII);
+        this.value = value;
+    }
+
+
+    // Method returning the encoded "Date: ...\r\n" line; it must not be modified
+    byte[] getLine() {
+        return this.line;
+    }
+
+
+    // Method returning the date alone (for the HTTP/2 responses, whose headers are compressed)
+    String getValue() {
+        return this.value;
+    }
+}
@@ -0,0 +1,173 @@
+package webserver;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+
+/*
+    Class implementing the durability policy of the writes: no fsync, one fsync per request, or group commit,
+    where a background thread collects the sync requests of the concurrent writers for a short window and
+    issues a single fsync per file for all of them. A file renamed into a directory, or deleted from it, is
+    only durable once the directory itself is synced, which the writers request after the rename. Only what
+    writers share is coalesced, the appends to the same file and the entries of the same directory: the new
+    content of a replaced file is written to a temporary file of its own, which its writer syncs itself so
+    the writers of different files do not wait for each other's fsync
+ */
+public class Durability implements Runnable {
+
+    static final String NONE = "none";
+    static final String REQUEST = "request";
+    static final String GROUP = "group";
+
+    private final String mode;
+    private final long groupCommitMillis;
+    private final LinkedBlockingQueue<PendingSync> pending;
+
+    Durability(String mode, long groupCommitMillis) {
+        this.mode = mode;
+        this.groupCommitMillis = groupCommitMillis;
+        this.pending = new LinkedBlockingQueue<>();
+
+        if (mode.equals(Durability.GROUP)) {
+            Thread syncer = new Thread(this, "group-commit");
+            syncer.setDaemon(true);
+            syncer.start();
+        }
+    }
+
+
+    // Method returning once the data written through the channel to the given file is durable; in the group
+    // mode the concurrent appends to the file share one fsync
+    void sync(FileChannel channel, String path) throws IOException {
+        switch (this.mode) {
+            case Durability.REQUEST:
+                channel.force(false);
+                break;
+            case Durability.GROUP:
+                this.await(new PendingSync(channel, path));
+                break;
+            default:
+                break;
+        }
+    }
+
+
+    // Method returning once the data written to a file no other writer shares (a temporary file) is durable;
+    // the group commit would have nothing to share its fsync with, so it is issued by the writer in both modes
+    void syncOwned(FileChannel channel) throws IOException {
+        if (!this.mode.equals(Durability.NONE)) {
+            channel.force(false);
+        }
+    }
+
+
+    // Method returning once the entries of a directory (a file renamed into it or deleted from it) are durable
+    void syncDirectory(Path directory) throws IOException {
+        switch (this.mode) {
+            case Durability.REQUEST:
+                Durability.force(directory);
+                break;
+            case Durability.GROUP:
+                this.await(new PendingSync(null, directory.toString()));
+                break;
+            default:
+                break;
+        }
+    }
+
+
+    // Method queuing a sync request for the group commit thread and waiting for its batch
+    private void await(PendingSync request) throws IOException {
+        this.pending.add(request);
+        try {
+            request.done.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the group commit.");
+        } catch (ExecutionException e) {
+            throw new IOException("Group commit failed.", e.getCause());
+        }
+    }
+
+
+    // Method syncing the entries of a directory, through a descriptor opened for reading
+    private static void force(Path directory) throws IOException {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+    }
+
+
+    // Method run by the group commit thread: wait for a first request, let the others join it during
+    // the window, then fsync every file and directory of the batch once and wake up all the writers
+    @Override
+    public void run() {
+        List<PendingSync> batch = new ArrayList<>();
+        Map<String, PendingSync> files = new HashMap<>();
+
+        while (true) {
+            try {
+                batch.add(this.pending.take());
+                TimeUnit.MILLISECONDS.sleep(this.groupCommitMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            this.pending.drainTo(batch);
+
+            // an fsync through any descriptor of a file flushes all its written data
+            for (PendingSync request : batch) {
+                files.putIfAbsent(request.path, request);
+            }
+
+            Map<String, IOException> failures = new HashMap<>();
+            for (Map.Entry<String, PendingSync> file : files.entrySet()) {
+                try {
+                    if (file.getValue().channel != null) {
+                        file.getValue().channel.force(false);
+                    } else {
+                        Durability.force(Path.of(file.getKey()));
+                    }
+                } catch (IOException e) {
+                    failures.put(file.getKey(), e);
+                }
+            }
+
+            for (PendingSync request : batch) {
+                if (failures.containsKey(request.path)) {
+                    request.done.completeExceptionally(failures.get(request.path));
+                } else {
+                    request.done.complete(null);
+                }
+            }
+
+            batch.clear();
+            files.clear();
+        }
+    }
+
+
+    /*
+        Class holding a writer waiting for its file to be synced, or a directory (without a channel)
+     */
+    private static class PendingSync {
+        private final FileChannel channel;
+        private final String path;
+        private final CompletableFuture<Void> done;
+
+        private PendingSync(FileChannel channel, String path) {
+            this.channel = channel;
+            this.path = path;
+            this.done = new CompletableFuture<>();
+        }
+    }
+}
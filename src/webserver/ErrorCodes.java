@@ -0,0 +1,32 @@
+package webserver;
+
+
+/*
+    Class holding the status lines of the responses, shared by the parser, the connections and the pre-rendered
+    error pages
+ */
+class ErrorCodes {
+    static final String OK = "200 OK";
+    static final String CREATED = "201 Created";
+    static final String NO_CONTENT = "204 No Content";
+    static final String PARTIAL_CONTENT = "206 Partial Content";
+    static final String NOT_MODIFIED = "304 Not Modified";
+    static final String BAD = "400 Bad Request";
+    static final String FORBIDDEN = "403 Forbidden";
+    static final String NOT_FOUND = "404 Not Found";
+    static final String METHOD_NOT_ALLOWED = "405 Method Not Allowed";
+    static final String REQUEST_TIMEOUT = "408 Request Timeout";
+    static final String PAYLOAD_TOO_LARGE = "413 Payload Too Large";
+    static final String URI_TOO_LONG = "414 URI Too Long";
+    static final String RANGE_NOT_SATISFIABLE = "416 Range Not Satisfiable";
+    static final String HEADERS_TOO_LARGE = "431 Request Header Fields Too Large";
+    static final String ISE = "500 Internal Server Error";
+    static final String NOT_IMPLEMENTED = "501 Not Implemented";
+    static final String SERVICE_UNAVAILABLE = "503 Service Unavailable";
+
+    // the error statuses, every one of them has a pre-rendered page
+    static final String[] ERRORS = {ErrorCodes.BAD, ErrorCodes.FORBIDDEN, ErrorCodes.NOT_FOUND,
+            ErrorCodes.METHOD_NOT_ALLOWED, ErrorCodes.REQUEST_TIMEOUT, ErrorCodes.PAYLOAD_TOO_LARGE, ErrorCodes.URI_TOO_LONG,
+            ErrorCodes.RANGE_NOT_SATISFIABLE, ErrorCodes.HEADERS_TOO_LARGE, ErrorCodes.ISE,
+            ErrorCodes.NOT_IMPLEMENTED, ErrorCodes.SERVICE_UNAVAILABLE};
+}
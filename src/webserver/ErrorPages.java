@@ -0,0 +1,165 @@
+package webserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+
+
+/*
+    Class holding the error responses of the server pre-rendered: every error page is read once and encoded,
+    with the headers which follow the status and Date lines, into complete byte arrays (one per Connection
+    header, with and without the page for HEAD requests). An error is then answered by appending its status
+    line, the Date line and one of these arrays to the connection's header buffer, which is sent in a single
+    write without touching the file system. Every error code has its page: the file of the code if the
+    directory has one, otherwise a minimal page carrying its status line. The pages are read again by the
+    server's timer when they change
+ */
+public class ErrorPages {
+
+    // the files of the pages named after their error, the other codes are looked up as <number>.html
+    private static final Map<String, String> FILES = Map.of(
+            ErrorCodes.BAD, "BadRequest.html",
+            ErrorCodes.FORBIDDEN, "Forbidden.html",
+            ErrorCodes.NOT_FOUND, "NotFound.html",
+            ErrorCodes.ISE, "InternalServerError.html");
+
+    private final String directory;
+
+    // the rendered page of every error code, replaced as a whole when a file changes
+    private volatile Map<String, Page> pages;
+
+    ErrorPages(String directory) {
+        this.directory = directory;
+        this.pages = new HashMap<>();
+        this.refresh();
+    }
+
+
+    // Method returning the rendered page sent with an error code (a code missing from ErrorCodes.ERRORS is
+    // rendered for the request)
+    Page get(String code) {
+        Page page = this.pages.get(code);
+
+        return page != null ? page : ErrorPages.render(code, new File(this.directory, ErrorPages.fileOf(code)));
+    }
+
+
+    // Method rendering again the pages whose file has been modified, created or deleted (called at start and
+    // by the timer thread)
+    void refresh() {
+        Map<String, Page> pages = this.pages;
+        Map<String, Page> refreshed = null;
+
+        for (String code : ErrorCodes.ERRORS) {
+            File file = new File(this.directory, ErrorPages.fileOf(code));
+            Page page = pages.get(code);
+
+            if (page != null && page.lastModified == file.lastModified() && page.length == file.length()) {
+                continue;
+            }
+            if (refreshed == null) {
+                refreshed = new HashMap<>(pages);
+            }
+            refreshed.put(code, ErrorPages.render(code, file));
+        }
+
+        if (refreshed != null) {
+            this.pages = refreshed;
+        }
+    }
+
+
+    // Method returning the name of the file of an error code's page
+    private static String fileOf(String code) {
+        return ErrorPages.FILES.getOrDefault(code, code.substring(0, code.indexOf(' ')) + ".html");
+    }
+
+
+    // Method reading the page of an error code and encoding its responses; without a readable file the page is
+    // generated from the status line
+    private static Page render(String code, File file) {
+        long lastModified = file.lastModified();
+        long length = file.length();
+
+        if (file.isFile()) {
+            try {
+                return new Page(Files.readAllBytes(file.toPath()), Files.probeContentType(file.toPath()),
+                        lastModified, length);
+            } catch (IOException e) {
+                System.err.println("Could not read the error page " + file + ", a generated one is sent.");
+            }
+        }
+
+        String page = "<html>\n<head>\n    <title>" + code + "</title>\n</head><body>\n<h1>"
+                + code.substring(code.indexOf(' ') + 1) + "</h1>\n</body></html>";
+        return new Page(page.getBytes(StandardCharsets.ISO_8859_1), "text/html", lastModified, length);
+    }
+
+
+    /*
+        Class holding the encoded responses of an error page: the headers following the Date line, then the
+        page if the request is not HEAD
+     */
+    static class Page {
+        private final byte[] keepAlive;
+        private final byte[] keepAliveHead;
+        private final byte[] close;
+        private final byte[] closeHead;
+        private final byte[] body;
+        private final String contentType;
+        private final long lastModified;
+        private final long length;
+
+        Page(byte[] body, String contentType, long lastModified, long length) {
+            this.keepAlive = Page.encode(true, body, contentType, true);
+            this.keepAliveHead = Page.encode(true, body, contentType, false);
+            this.close = Page.encode(false, body, contentType, true);
+            this.closeHead = Page.encode(false, body, contentType, false);
+            this.body = body;
+            this.contentType = contentType;
+            this.lastModified = lastModified;
+            this.length = length;
+        }
+
+
+        // Method returning the bytes following the Date line of the response
+        byte[] getTail(boolean keepAlive, boolean withBody) {
+            if (keepAlive) {
+                return withBody ? this.keepAlive : this.keepAliveHead;
+            }
+            return withBody ? this.close : this.closeHead;
+        }
+
+
+        // Method returning the page alone (an HTTP/2 stream sends it in DATA frames); it must not be modified
+        byte[] getBody() {
+            return this.body;
+        }
+
+
+        // Method returning the type of the page, null if it is not known
+        String getContentType() {
+            return this.contentType;
+        }
+
+
+        private static byte[] encode(boolean keepAlive, byte[] body, String contentType, boolean withBody) {
+            String headers = "Server: webserver.WebServer\r\n"
+                    + (keepAlive ? "Connection: keep-alive\r\n" : "Connection: close\r\n")
+                    + "Content-Length: " + body.length + "\r\n"
+                    + (contentType != null ? "Content-Type: " + contentType + "\r\n" : "")
+                    + "\r\n";
+            byte[] encodedHeaders = headers.getBytes(StandardCharsets.ISO_8859_1);
+            byte[] tail = new byte[encodedHeaders.length + (withBody ? body.length : 0)];
+
+            System.arraycopy(encodedHeaders, 0, tail, 0, encodedHeaders.length);
+            if (withBody) {
+                System.arraycopy(body, 0, tail, encodedHeaders.length, body.length);
+            }
+            return tail;
+        }
+    }
+}
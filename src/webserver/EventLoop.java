@@ -0,0 +1,132 @@
+package webserver;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+
+/*
+    Class implementing a selector thread which does the non-blocking reads and writes
+    for all the NIO connections registered on it
+ */
+public class EventLoop implements Runnable {
+
+    private static final long SELECT_TIMEOUT = 1000;
+
+    private final Selector selector;
+    private final Queue<Runnable> tasks;
+
+    // tasks run after the next select, which completes the deregistration of the channels whose key was
+    // cancelled (only used on the event loop thread)
+    private final Queue<Runnable> deregistered;
+
+    private volatile boolean running;
+
+    // time of the last walk of the connections for their timeouts (only used on the event loop thread)
+    private long lastCheck;
+
+    EventLoop() throws IOException {
+        this.selector = Selector.open();
+        this.tasks = new ConcurrentLinkedQueue<>();
+        this.deregistered = new ArrayDeque<>();
+        this.running = true;
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (this.running) {
+                // wait for ready channels, waking up periodically to close the idle or too slow connections
+                this.selector.select(EventLoop.SELECT_TIMEOUT);
+
+                // the channels deregistered before the select are handed over, then the tasks posted by the
+                // other threads (registrations, finished responses) are run
+                Runnable task;
+                while ((task = this.deregistered.poll()) != null) {
+                    task.run();
+                }
+                while ((task = this.tasks.poll()) != null) {
+                    task.run();
+                }
+
+                Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    NioConnection connection = (NioConnection) key.attachment();
+                    keys.remove();
+
+                    if (key.isValid() && key.isReadable()) {
+                        connection.onReadable();
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        connection.onWritable();
+                    }
+                }
+
+                this.checkTimeouts();
+            }
+        } catch (IOException e) {
+            System.err.println("Event loop selector failed.");
+        } finally {
+            // close every connection still registered on this loop
+            for (SelectionKey key : this.selector.keys()) {
+                ((NioConnection) key.attachment()).close();
+            }
+            try {
+                this.selector.close();
+            } catch (IOException e) {
+                System.err.println("Could not close the event loop selector.");
+            }
+        }
+    }
+
+
+    // Method posting a task to be run on the event loop thread
+    void execute(Runnable task) {
+        this.tasks.add(task);
+        this.selector.wakeup();
+    }
+
+
+    // Method cancelling the key of a channel leaving the event loop, and running the task once the channel is no
+    // longer registered, so it can be made blocking (called on the event loop thread)
+    void deregister(SelectionKey key, Runnable task) {
+        key.cancel();
+        this.deregistered.add(task);
+        this.selector.wakeup();
+    }
+
+
+    // Method handing a newly accepted connection over to this event loop
+    void register(NioConnection connection) {
+        this.execute(() -> connection.register(this.selector));
+    }
+
+
+    // Method which stops the event loop and closes its connections
+    void shutdown() {
+        this.running = false;
+        this.selector.wakeup();
+    }
+
+
+    // Method closing the connections that have been idle, or too slow to send a request or read a response,
+    // for longer than the timeouts; the connections are walked at most once per SELECT_TIMEOUT, so a busy loop
+    // does not walk all of them after every select
+    private void checkTimeouts() {
+        long now = System.currentTimeMillis();
+
+        if (now - this.lastCheck < EventLoop.SELECT_TIMEOUT) {
+            return;
+        }
+        this.lastCheck = now;
+
+        for (SelectionKey key : this.selector.keys()) {
+            ((NioConnection) key.attachment()).checkTimeouts(now);
+        }
+    }
+}
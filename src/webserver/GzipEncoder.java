@@ -0,0 +1,166 @@
+package webserver;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+
+/*
+    Class compressing a file to the gzip format while it is sent: the compressed bytes are produced a
+    buffer at a time, when the connection is ready to send them, so a big file is never held in memory.
+    For a chunked response every buffer is framed as a chunk in place (its size line and CRLF are written
+    around the compressed bytes), so a chunk still takes a single write
+ */
+public class GzipEncoder implements Closeable {
+
+    private static final int BUFFER_SIZE = 32 * 1024;
+
+    // gzip member header: magic number, deflate method, no flags, no modification time, unknown OS
+    private static final byte[] HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+    private static final int TRAILER_SIZE = 8;
+
+    // a chunk holds less than 64 KB, so its size always takes 4 hex digits (with leading zeros)
+    private static final int CHUNK_HEADER_SIZE = 6;
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] LAST_CHUNK = {'0', '\r', '\n', '\r', '\n'};
+    private static final byte[] HEX_DIGITS = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9',
+            'a', 'b', 'c', 'd', 'e', 'f'};
+
+    private final FileChannel source;
+    private final long length;
+    private final Deflater deflater;
+    private final CRC32 checksum;
+    private final ByteBuffer input;
+    private final ByteBuffer output;
+    private final boolean chunked;
+
+    private long position;
+    private boolean headerWritten;
+    private boolean trailerWritten;
+    private boolean lastChunkWritten;
+
+    GzipEncoder(FileChannel source, long length, int level, boolean chunked) {
+        this.source = source;
+        this.length = length;
+        this.chunked = chunked;
+        this.deflater = new Deflater(level, true);
+        this.checksum = new CRC32();
+        this.input = ByteBuffer.allocate(GzipEncoder.BUFFER_SIZE);
+        this.output = ByteBuffer.allocate(GzipEncoder.BUFFER_SIZE);
+    }
+
+
+    // Method returning the next compressed bytes (the buffer is reused by the following call), or null
+    // once the whole file and the gzip trailer (and the last chunk) have been returned
+    ByteBuffer next() throws IOException {
+        this.output.clear();
+        if (this.chunked) {
+            // leave room for the size line before the data, and for the CRLF and the last chunk after it
+            this.output.position(GzipEncoder.CHUNK_HEADER_SIZE);
+            this.output.limit(this.output.capacity() - GzipEncoder.CRLF.length - GzipEncoder.LAST_CHUNK.length);
+        }
+
+        if (!this.headerWritten) {
+            this.output.put(GzipEncoder.HEADER);
+            this.headerWritten = true;
+        }
+
+        while (this.output.hasRemaining() && !this.trailerWritten) {
+            if (this.deflater.finished()) {
+                // the trailer is written whole, in the next buffer if this one is too full
+                if (this.output.remaining() < GzipEncoder.TRAILER_SIZE) {
+                    break;
+                }
+                this.writeTrailer();
+                break;
+            }
+
+            if (this.deflater.needsInput()) {
+                if (this.position < this.length) {
+                    this.readInput();
+                } else {
+                    this.deflater.finish();
+                }
+            }
+
+            int count = this.deflater.deflate(this.output.array(), this.output.position(), this.output.remaining());
+            this.output.position(this.output.position() + count);
+        }
+
+        if (this.chunked) {
+            this.frameChunk();
+        } else {
+            this.output.flip();
+        }
+        return this.output.hasRemaining() ? this.output : null;
+    }
+
+
+    // Method writing the size line and the CRLF around the compressed bytes of the buffer, followed by the
+    // last chunk once the gzip trailer is in; the buffer is left in read mode
+    private void frameChunk() {
+        int size = this.output.position() - GzipEncoder.CHUNK_HEADER_SIZE;
+        int start = GzipEncoder.CHUNK_HEADER_SIZE;
+
+        this.output.limit(this.output.capacity());
+
+        if (size > 0) {
+            start = 0;
+            for (int i = 0; i < 4; i++) {
+                this.output.put(i, GzipEncoder.HEX_DIGITS[(size >>> (4 * (3 - i))) & 0xf]);
+            }
+            this.output.put(4, GzipEncoder.CRLF[0]);
+            this.output.put(5, GzipEncoder.CRLF[1]);
+            this.output.put(GzipEncoder.CRLF);
+        }
+
+        if (this.trailerWritten && !this.lastChunkWritten) {
+            this.output.put(GzipEncoder.LAST_CHUNK);
+            this.lastChunkWritten = true;
+        }
+
+        this.output.limit(this.output.position());
+        this.output.position(start);
+    }
+
+
+    // Method feeding the next part of the file to the deflater
+    private void readInput() throws IOException {
+        this.input.clear();
+        this.input.limit((int) Math.min(this.input.capacity(), this.length - this.position));
+
+        int count = this.source.read(this.input, this.position);
+        if (count <= 0) {
+            throw new IOException("The response file was truncated while being compressed.");
+        }
+
+        this.position += count;
+        this.checksum.update(this.input.array(), 0, count);
+        this.deflater.setInput(this.input.array(), 0, count);
+    }
+
+
+    // Method appending the CRC-32 and the size (modulo 2^32) of the uncompressed data, in little endian
+    private void writeTrailer() {
+        long crc = this.checksum.getValue();
+
+        for (int i = 0; i < 4; i++) {
+            this.output.put((byte) (crc >>> (8 * i)));
+        }
+        for (int i = 0; i < 4; i++) {
+            this.output.put((byte) (this.length >>> (8 * i)));
+        }
+        this.trailerWritten = true;
+    }
+
+
+    // Method releasing the file and the native memory of the deflater
+    @Override
+    public void close() throws IOException {
+        this.deflater.end();
+        this.source.close();
+    }
+}
@@ -1,129 +1,442 @@
 package webserver;
 
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.util.Arrays;
-import java.util.Date;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.HashMap;
+import java.util.Locale;
 import java.util.Map;
 
 
 /*
-    Class implementing a simple HTTP request parser
+    Class implementing a simple incremental HTTP request parser working directly on the bytes of a
+    ByteBuffer: a request may arrive split across several reads, the parser consumes the complete lines
+    and resumes where it stopped when it is fed again
  */
 public class HTTPParser {
 
     static final String[] methods = {"GET", "HEAD", "PATCH", "POST", "DELETE", "PUT", "OPTIONS"};
 
-    // Method where the HTTP request is parsed and relevant fields (for a simple implementation
-    // of a server) are stored in a Map
-    static Map<String, String> parseRequest(BufferedReader request) throws IOException {
+    // request headers stored by the parser, every other header is skipped without being decoded
+    static final String[] headers = {"Content-Length", "Connection", "If-None-Match", "If-Modified-Since",
+            "Range", "If-Range", "Accept-Encoding", "Transfer-Encoding", "Expect", "Upgrade", "HTTP2-Settings",
+            "Referer", "User-Agent"};
 
-        Map<String, String> data = new HashMap<>();
-        String line;
-        String[] lineContents;
+    // bigger bodies are not parsed into memory, they are read while the request is processed
+    static final int MAX_BUFFERED_BODY = 64 * 1024;
 
-        try {
-            // read the first request line and parse it => <METHOD> <RESOURCE> <PROTOCOL>
-            line = request.readLine();
-            lineContents = line.split("\\s");
+    // interim response sent before reading a body announced with "Expect: 100-continue"
+    static final byte[] CONTINUE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
 
-            if (lineContents.length != 3) {
-                return badRequest();
-            }
+    // format of the HTTP dates sent (IMF-fixdate), the received ones are parsed as RFC 1123 dates
+    private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter
+            .ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
 
-            if (!Arrays.asList(HTTPParser.methods).contains(lineContents[0])) {
-                return badRequest();
-            }
-            data.put("Method", lineContents[0]);
+    private static final byte[][] METHOD_BYTES = HTTPParser.encode(HTTPParser.methods, false);
+    private static final byte[][] HEADER_BYTES = HTTPParser.encode(HTTPParser.headers, true);
+    private static final byte[] HTTP_1_0 = "HTTP/1.0".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] HTTP_1_1 = "HTTP/1.1".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] KEEP_ALIVE = "keep-alive".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CLOSE = "close".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CHUNKED = "chunked".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CONTINUE_EXPECTATION = "100-continue".getBytes(StandardCharsets.US_ASCII);
 
-            if (lineContents[1].equals("/")) {
-                data.put("Resource", "/index.html");
-            } else {
-                data.put("Resource", lineContents[1]);
-            }
+    private static final int REQUEST_LINE = 0;
+    private static final int HEADERS = 1;
+    private static final int BODY = 2;
+    private static final int DONE = 3;
 
-            if (!lineContents[2].equals("HTTP/1.1") && !lineContents[2].equals("HTTP/1.0")) {
-                return badRequest();
-            }
-            data.put("Protocol", lineContents[2]);
+    private final Map<String, String> data;
+    private final ClientLimits limits;
 
-            // parse the next header lines and stores the Content-Length attribute if exists
-            while ((line = request.readLine()) != null && !(line.equals(""))) {
-                if (!line.contains(": ")) {
-                    return badRequest();
+    // whether the headers only written to the access log (Referer, User-Agent) are stored
+    private final boolean loggedHeaders;
 
-                } else {
-                    lineContents = line.split(": ");
-                    if (lineContents.length < 2) {
-                        return badRequest();
-                    }
+    private int state;
+    private int headerBytes;
+    private int headerCount;
+    private long contentLength;
+    private boolean chunked;
+    private boolean expectContinue;
+    private boolean streamedBody;
+    private byte[] body;
+    private int bodyOffset;
 
-                    if (lineContents[0].equals("Content-Length")) {
-                        data.put(lineContents[0], lineContents[1]);
-                    }
+    HTTPParser(ClientLimits limits, boolean loggedHeaders) {
+        this.data = new HashMap<>();
+        this.limits = limits;
+        this.loggedHeaders = loggedHeaders;
+        this.state = HTTPParser.REQUEST_LINE;
+    }
+
+
+    // Method preparing the parser (and its reused Map) for the next request on the connection
+    void reset() {
+        this.data.clear();
+        this.state = HTTPParser.REQUEST_LINE;
+        this.headerBytes = 0;
+        this.headerCount = 0;
+        this.contentLength = 0;
+        this.chunked = false;
+        this.expectContinue = false;
+        this.streamedBody = false;
+        this.body = null;
+        this.bodyOffset = 0;
+    }
+
+
+    // Method consuming the bytes available in the buffer (in read mode); returns true when a request is
+    // complete, false if more bytes are needed (an incomplete line is left in the buffer)
+    boolean parse(ByteBuffer buffer) {
+        while (this.state != HTTPParser.DONE) {
+            if (this.state == HTTPParser.BODY) {
+                int count = Math.min(buffer.remaining(), this.body.length - this.bodyOffset);
+                buffer.get(this.body, this.bodyOffset, count);
+                this.bodyOffset += count;
+
+                if (this.bodyOffset < this.body.length) {
+                    return false;
                 }
+                this.state = HTTPParser.DONE;
+                break;
+            }
+
+            // find the end of the next line
+            int start = buffer.position();
+            int lineFeed = HTTPParser.indexOf(buffer, start, buffer.limit(), (byte) '\n');
+            if (lineFeed < 0) {
+                // a line already over the limits is refused without waiting for (and buffering) the rest of it
+                return this.exceedsLimits(buffer.limit() - start);
+            }
+            if (this.exceedsLimits(lineFeed + 1 - start)) {
+                return true;
             }
+            this.headerBytes += lineFeed + 1 - start;
 
-            // store the body data
-            if (data.containsKey("Content-Length")) {
-                int length = Integer.parseInt(data.get("Content-Length"));
-                char[] requestBody = new char[length];
+            int end = (lineFeed > start && buffer.get(lineFeed - 1) == '\r') ? lineFeed - 1 : lineFeed;
+            buffer.position(lineFeed + 1);
 
-                if (request.read(requestBody, 0, length) > 0) {
-                    data.put("Body", new String(requestBody));
+            if (this.state == HTTPParser.REQUEST_LINE) {
+                // empty lines left between pipelined requests are skipped
+                if (end > start && !this.parseRequestLine(buffer, start, end)) {
+                    this.badRequest();
                 }
+            } else if (end == start) {
+                // an empty line ends the headers, the body follows if there is one
+                this.endHeaders();
+            } else if (++this.headerCount > this.limits.maxHeaderCount) {
+                this.limits.tooManyHeaders();
+                this.reject(ErrorCodes.HEADERS_TOO_LARGE);
+            } else if (!this.parseHeader(buffer, start, end)) {
+                this.badRequest();
             }
-        } catch (IOException e) {
-            System.err.println("Could not read from the input stream.");
-            throw new IOException();
         }
 
-        return data;
+        return true;
+    }
+
+
+    // Method deciding what follows the headers: a small body is parsed into memory, a chunked or big one
+    // (or one sent only once the client gets 100 Continue) is left in the buffer to be streamed
+    private void endHeaders() {
+        if (this.chunked && this.data.containsKey("Content-Length")) {
+            // both framings at once could be read differently by a proxy in front of the server
+            this.badRequest();
+        } else if (this.contentLength > this.limits.maxBodyBytes) {
+            // refused before any of the body is read (a chunked body is checked while it is read)
+            this.limits.bodyTooLarge();
+            this.reject(ErrorCodes.PAYLOAD_TOO_LARGE);
+        } else if (this.chunked || this.contentLength > HTTPParser.MAX_BUFFERED_BODY
+                || (this.expectContinue && this.contentLength > 0)) {
+            this.streamedBody = true;
+            this.state = HTTPParser.DONE;
+        } else if (this.contentLength > 0) {
+            this.body = new byte[(int) this.contentLength];
+            this.state = HTTPParser.BODY;
+        } else {
+            this.state = HTTPParser.DONE;
+        }
+    }
+
+
+    // Method telling whether the current request has started: one of its lines was parsed or some of its bytes
+    // wait in the buffer (in write mode)
+    boolean isStarted(ByteBuffer buffer) {
+        return this.state != HTTPParser.REQUEST_LINE || buffer.position() > 0;
+    }
+
+
+    // Method telling whether the parsed request has a body (a request with one is not upgraded to HTTP/2)
+    boolean hasBody() {
+        return this.streamedBody || this.body != null;
     }
 
 
-    // Method called when the request is invalid and 400 code should be returned
-    private static Map<String, String> badRequest() {
-        Map <String, String> data = new HashMap<>();
-        data.put("Code", ErrorCodes.BAD);
-        return data;
+    // Method returning the relevant fields (for a simple implementation of a server) of the parsed request
+    Map<String, String> getRequest() {
+        return this.data;
     }
 
 
-    // Method parsing the response data from Map to byte array
-    static byte[] createResponse(Map<String, String> responseData) {
-        StringBuilder responseString = new StringBuilder();
+    // Method returning the body of the parsed request, null if it has none; a streamed body is read from the
+    // buffer (in write mode, after the headers) and then through the source while the request is processed
+    RequestBody getBody(ByteBuffer buffer, RequestBody.Source source) {
+        if (this.streamedBody) {
+            boolean expectContinue = this.expectContinue && this.data.get("Protocol").equals("HTTP/1.1");
+            return new RequestBody(buffer, this.chunked ? RequestBody.CHUNKED : this.contentLength,
+                    expectContinue, source, this.limits);
+        }
+        return this.body != null ? new RequestBody(this.body) : null;
+    }
+
 
-        responseString.append(responseData.get("Protocol"))
-                .append(" ")
-                .append(responseData.get("Code"));
+    // Method parsing the request line => <METHOD> <RESOURCE> <PROTOCOL>
+    private boolean parseRequestLine(ByteBuffer buffer, int start, int end) {
+        int firstSpace = HTTPParser.indexOf(buffer, start, end, (byte) ' ');
+        int secondSpace = firstSpace < 0 ? -1 : HTTPParser.indexOf(buffer, firstSpace + 1, end, (byte) ' ');
 
-        // in case of OPTIONS request, append Allow header
-        if (responseData.containsKey("Allow")) {
-            responseString.append("\r\nAllow: ")
-                    .append(responseData.get("Allow"));
+        if (secondSpace < 0 || HTTPParser.indexOf(buffer, secondSpace + 1, end, (byte) ' ') >= 0) {
+            return false;
         }
 
-        responseString.append("\r\nDate: ")
-                .append(new Date().toString())
-                .append("\r\nServer: webserver.WebServer")
-                .append("\r\nConnection: Closed");
+        int method = HTTPParser.match(buffer, start, firstSpace, HTTPParser.METHOD_BYTES, false);
+        if (method < 0 || secondSpace == firstSpace + 1) {
+            return false;
+        }
+        this.data.put("Method", HTTPParser.methods[method]);
 
-        // append the content headers and the body if existent
-        if (responseData.containsKey("Body")) {
-            responseString.append("\r\nContent-Length: ")
-                    .append(responseData.get("Content-Length"))
-                    .append("\r\nContent-Type: ")
-                    .append(responseData.get("Content-Type"))
-                    .append("\r\n\r\n")
-                    .append(responseData.get("Body"));
+        if (secondSpace - firstSpace == 2 && buffer.get(firstSpace + 1) == '/') {
+            this.data.put("Resource", "/index.html");
+        } else {
+            this.data.put("Resource", HTTPParser.decode(buffer, firstSpace + 1, secondSpace));
+        }
 
+        if (HTTPParser.equals(buffer, secondSpace + 1, end, HTTPParser.HTTP_1_1, false)) {
+            this.data.put("Protocol", "HTTP/1.1");
+        } else if (HTTPParser.equals(buffer, secondSpace + 1, end, HTTPParser.HTTP_1_0, false)) {
+            this.data.put("Protocol", "HTTP/1.0");
         } else {
-            responseString.append("\r\n\r\n");
+            return false;
         }
 
-        return responseString.toString().getBytes();
+        this.state = HTTPParser.HEADERS;
+        return true;
     }
 
+
+    // Method parsing a header line => <NAME>: <VALUE> and storing it if it is a known header
+    private boolean parseHeader(ByteBuffer buffer, int start, int end) {
+        int colon = HTTPParser.indexOf(buffer, start, end, (byte) ':');
+        int valueStart;
+        int valueEnd = end;
+
+        if (colon <= start) {
+            return false;
+        }
+
+        // trim the optional whitespace around the value (spaces and horizontal tabs)
+        valueStart = colon + 1;
+        while (valueStart < valueEnd && HTTPParser.isWhitespace(buffer.get(valueStart))) {
+            valueStart++;
+        }
+        while (valueEnd > valueStart && HTTPParser.isWhitespace(buffer.get(valueEnd - 1))) {
+            valueEnd--;
+        }
+
+        if (valueStart == valueEnd) {
+            return false;
+        }
+
+        int header = HTTPParser.match(buffer, start, colon, HTTPParser.HEADER_BYTES, true);
+        if (header < 0) {
+            return true;
+        }
+
+        switch (HTTPParser.headers[header]) {
+            case "Content-Length":
+                long length = 0;
+                for (int i = valueStart; i < valueEnd; i++) {
+                    byte digit = buffer.get(i);
+                    if (digit < '0' || digit > '9' || length > (Long.MAX_VALUE - 9) / 10) {
+                        return false;
+                    }
+                    length = length * 10 + (digit - '0');
+                }
+                // a repeated Content-Length with another value could frame the body differently for a proxy
+                // in front of the server, which may honour the first one
+                if (this.data.containsKey("Content-Length") && length != this.contentLength) {
+                    return false;
+                }
+                this.contentLength = length;
+                this.data.put("Content-Length", String.valueOf(this.contentLength));
+                break;
+            case "Transfer-Encoding":
+                // chunked is the only transfer coding understood in requests
+                if (!HTTPParser.equals(buffer, valueStart, valueEnd, HTTPParser.CHUNKED, true)) {
+                    this.reject(ErrorCodes.NOT_IMPLEMENTED);
+                    return true;
+                }
+                this.chunked = true;
+                break;
+            case "Expect":
+                this.expectContinue = HTTPParser.equals(buffer, valueStart, valueEnd,
+                        HTTPParser.CONTINUE_EXPECTATION, true);
+                break;
+            case "Connection":
+                if (HTTPParser.equals(buffer, valueStart, valueEnd, HTTPParser.KEEP_ALIVE, true)) {
+                    this.data.put("Connection", "keep-alive");
+                } else if (HTTPParser.equals(buffer, valueStart, valueEnd, HTTPParser.CLOSE, true)) {
+                    this.data.put("Connection", "close");
+                } else {
+                    this.data.put("Connection", HTTPParser.decode(buffer, valueStart, valueEnd));
+                }
+                break;
+            case "Referer":
+            case "User-Agent":
+                if (this.loggedHeaders) {
+                    this.data.put(HTTPParser.headers[header], HTTPParser.decode(buffer, valueStart, valueEnd));
+                }
+                break;
+            default:
+                this.data.put(HTTPParser.headers[header], HTTPParser.decode(buffer, valueStart, valueEnd));
+        }
+
+        return true;
+    }
+
+
+    // Method compacting a buffer back to write mode after parsing, doubling its capacity if a line
+    // does not fit into it
+    static ByteBuffer compact(ByteBuffer buffer) {
+        buffer.compact();
+
+        if (!buffer.hasRemaining()) {
+            ByteBuffer biggerBuffer = ByteBuffer.allocate(buffer.capacity() * 2);
+            buffer.flip();
+            biggerBuffer.put(buffer);
+            return biggerBuffer;
+        }
+        return buffer;
+    }
+
+
+    // Method called when the request is invalid and 400 code should be returned; the rest of
+    // the stream cannot be trusted, so the request is ended here
+    private void badRequest() {
+        this.reject(ErrorCodes.BAD);
+    }
+
+
+    // Method ending the request with the given error code instead of a parsed request
+    private void reject(String code) {
+        this.data.clear();
+        this.data.put("Code", code);
+        this.state = HTTPParser.DONE;
+    }
+
+
+    // Method checking the next line of the request line or headers (complete or not) against the limits, ending
+    // the request with 414 or 431 if it is over them; returns true if the request was refused
+    private boolean exceedsLimits(int lineBytes) {
+        if (this.state == HTTPParser.REQUEST_LINE && lineBytes > this.limits.maxRequestLine) {
+            this.limits.requestLineTooLong();
+            this.reject(ErrorCodes.URI_TOO_LONG);
+        } else if (this.headerBytes + lineBytes > this.limits.maxHeaderBytes) {
+            this.limits.headersTooLarge();
+            this.reject(ErrorCodes.HEADERS_TOO_LARGE);
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+
+    // Method telling whether a byte is optional whitespace around a header value (RFC 9110 OWS)
+    private static boolean isWhitespace(byte value) {
+        return value == ' ' || value == '\t';
+    }
+
+
+    // Method returning the index of the first occurrence of a byte in the [start, end) range, or -1
+    private static int indexOf(ByteBuffer buffer, int start, int end, byte value) {
+        for (int i = start; i < end; i++) {
+            if (buffer.get(i) == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+
+    // Method returning the index of the token equal to the [start, end) range, or -1
+    private static int match(ByteBuffer buffer, int start, int end, byte[][] tokens, boolean ignoreCase) {
+        for (int i = 0; i < tokens.length; i++) {
+            if (HTTPParser.equals(buffer, start, end, tokens[i], ignoreCase)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+
+    // Method comparing the [start, end) range with a token (which is lower case if ignoreCase is set)
+    private static boolean equals(ByteBuffer buffer, int start, int end, byte[] token, boolean ignoreCase) {
+        if (end - start != token.length) {
+            return false;
+        }
+
+        for (int i = 0; i < token.length; i++) {
+            byte value = buffer.get(start + i);
+            if (ignoreCase && value >= 'A' && value <= 'Z') {
+                value += 'a' - 'A';
+            }
+            if (value != token[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    // Method decoding the [start, end) range of the buffer to a String
+    private static String decode(ByteBuffer buffer, int start, int end) {
+        byte[] bytes = new byte[end - start];
+
+        for (int i = start; i < end; i++) {
+            bytes[i - start] = buffer.get(i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+
+    // Method pre-encoding the known tokens to ASCII bytes
+    private static byte[][] encode(String[] tokens, boolean toLowerCase) {
+        byte[][] encoded = new byte[tokens.length][];
+
+        for (int i = 0; i < tokens.length; i++) {
+            String token = toLowerCase ? tokens[i].toLowerCase() : tokens[i];
+            encoded[i] = token.getBytes(StandardCharsets.US_ASCII);
+        }
+        return encoded;
+    }
+
+
+    // Method formatting a time (in milliseconds) as an HTTP date
+    static String formatDate(long millis) {
+        return HTTPParser.HTTP_DATE.format(Instant.ofEpochMilli(millis));
+    }
+
+
+    // Method parsing an HTTP date to milliseconds, -1 if it is not a valid date
+    static long parseDate(String date) {
+        try {
+            return ZonedDateTime.parse(date, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
 }
@@ -1,12 +1,23 @@
 package webserver;
 
 import java.io.*;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
 
 
 /*
@@ -14,27 +25,132 @@ import java.util.concurrent.locks.ReentrantLock;
  */
 public class Helper {
 
-    private static final String ERROR_DIR = "www/html/error_pages";
+    // a Range header asking for more parts is ignored (the whole body is sent)
+    private static final int MAX_RANGES = 16;
+
+    // permissions of a file created by a write (rw-r--r--, those of the umask 022)
+    private static final Set<PosixFilePermission> NEW_FILE_PERMISSIONS = PosixFilePermissions.fromString("rw-r--r--");
 
     private final String rootDirectory;
+    private String resource;
     private String path;
 
     private Map<String, String> requestData;
     private Map<String, String> responseData;
+    private RequestBody requestBody;
+    private ByteBuffer[] responseBuffers;
+    private FileChannel responseFile;
+    private long responseFilePosition;
+    private long responseFileLength;
+    private GzipEncoder responseEncoder;
+    private MappedFiles.Mapping responseMapping;
+    private ErrorPages.Page errorPage;
+    private boolean errorBody;
+
+    private final StaticCache cache;
+    private final MappedFiles mappedFiles;
+    private final ResourceIndex index;
+    private final ErrorPages errorPages;
+    private final LockManager locks;
+    private final Durability durability;
+    private final Metrics metrics;
+    private final Lifecycle lifecycle;
+    private final boolean echoWrites;
+    private final long compressionMinBytes;
+
+
+    public Helper(Map<String, String> requestData, RequestBody requestBody, Map<String, String> responseData,
+                  ServerContext context) {
+        this.requestData = requestData;
+        this.requestBody = requestBody;
+        this.responseData = responseData;
+        this.rootDirectory = context.rootDirectory;
+        this.cache = context.cache;
+        this.mappedFiles = context.mappedFiles;
+        this.index = context.index;
+        this.errorPages = context.errorPages;
+        this.locks = context.locks;
+        this.durability = context.durability;
+        this.metrics = context.metrics;
+        this.lifecycle = context.lifecycle;
+        this.echoWrites = context.echoWrites;
+        this.compressionMinBytes = context.compressionMinBytes;
+    }
 
-    private Map<String, ReentrantLock> locks;
 
+    // method returning the buffers (cached content, or the parts of a multi-range response) sent as the
+    // response body, null if it is not served from memory
+    ByteBuffer[] getResponseBuffers() {
+        return this.responseBuffers;
+    }
 
-    public Helper(Map<String, String> requestData, Map<String, String> responseData, String rootDirectory) {
-        this.requestData = requestData;
-        this.responseData = responseData;
-        this.rootDirectory = rootDirectory;
-        this.locks = new HashMap<>();
+
+    // method returning the file (opened for reading) whose content is the response body, null if it is not
+    // served from disk; the caller sends it after the headers and closes it
+    FileChannel getResponseFile() {
+        return this.responseFile;
+    }
+
+
+    // method returning the encoder producing the response body (a file compressed while it is sent), null if
+    // the body is not compressed on the fly; the caller sends its output after the headers and closes it
+    GzipEncoder getResponseEncoder() {
+        return this.responseEncoder;
+    }
+
+
+    // method returning the mapping the response buffers are views of, null if the body is not sent from a
+    // mapped file; the caller closes it once the body is sent (or given up), so a dropped mapping is unmapped
+    MappedFiles.Mapping getResponseMapping() {
+        return this.responseMapping;
+    }
+
+
+    // method returning the offset of the response file from which the body starts (0 unless a range is sent)
+    long getResponseFilePosition() {
+        return this.responseFilePosition;
+    }
+
+
+    // method returning the number of bytes of the response file to send (fixed when it was opened)
+    long getResponseFileLength() {
+        return this.responseFileLength;
+    }
+
+
+    // method returning the pre-rendered error page answering the request, null if it is not an error
+    ErrorPages.Page getErrorPage() {
+        return this.errorPage;
+    }
+
+
+    // method telling whether the error page is sent with its body (it is not for HEAD requests)
+    boolean hasErrorBody() {
+        return this.errorBody;
+    }
+
+
+    // method returning the number of body bytes sent with the response, for the access log; -1 if the body is
+    // compressed while it is sent (its length is not known in advance)
+    long getBodyLength() {
+        if (this.errorPage != null) {
+            return this.errorBody ? this.errorPage.getBody().length : 0;
+        }
+        if (this.responseEncoder != null) {
+            return -1;
+        }
+
+        String length = this.responseData.get("Content-Length");
+        if (length == null || "HEAD".equals(this.requestData.get("Method"))) {
+            return 0;
+        }
+        return Long.parseLong(length);
     }
 
 
-    // method that returns the resource path relative to the project directory
+    // method setting the normalized resource and its path relative to the project directory
     private void setPath(String resource) {
+        this.resource = resource;
         this.path = this.rootDirectory + resource;
     }
 
@@ -46,7 +162,7 @@ public class Helper {
 
         // if Code is present in request data, the request is invalid and BadRequest page is returned
         if (this.requestData.containsKey("Code")) {
-            this.readPage(Helper.ERROR_DIR + "/BadRequest.html", true);
+            this.errorPage(this.requestData.get("Code"));
 
         } else if (this.requestData.get("Method").equals("OPTIONS")) {
             // if method is OPTIONS, append the Allow header with all methods accepted by HTTPParser class
@@ -54,26 +170,36 @@ public class Helper {
             String methods = Arrays.toString(HTTPParser.methods);
             this.responseData.put("Allow", methods.substring(1, methods.length() - 1));
 
-        } else {
-            // else set the path and create the file instance
-            this.setPath(this.requestData.get("Resource"));
-            File file = new File(this.path);
+        } else if (this.requestData.get("Resource").equals(Metrics.PATH)) {
+            // the reserved metrics path is served by the server itself, not from the document root
+            this.metricsPage();
 
-            // if file does not exist and method cannot create a file (is not POST) return File Not Found
-            if ((!file.exists() && !this.requestData.get("Method").equals("POST")) || file.isDirectory()) {
+        } else if (this.requestData.get("Resource").equals(Lifecycle.LIVE_PATH)
+                || this.requestData.get("Resource").equals(Lifecycle.READY_PATH)) {
+            // the health checks of the load balancer are answered by the server itself as well
+            this.healthPage(this.requestData.get("Resource").equals(Lifecycle.READY_PATH));
+
+        } else {
+            // else normalize the resource and look it up in the index of the document root
+            String resource = ResourceIndex.normalize(this.requestData.get("Resource"));
+            ResourceIndex.Resource metadata = resource != null ? this.index.lookup(resource) : null;
+
+            if (resource == null || this.index.isForbidden(resource)) {
+                // a path climbing above the root or a restricted page (error) is Forbidden
+                this.errorPage(ErrorCodes.FORBIDDEN);
+            } else if ((metadata == null && !this.requestData.get("Method").equals("POST"))
+                    || (metadata != null && metadata.directory)) {
+                // if file does not exist and method cannot create a file (is not POST) return File Not Found
                 this.fileNotFound();
-            } else if (file.getName().startsWith(this.rootDirectory + Helper.ERROR_DIR)) {
-                // if the requested resource is a restricted page (error) return Forbidden
-                this.responseData.put("Code", ErrorCodes.FORBIDDEN);
-                this.readPage(Helper.ERROR_DIR + "/Forbidden.html", true);
             } else {
                 // finally call the operation method based on the HTTP method
+                this.setPath(resource);
                 switch (this.requestData.get("Method")) {
                     case "GET":
-                        this.readPage(this.path, true);
+                        this.readPage(true);
                         break;
                     case "HEAD":
-                        this.readPage(this.path, false);
+                        this.readPage(false);
                         break;
                     case "POST":
                     case "PUT":
@@ -92,36 +218,70 @@ public class Helper {
 
 
     // method implementing a GET-style behaviour
-    private void readPage(String filePath, boolean appendBody) {
-        boolean removeLock = false;
+    private void readPage(boolean appendBody) {
+        String filePath = this.path;
         File resourceFile = new File(filePath);
-        String fileContent;
-
-        // create a lock for the file if does not exist
-        if (!this.locks.containsKey(filePath)) {
-            this.locks.put(filePath, new ReentrantLock());
-        }
 
-        // acquire the file's lock
-        this.locks.get(filePath).lock();
+        // acquire the file's shared lock (concurrent reads do not block each other)
+        LockManager.ResourceLock lock = this.locks.lockRead(filePath);
 
         try {
+            // the file may have been deleted or replaced before the lock was acquired, so it is looked up again
+            ResourceIndex.Resource metadata = this.index.lookup(this.resource);
+
             // Not Found error page returned if the file does not exist
-            if (!resourceFile.exists()) {
+            if (metadata == null || metadata.directory) {
                 this.fileNotFound();
-                removeLock = true;
             } else {
-                // if the request should have a body (is not HEAD)
-                if (appendBody) {
-                    fileContent = this.readFile(resourceFile);
-                    this.responseData.put("Body", fileContent);
-                    this.responseData.put("Content-Length", String.valueOf(fileContent.getBytes().length));
+                StaticCache.Entry entry = this.cache.get(filePath, resourceFile, metadata);
+                String eTag;
+                long lastModified;
+
+                if (entry != null) {
+                    // the file is served from the cache, with its pre-computed headers
+                    this.responseData.put("Content-Length", entry.contentLength);
+                    if (entry.contentType != null) {
+                        this.responseData.put("Content-Type", entry.contentType);
+                    }
+                    if (appendBody) {
+                        this.setResponseBody(entry.getBody());
+                    }
+                    eTag = entry.eTag;
+                    lastModified = entry.lastModified;
+                } else {
+                    // if the request should have a body (is not HEAD) the file is mapped or opened while the
+                    // lock is held and its content is sent to the socket after the headers
+                    long length;
+                    if (appendBody) {
+                        length = this.setFileBody(filePath, resourceFile, metadata);
+                    } else {
+                        length = metadata.length;
+                        this.responseData.put("Content-Length", String.valueOf(length));
+                    }
+                    // append other necessary headers
+                    this.setContentType(metadata);
+                    lastModified = metadata.lastModified;
+                    eTag = StaticCache.eTag(length, lastModified, null);
                 }
-                // append other necessary headers
-                this.responseData.put("Content-Type", Files.probeContentType(Path.of(filePath)));
 
-                if (!this.responseData.containsKey("Code")) {
-                    this.responseData.put("Code", ErrorCodes.OK);
+                // the body may be replaced by an encoded variant, which has its own entity tag
+                eTag = this.encodeBody(filePath, resourceFile, metadata, appendBody, eTag);
+
+                this.responseData.put("Code", ErrorCodes.OK);
+                this.responseData.put("ETag", eTag);
+                this.responseData.put("Last-Modified",
+                        entry != null ? entry.lastModifiedDate : HTTPParser.formatDate(lastModified));
+
+                // a body compressed while it is sent has no known length, so it cannot be cut in ranges
+                if (this.responseEncoder == null) {
+                    this.responseData.put("Accept-Ranges", "bytes");
+                }
+
+                if (this.isNotModified(eTag, lastModified)) {
+                    this.notModified();
+                } else if (appendBody && this.responseEncoder == null && this.requestData.containsKey("Range")
+                        && this.isRangeValid(eTag, lastModified)) {
+                    this.setRanges();
                 }
             }
         } catch (IOException e) {
@@ -129,159 +289,682 @@ public class Helper {
             this.internalServerError();
         } finally {
             // release the lock on the file
-            this.locks.get(filePath).unlock();
-            // if the file was deleted, removes its lock
-            if (removeLock) {
-                this.locks.remove(filePath);
+            lock.unlock();
+        }
+    }
+
+
+    // method replacing the identity body with the best coding accepted by the client: a precompressed sibling
+    // (.br or .gz), the compressed variant kept in the cache or, for a file too big to be cached, gzip produced
+    // while the body is sent; returns the entity tag of the representation sent
+    private String encodeBody(String filePath, File resourceFile, ResourceIndex.Resource metadata,
+                              boolean appendBody, String eTag) throws IOException {
+        String acceptEncoding = this.requestData.get("Accept-Encoding");
+        long length = Long.parseLong(this.responseData.get("Content-Length"));
+
+        if (!ContentEncoding.isCompressible(this.responseData.get("Content-Type"))) {
+            return eTag;
+        }
+
+        // the siblings are looked up in the index, like the file itself
+        ResourceIndex.Resource brotli = this.index.lookup(
+                ContentEncoding.siblingPath(this.resource, ContentEncoding.BROTLI));
+        ResourceIndex.Resource gzip = this.index.lookup(
+                ContentEncoding.siblingPath(this.resource, ContentEncoding.GZIP));
+        boolean hasBrotli = Helper.isFresh(brotli, metadata);
+        boolean hasGzip = Helper.isFresh(gzip, metadata);
+        boolean compress = this.compressionMinBytes >= 0 && length >= this.compressionMinBytes;
+
+        if (!hasBrotli && !hasGzip && !compress) {
+            return eTag;
+        }
+
+        // the representation sent depends on the client's Accept-Encoding
+        this.responseData.put("Vary", "Accept-Encoding");
+
+        String encoding = acceptEncoding == null ? null
+                : ContentEncoding.negotiate(acceptEncoding, hasBrotli, hasGzip || compress);
+        if (encoding == null) {
+            return eTag;
+        }
+
+        ResourceIndex.Resource sibling = encoding.equals(ContentEncoding.BROTLI) ? brotli : hasGzip ? gzip : null;
+        File siblingFile = sibling != null ? new File(ContentEncoding.siblingPath(filePath, encoding)) : null;
+        StaticCache.Entry entry = sibling != null
+                ? this.cache.getPrecompressed(filePath, siblingFile, sibling, encoding)
+                : this.cache.getCompressed(filePath, resourceFile, metadata);
+
+        this.responseData.put("Content-Encoding", encoding);
+
+        if (entry != null) {
+            this.responseData.put("Content-Length", entry.contentLength);
+            if (appendBody) {
+                this.setResponseBody(entry.getBody());
             }
+            return entry.eTag;
         }
+
+        if (sibling != null) {
+            // a precompressed file too big for the cache is sent from its mapping or from disk as it is
+            long siblingLength;
+            if (appendBody) {
+                siblingLength = this.setFileBody(siblingFile.getPath(), siblingFile, sibling);
+            } else {
+                siblingLength = sibling.length;
+                this.responseData.put("Content-Length", String.valueOf(siblingLength));
+            }
+            return StaticCache.eTag(siblingLength, sibling.lastModified, encoding);
+        }
+
+        // a file too big for the cache is compressed while it is sent, so its length is not known in advance:
+        // it is sent in chunks to HTTP/1.1 clients, an HTTP/1.0 client reads it until the connection is closed
+        boolean chunked = this.responseData.get("Protocol").equals("HTTP/1.1");
+        if (appendBody && this.responseFile == null) {
+            // the encoder reads a mapped body from the file
+            this.setResponseBody(resourceFile);
+        }
+        this.responseData.remove("Content-Length");
+        if (chunked) {
+            this.responseData.put("Transfer-Encoding", "chunked");
+        }
+        if (appendBody) {
+            this.responseEncoder = new GzipEncoder(this.responseFile, this.responseFileLength,
+                    ContentEncoding.STREAMED_LEVEL, chunked);
+            this.responseFile = null;
+        }
+        return StaticCache.eTag(length, metadata.lastModified, ContentEncoding.GZIP);
     }
 
 
-    // method implementing a POST-style behaviour
-    private void writePage(boolean flag) {
-        boolean removeLock = false;
-        boolean fileExists = true;
-        File resourceFile = new File(this.path);
-        String fileContent;
+    // method telling whether a precompressed sibling exists and is not older than the file it was made from
+    private static boolean isFresh(ResourceIndex.Resource sibling, ResourceIndex.Resource metadata) {
+        return sibling != null && !sibling.directory && sibling.lastModified >= metadata.lastModified;
+    }
+
+
+    // method evaluating If-None-Match (or, without it, If-Modified-Since) against the file's validators
+    private boolean isNotModified(String eTag, long lastModified) {
+        String ifNoneMatch = this.requestData.get("If-None-Match");
+        String ifModifiedSince = this.requestData.get("If-Modified-Since");
+
+        if (ifNoneMatch != null) {
+            if (ifNoneMatch.equals("*")) {
+                return true;
+            }
+            // weak comparison: W/"x" matches "x"
+            for (String tag : ifNoneMatch.split(",")) {
+                tag = tag.trim();
+                if (tag.startsWith("W/")) {
+                    tag = tag.substring(2);
+                }
+                if (tag.equals(eTag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        if (ifModifiedSince != null) {
+            // HTTP dates have a precision of one second
+            long since = HTTPParser.parseDate(ifModifiedSince);
+            return since >= 0 && lastModified / 1000 <= since / 1000;
+        }
+
+        return false;
+    }
+
+
+    // method replacing the response with a 304 Not Modified one, which keeps the validators but has no body
+    private void notModified() throws IOException {
+        this.clearResponseBody();
+        this.responseData.remove("Content-Length");
+        this.responseData.remove("Content-Type");
+        this.responseData.remove("Content-Encoding");
+        this.responseData.remove("Transfer-Encoding");
+        this.responseData.remove("Accept-Ranges");
+        this.responseData.put("Code", ErrorCodes.NOT_MODIFIED);
+    }
+
+
+    // method evaluating If-Range: the ranges are only sent if the client has the current version of the file
+    private boolean isRangeValid(String eTag, long lastModified) {
+        String ifRange = this.requestData.get("If-Range");
+
+        if (ifRange == null) {
+            return true;
+        }
+
+        // an entity tag is compared strongly, a date has to be exactly the modification time
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            return ifRange.equals(eTag);
+        }
+        long date = HTTPParser.parseDate(ifRange);
+        return date >= 0 && date / 1000 == lastModified / 1000;
+    }
+
+
+    // method answering a Range request with 206 and the requested slices of the body (multipart/byteranges
+    // if several ranges are requested), or with 416 if none of them is satisfiable; an invalid Range header
+    // is ignored and the whole body is sent
+    private void setRanges() throws IOException {
+        long length = this.responseBuffers != null ? this.responseBuffers[0].remaining() : this.responseFileLength;
+        List<long[]> ranges = Helper.parseRanges(this.requestData.get("Range"), length);
+
+        if (ranges == null) {
+            return;
+        }
+
+        if (ranges.isEmpty()) {
+            this.clearResponseBody();
+            this.responseData.remove("Content-Type");
+            this.responseData.put("Code", ErrorCodes.RANGE_NOT_SATISFIABLE);
+            this.responseData.put("Content-Length", "0");
+            this.responseData.put("Content-Range", "bytes */" + length);
+            return;
+        }
+
+        this.responseData.put("Code", ErrorCodes.PARTIAL_CONTENT);
+
+        if (ranges.size() == 1) {
+            long[] range = ranges.get(0);
+
+            if (this.responseBuffers != null) {
+                this.responseBuffers[0] = this.slice(range);
+            } else {
+                // the file is still sent with transferTo, starting at the range's offset
+                this.responseFilePosition = range[0];
+                this.responseFileLength = range[1] - range[0] + 1;
+            }
+            this.responseData.put("Content-Length", String.valueOf(range[1] - range[0] + 1));
+            this.responseData.put("Content-Range", "bytes " + range[0] + "-" + range[1] + "/" + length);
+            return;
+        }
+
+        // every part is preceded by its own headers and the body ends with the closing boundary
+        String boundary = Long.toHexString(ThreadLocalRandom.current().nextLong());
+        String contentType = this.responseData.get("Content-Type");
+        ByteBuffer[] parts = new ByteBuffer[2 * ranges.size() + 1];
+        long contentLength = 0;
+
+        for (int i = 0; i < ranges.size(); i++) {
+            long[] range = ranges.get(i);
+            String partHeaders = (i == 0 ? "" : "\r\n") + "--" + boundary
+                    + (contentType != null ? "\r\nContent-Type: " + contentType : "")
+                    + "\r\nContent-Range: bytes " + range[0] + "-" + range[1] + "/" + length + "\r\n\r\n";
+
+            parts[2 * i] = ByteBuffer.wrap(partHeaders.getBytes(StandardCharsets.ISO_8859_1));
+            parts[2 * i + 1] = this.slice(range);
+            contentLength += parts[2 * i].remaining() + parts[2 * i + 1].remaining();
+        }
+        parts[parts.length - 1] = ByteBuffer.wrap(("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        contentLength += parts[parts.length - 1].remaining();
+
+        // the parts may be views of the mapping, which stays referenced until the response has been sent
+        this.clearResponseSource();
+        this.responseBuffers = parts;
+        this.responseData.put("Content-Type", "multipart/byteranges; boundary=" + boundary);
+        this.responseData.put("Content-Length", String.valueOf(contentLength));
+    }
+
+
+    // method returning a zero-copy view of a range of the body: a slice of the cached buffer, or a read-only
+    // mapping of the file region (it stays valid after the file is closed)
+    private ByteBuffer slice(long[] range) throws IOException {
+        if (this.responseBuffers != null) {
+            ByteBuffer body = this.responseBuffers[0].duplicate();
+            body.limit(body.position() + (int) range[1] + 1);
+            body.position(body.position() + (int) range[0]);
+            return body;
+        }
+        return this.responseFile.map(FileChannel.MapMode.READ_ONLY, range[0], range[1] - range[0] + 1);
+    }
+
+
+    // method parsing "bytes=<first>-<last>, <first>-, -<suffix length>, ..." into the satisfiable ranges
+    // ([first, last] pairs, limited to the body); returns null if the header is invalid or has too many ranges
+    private static List<long[]> parseRanges(String header, long length) {
+        List<long[]> ranges = new ArrayList<>();
+
+        if (!header.regionMatches(true, 0, "bytes=", 0, 6)) {
+            return null;
+        }
+
+        String[] specs = header.substring(6).split(",");
+        if (specs.length > Helper.MAX_RANGES) {
+            return null;
+        }
+
+        try {
+            for (String spec : specs) {
+                spec = spec.trim();
+                int dash = spec.indexOf('-');
+                long first;
+                long last;
+
+                if (dash < 0) {
+                    return null;
+                }
+
+                if (dash == 0) {
+                    // the last <suffix length> bytes
+                    long suffix = Long.parseLong(spec.substring(1));
+                    if (suffix < 0) {
+                        return null;
+                    }
+                    first = Math.max(length - suffix, 0);
+                    last = length - 1;
+                    if (suffix == 0) {
+                        continue;
+                    }
+                } else {
+                    first = Long.parseLong(spec.substring(0, dash));
+                    last = dash == spec.length() - 1 ? Long.MAX_VALUE : Long.parseLong(spec.substring(dash + 1));
+                    if (first < 0 || last < first) {
+                        return null;
+                    }
+                    last = Math.min(last, length - 1);
+                }
+
+                if (first < length) {
+                    ranges.add(new long[] {first, last});
+                }
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+
+        return ranges;
+    }
+
+
+    // method appending the current metrics as the response body; the path is read-only
+    private void metricsPage() {
+        String method = this.requestData.get("Method");
+
+        if (!method.equals("GET") && !method.equals("HEAD")) {
+            this.readOnlyPath();
+            return;
+        }
+
+        byte[] metrics = this.metrics.render();
+        String acceptEncoding = this.requestData.get("Accept-Encoding");
+
+        // the page is generated for every request, so it is compressed in memory if the client accepts gzip
+        if (this.compressionMinBytes >= 0 && metrics.length >= this.compressionMinBytes) {
+            this.responseData.put("Vary", "Accept-Encoding");
+
+            if (acceptEncoding != null && ContentEncoding.negotiate(acceptEncoding, false, true) != null) {
+                try {
+                    metrics = ContentEncoding.gzip(metrics, ContentEncoding.STREAMED_LEVEL);
+                    this.responseData.put("Content-Encoding", ContentEncoding.GZIP);
+                } catch (IOException e) {
+                    System.err.println("Could not compress the metrics.");
+                }
+            }
+        }
 
-        // create a lock for the file if does not exist
-        if (!this.locks.containsKey(this.path)) {
-            this.locks.put(this.path, new ReentrantLock());
+        this.responseData.put("Code", ErrorCodes.OK);
+        this.responseData.put("Content-Type", Metrics.CONTENT_TYPE);
+        this.responseData.put("Content-Length", String.valueOf(metrics.length));
+        if (method.equals("GET")) {
+            this.responseBuffers = new ByteBuffer[] {ByteBuffer.wrap(metrics)};
         }
+    }
 
-        // acquire the file's lock
-        this.locks.get(this.path).lock();
 
-        // set the fileExists flag to false if file does not exist
-        if (!resourceFile.exists()) {
-            fileExists = false;
+    // method answering a health check with the state of the server: the liveness check succeeds while the
+    // server answers, the readiness check only while it takes new connections (503 once it shuts down)
+    private void healthPage(boolean readiness) {
+        String method = this.requestData.get("Method");
+
+        if (!method.equals("GET") && !method.equals("HEAD")) {
+            this.readOnlyPath();
+            return;
         }
 
+        byte[] state = this.lifecycle.render();
+
+        this.responseData.put("Code", readiness && !this.lifecycle.isReady()
+                ? ErrorCodes.SERVICE_UNAVAILABLE : ErrorCodes.OK);
+        this.responseData.put("Content-Type", "text/plain");
+        this.responseData.put("Content-Length", String.valueOf(state.length));
+        if (method.equals("GET")) {
+            this.responseBuffers = new ByteBuffer[] {ByteBuffer.wrap(state)};
+        }
+    }
+
+
+    // method implementing a POST-style behaviour: POST and PUT replace the file atomically, PATCH appends to it
+    private void writePage(boolean append) {
+        boolean fileExists;
+        boolean renamed = false;
+        File resourceFile = new File(this.path);
+        Path temporaryFile = null;
+        FileChannel appendedFile = null;
+        LockManager.ResourceLock lock = null;
+
         try {
+            // the new content of a replaced file is written (and synced) next to it before taking the lock,
+            // so the readers keep seeing the whole old content until the rename; a streamed body to be appended
+            // is also received there first, so a slow or failing upload neither holds the lock nor leaves
+            // half of its data in the file
+            if (this.requestBody != null && (!append || this.requestBody.isStreamed())) {
+                temporaryFile = this.writeTemporaryFile(resourceFile, !append);
+            }
+
+            // acquire the file's exclusive lock
+            lock = this.locks.lockWrite(this.path);
+            fileExists = this.index.lookup(this.resource) != null;
+
             // if file does not exist and method is not POST, then return File Not Found page
             if (!fileExists && !this.requestData.get("Method").equals("POST")) {
                 this.fileNotFound();
-                removeLock = true;
 
             } else {
                 // else write the file with data from body
-                if (this.requestData.containsKey("Body")) {
-                    FileWriter writer = new FileWriter(resourceFile, flag);
-                    writer.write(this.requestData.get("Body"));
-                    writer.close();
+                if (this.requestBody != null) {
+                    this.cache.invalidate(this.path);
+                    this.mappedFiles.invalidate(this.path);
+
+                    if (append) {
+                        appendedFile = this.appendFile(resourceFile, temporaryFile);
+                    } else {
+                        Helper.setPermissions(temporaryFile, resourceFile.toPath());
+                        Files.move(temporaryFile, resourceFile.toPath(),
+                                StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                        temporaryFile = null;
+                        renamed = true;
+                    }
                 }
 
-                fileContent = this.readFile(resourceFile);  // read the file (as it could have been appended to)
+                // the index is updated before the lock is released, so the next request sees the new file
+                this.setWriteResponse(resourceFile, this.index.update(this.resource), fileExists);
+            }
 
-                // if the file is not empty, append its content and content related headers to response
-                if (!fileContent.isEmpty()) {
-                    this.responseData.put("Content-Type", Files.probeContentType(Path.of(path)));
-                    this.responseData.put("Body", fileContent);
-                    this.responseData.put("Content-Length", String.valueOf(fileContent.getBytes().length));
-                }
+            // release the lock on the file
+            lock.unlock();
+            lock = null;
+
+            // the appended data, or the directory the new file was renamed into, is synced once the lock is
+            // released, so concurrent writers can share the same group commit
+            if (appendedFile != null) {
+                this.durability.sync(appendedFile, this.path);
+            } else if (renamed) {
+                this.durability.syncDirectory(resourceFile.getAbsoluteFile().getParentFile().toPath());
+            }
+        } catch (IOException e) {
+            if (this.requestBody != null && this.requestBody.isMalformed()) {
+                this.errorPage(ErrorCodes.BAD);
+            } else if (this.requestBody != null && this.requestBody.isTooLarge()) {
+                this.errorPage(ErrorCodes.PAYLOAD_TOO_LARGE);
+            } else if (e instanceof SocketTimeoutException) {
+                // the client stopped sending the body, or sends it below the minimum rate
+                this.errorPage(ErrorCodes.REQUEST_TIMEOUT);
+            } else {
+                System.err.println("Could not write in the requested file.");
+                this.internalServerError();
+            }
+        } finally {
+            if (lock != null) {
+                lock.unlock();
+            }
+            this.cleanUp(appendedFile, temporaryFile);
+        }
+    }
 
-                // add the response code
-                if (!fileExists && this.requestData.get("Method").equals("POST")) {
-                    this.responseData.put("Code", ErrorCodes.CREATED);
-                } else if (!fileContent.isEmpty()){
-                    this.responseData.put("Code", ErrorCodes.OK);
-                } else {
-                    this.responseData.put("Code", ErrorCodes.NO_CONTENT);
+
+    // method writing the request body to a new temporary file in the uploads directory of the root (neither
+    // indexed nor served, so a half-written file cannot be read), synced if it is going to replace the resource
+    private Path writeTemporaryFile(File resourceFile, boolean sync) throws IOException {
+        Path temporaryFile = Files.createTempFile(this.index.getUploadDirectory(), resourceFile.getName(), ".tmp");
+
+        try (FileChannel channel = FileChannel.open(temporaryFile, StandardOpenOption.WRITE)) {
+            this.requestBody.transferTo(channel);
+            if (sync) {
+                this.durability.syncOwned(channel);
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(temporaryFile);
+            throw e;
+        }
+
+        return temporaryFile;
+    }
+
+
+    // method giving the temporary file (created owner-only) the permissions of the file it replaces, or those of
+    // a new file under the usual umask, as the rename keeps them; a file system without POSIX permissions is left
+    // as it is
+    private static void setPermissions(Path temporaryFile, Path resourceFile) throws IOException {
+        Set<PosixFilePermission> permissions;
+
+        try {
+            permissions = Files.getPosixFilePermissions(resourceFile);
+        } catch (NoSuchFileException e) {
+            permissions = Helper.NEW_FILE_PERMISSIONS;
+        } catch (UnsupportedOperationException e) {
+            // not a POSIX file system
+            return;
+        }
+        Files.setPosixFilePermissions(temporaryFile, permissions);
+    }
+
+
+    // method appending the request body (or the temporary file which received it) to the resource; the channel
+    // is returned open so it can be synced
+    private FileChannel appendFile(File resourceFile, Path receivedFile) throws IOException {
+        FileChannel channel = FileChannel.open(resourceFile.toPath(), StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+
+        try {
+            if (receivedFile == null) {
+                this.requestBody.transferTo(channel);
+            } else {
+                // the data is copied by the kernel, it does not go through the heap
+                try (FileChannel received = FileChannel.open(receivedFile, StandardOpenOption.READ)) {
+                    long position = 0;
+                    long size = received.size();
+                    while (position < size) {
+                        position += received.transferTo(position, size - position, channel);
+                    }
                 }
             }
         } catch (IOException e) {
-            System.err.println("Could not write in the requested file.");
-            this.internalServerError();
-        } finally {
-            // release the lock on the file
-            this.locks.get(this.path).unlock();
-            // if the file was deleted, removes its lock
-            if (removeLock) {
-                this.locks.remove(this.path);
+            channel.close();
+            throw e;
+        }
+
+        return channel;
+    }
+
+
+    // method appending the response of a write: the resulting file, or only the number of bytes written
+    // if echoing the file is disabled
+    private void setWriteResponse(File resourceFile, ResourceIndex.Resource metadata, boolean fileExists)
+            throws IOException {
+        boolean hasBody = false;
+
+        if (this.echoWrites && metadata != null && metadata.length > 0) {
+            // the file is not empty, append its content and content related headers to response
+            this.setContentType(metadata);
+            this.setResponseBody(resourceFile);
+            hasBody = true;
+
+        } else if (!this.echoWrites && this.requestBody != null) {
+            byte[] writtenLength = String.valueOf(this.requestBody.getLength()).getBytes(StandardCharsets.US_ASCII);
+            this.responseData.put("Content-Type", "text/plain");
+            this.responseData.put("Content-Length", String.valueOf(writtenLength.length));
+            this.setResponseBody(ByteBuffer.wrap(writtenLength));
+            hasBody = true;
+        }
+
+        // add the response code
+        if (!fileExists && this.requestData.get("Method").equals("POST")) {
+            this.responseData.put("Code", ErrorCodes.CREATED);
+        } else if (hasBody) {
+            this.responseData.put("Code", ErrorCodes.OK);
+        } else {
+            this.responseData.put("Code", ErrorCodes.NO_CONTENT);
+        }
+    }
+
+
+    // method closing the appended file and removing a temporary file which was not renamed
+    private void cleanUp(FileChannel appendedFile, Path temporaryFile) {
+        try {
+            if (appendedFile != null) {
+                appendedFile.close();
+            }
+            if (temporaryFile != null) {
+                Files.deleteIfExists(temporaryFile);
             }
+        } catch (IOException e) {
+            System.err.println("Could not clean up after writing the requested file.");
         }
     }
 
 
     // method implementing a DELETE-style behaviour
     private void deletePage() {
-        boolean removeLock = false;
-        File resourceFile = new File(this.rootDirectory + this.requestData.get("Resource"));
-
-        // create a lock for the file if does not exist
-        if (!this.locks.containsKey(this.path)) {
-            this.locks.put(this.path, new ReentrantLock());
-        }
+        File resourceFile = new File(this.path);
+        boolean deleted = false;
 
-        // acquire the file's lock
-        this.locks.get(this.path).lock();
+        // acquire the file's exclusive lock
+        LockManager.ResourceLock lock = this.locks.lockWrite(this.path);
 
         try {
             // if file does not exist return File Not Found page
-            if (!resourceFile.exists()) {
+            if (this.index.lookup(this.resource) == null) {
                 this.fileNotFound();
-                removeLock = true;
 
             } else if (!resourceFile.delete()) {    // delete the file
                 System.err.println("Could not delete the requested file.");
                 this.internalServerError();
 
             } else {                                // if file deleted successfully, append 2xx code
+                this.cache.invalidate(this.path);
+                this.mappedFiles.invalidate(this.path);
+                this.index.remove(this.resource);
                 this.responseData.put("Code", ErrorCodes.NO_CONTENT);
+                deleted = true;
             }
         } finally {
             // release the lock on the file
-            this.locks.get(this.path).unlock();
-            // if the file was deleted, removes its lock
-            if (removeLock) {
-                this.locks.remove(this.path);
+            lock.unlock();
+        }
+
+        // the deletion is durable once the directory is synced, which is done without the lock like a rename
+        if (deleted) {
+            try {
+                this.durability.syncDirectory(resourceFile.getAbsoluteFile().getParentFile().toPath());
+            } catch (IOException e) {
+                System.err.println("Could not sync the directory of the deleted file.");
+                this.internalServerError();
             }
         }
     }
 
 
-    // method returning a String instance of a file content
-    private String readFile(File resourceFile) {
-        StringBuilder fileContent = new StringBuilder();
-        String line;
-        BufferedReader reader;
+    // method opening the file sent as the response body; the length is taken from the opened file, so it
+    // matches the bytes that will be sent even if the file is replaced afterwards
+    private void setResponseBody(File resourceFile) throws IOException {
+        this.clearResponseBody();
 
-        try {
-            reader = new BufferedReader(new FileReader(resourceFile));
-            while ((line = reader.readLine()) != null) {
-                fileContent.append(line);
-            }
-            reader.close();
-        } catch (Exception e) {
-            return "";
+        this.responseFile = FileChannel.open(resourceFile.toPath(), StandardOpenOption.READ);
+        this.responseFilePosition = 0;
+        this.responseFileLength = this.responseFile.size();
+        this.responseData.put("Content-Length", String.valueOf(this.responseFileLength));
+    }
+
+
+    // method setting the file sent as the response body: its mapping if the file is kept mapped, otherwise the
+    // opened file; returns the length of the body
+    private long setFileBody(String filePath, File resourceFile, ResourceIndex.Resource metadata)
+            throws IOException {
+        MappedFiles.Mapping mapping = this.mappedFiles.get(filePath, resourceFile, metadata);
+
+        if (mapping == null) {
+            this.setResponseBody(resourceFile);
+            return this.responseFileLength;
         }
 
-        return fileContent.toString();
+        this.setResponseBody(mapping.getBody());
+        this.responseMapping = mapping;
+        this.responseData.put("Content-Length", String.valueOf(mapping.getBody().remaining()));
+        return mapping.getBody().remaining();
+    }
+
+
+    // method setting the cached (or mapped) content sent as the response body
+    private void setResponseBody(ByteBuffer content) throws IOException {
+        this.clearResponseBody();
+
+        this.responseBuffers = new ByteBuffer[] {content};
+    }
+
+
+    // method dropping a previously set body (when an error page replaces the response)
+    private void clearResponseBody() throws IOException {
+        this.clearResponseSource();
+        if (this.responseMapping != null) {
+            this.responseMapping.close();
+            this.responseMapping = null;
+        }
+    }
+
+
+    // method dropping the file, encoder and buffers of the body, the mapping they were read from being kept
+    private void clearResponseSource() throws IOException {
+        if (this.responseFile != null) {
+            this.responseFile.close();
+            this.responseFile = null;
+        }
+        if (this.responseEncoder != null) {
+            this.responseEncoder.close();
+            this.responseEncoder = null;
+            this.responseData.remove("Transfer-Encoding");
+        }
+        this.responseBuffers = null;
+    }
+
+
+    // method appending the Content-Type header if the type of the file is known (probed when it was indexed)
+    private void setContentType(ResourceIndex.Resource metadata) {
+        if (metadata.contentType != null) {
+            this.responseData.put("Content-Type", metadata.contentType);
+        }
+    }
+
+
+    // method answering with the pre-rendered page of an error code (a HEAD request only gets its headers),
+    // instead of any response prepared before the error
+    private void errorPage(String code) {
+        this.responseData.put("Code", code);
+        this.errorPage = this.errorPages.get(code);
+        this.errorBody = !"HEAD".equals(this.requestData.get("Method"));
+
+        try {
+            this.clearResponseBody();
+        } catch (IOException e) { }
+    }
+
+
+    // method answering a method other than GET and HEAD on a path the server generates (metrics, health checks)
+    private void readOnlyPath() {
+        this.errorPage(ErrorCodes.METHOD_NOT_ALLOWED);
+        this.responseData.put("Allow", "GET, HEAD");
     }
 
 
     // method appending File not Found headers and body
     private void fileNotFound() {
-        this.responseData.put("Code", ErrorCodes.NOT_FOUND);
-        this.readPage(Helper.ERROR_DIR + "/NotFound.html", true);
+        this.errorPage(ErrorCodes.NOT_FOUND);
     }
 
 
     // method appending Internal Server Error headers and body
     private void internalServerError() {
-        this.responseData.put("Code", ErrorCodes.ISE);
-        this.readPage(Helper.ERROR_DIR + "/InternalServerError.html", true);
+        this.errorPage(ErrorCodes.ISE);
     }
 }
 
-
-class ErrorCodes {
-    static final String OK = "200 OK";
-    static final String CREATED = "201 Created";
-    static final String NO_CONTENT = "204 No Content";
-    static final String BAD = "400 Bad Request";
-    static final String FORBIDDEN = "403 Forbidden";
-    static final String NOT_FOUND = "404 Not Found";
-    static final String ISE = "500 Internal Server Error";
-}
@@ -0,0 +1,362 @@
+package webserver;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/*
+    Class implementing HPACK (RFC 7541), the header compression of HTTP/2: the static table shared by both
+    sides, and the decoder and encoder of one connection, each with the dynamic table of its direction. The
+    header strings are handled as ISO-8859-1, so a character is an octet of the table sizes
+ */
+public class Hpack {
+
+    // size of the dynamic tables until a SETTINGS frame says otherwise
+    static final int DEFAULT_TABLE_SIZE = 4096;
+
+    // an entry of a table counts its name, its value and this overhead
+    private static final int ENTRY_OVERHEAD = 32;
+
+    private static final String[][] STATIC_TABLE = {
+            {":authority", ""}, {":method", "GET"}, {":method", "POST"}, {":path", "/"},
+            {":path", "/index.html"}, {":scheme", "http"}, {":scheme", "https"}, {":status", "200"},
+            {":status", "204"}, {":status", "206"}, {":status", "304"}, {":status", "400"}, {":status", "404"},
+            {":status", "500"}, {"accept-charset", ""}, {"accept-encoding", "gzip, deflate"},
+            {"accept-language", ""}, {"accept-ranges", ""}, {"accept", ""}, {"access-control-allow-origin", ""},
+            {"age", ""}, {"allow", ""}, {"authorization", ""}, {"cache-control", ""},
+            {"content-disposition", ""}, {"content-encoding", ""}, {"content-language", ""},
+            {"content-length", ""}, {"content-location", ""}, {"content-range", ""}, {"content-type", ""},
+            {"cookie", ""}, {"date", ""}, {"etag", ""}, {"expect", ""}, {"expires", ""}, {"from", ""},
+            {"host", ""}, {"if-match", ""}, {"if-modified-since", ""}, {"if-none-match", ""}, {"if-range", ""},
+            {"if-unmodified-since", ""}, {"last-modified", ""}, {"link", ""}, {"location", ""},
+            {"max-forwards", ""}, {"proxy-authenticate", ""}, {"proxy-authorization", ""}, {"range", ""},
+            {"referer", ""}, {"refresh", ""}, {"retry-after", ""}, {"server", ""}, {"set-cookie", ""},
+            {"strict-transport-security", ""}, {"transfer-encoding", ""}, {"user-agent", ""}, {"vary", ""},
+            {"via", ""}, {"www-authenticate", ""}};
+
+    // indexes of the static table by name (the first entry of a name) and by name and value
+    private static final Map<String, Integer> STATIC_NAMES = new HashMap<>();
+    private static final Map<String, Integer> STATIC_FIELDS = new HashMap<>();
+
+    static {
+        for (int i = Hpack.STATIC_TABLE.length - 1; i >= 0; i--) {
+            Hpack.STATIC_NAMES.put(Hpack.STATIC_TABLE[i][0], i + 1);
+            Hpack.STATIC_FIELDS.put(Hpack.STATIC_TABLE[i][0] + '\0' + Hpack.STATIC_TABLE[i][1], i + 1);
+        }
+    }
+
+    private Hpack() {
+    }
+
+
+    // Method reading an integer whose first octet keeps the given number of bits; -1 is returned if the
+    // integer is truncated or too big
+    private static int readInteger(ByteBuffer buffer, int prefixBits) {
+        int mask = (1 << prefixBits) - 1;
+        int value;
+        int shift = 0;
+
+        if (!buffer.hasRemaining()) {
+            return -1;
+        }
+        value = buffer.get() & mask;
+        if (value < mask) {
+            return value;
+        }
+
+        while (buffer.hasRemaining() && shift <= 21) {
+            int octet = buffer.get() & 0xff;
+
+            value += (octet & 0x7f) << shift;
+            shift += 7;
+            if ((octet & 0x80) == 0) {
+                return value;
+            }
+        }
+        return -1;
+    }
+
+
+    // Method reading a string literal, Huffman coded or not; null is returned if it is malformed
+    private static String readString(ByteBuffer buffer) {
+        if (!buffer.hasRemaining()) {
+            return null;
+        }
+        boolean huffman = (buffer.get(buffer.position()) & 0x80) != 0;
+        int length = Hpack.readInteger(buffer, 7);
+        byte[] value;
+
+        if (length < 0 || length > buffer.remaining()) {
+            return null;
+        }
+        if (huffman) {
+            value = Huffman.decode(buffer, length);
+            if (value == null) {
+                return null;
+            }
+        } else {
+            value = new byte[length];
+            buffer.get(value);
+        }
+        return new String(value, StandardCharsets.ISO_8859_1);
+    }
+
+
+    // Method writing an integer in the bits of its first octet left by the flags
+    private static void writeInteger(int flags, int prefixBits, int value, ByteArrayOutputStream output) {
+        int mask = (1 << prefixBits) - 1;
+
+        if (value < mask) {
+            output.write(flags | value);
+            return;
+        }
+        output.write(flags | mask);
+        value -= mask;
+        while (value >= 0x80) {
+            output.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        output.write(value);
+    }
+
+
+    // Method writing a string literal, Huffman coded when it is shorter
+    private static void writeString(String value, ByteArrayOutputStream output) {
+        byte[] octets = value.getBytes(StandardCharsets.ISO_8859_1);
+        int encodedLength = Huffman.encodedLength(octets);
+
+        if (encodedLength < octets.length) {
+            Hpack.writeInteger(0x80, 7, encodedLength, output);
+            Huffman.encode(octets, output);
+        } else {
+            Hpack.writeInteger(0, 7, octets.length, output);
+            output.write(octets, 0, octets.length);
+        }
+    }
+
+
+    /*
+        Class holding a dynamic table: the newest entry is at the end of the list and has the first index after
+        the static table
+     */
+    private static class DynamicTable {
+        private final List<String[]> entries = new ArrayList<>();
+        private int size;
+        private int maxSize = Hpack.DEFAULT_TABLE_SIZE;
+
+
+        // Method returning the entry of an index of the whole address space (static then dynamic), null if
+        // there is none
+        String[] get(int index) {
+            if (index <= 0) {
+                return null;
+            }
+            if (index <= Hpack.STATIC_TABLE.length) {
+                return Hpack.STATIC_TABLE[index - 1];
+            }
+            int position = this.entries.size() - 1 - (index - Hpack.STATIC_TABLE.length - 1);
+            return position >= 0 ? this.entries.get(position) : null;
+        }
+
+
+        // Method returning the index of a field in the dynamic table (full match), or of its name if the value
+        // is not there (negated), 0 if the name is not there either
+        int find(String name, String value) {
+            int nameIndex = 0;
+
+            for (int position = this.entries.size() - 1; position >= 0; position--) {
+                String[] entry = this.entries.get(position);
+                int index = Hpack.STATIC_TABLE.length + this.entries.size() - position;
+
+                if (entry[0].equals(name)) {
+                    if (entry[1].equals(value)) {
+                        return index;
+                    }
+                    if (nameIndex == 0) {
+                        nameIndex = -index;
+                    }
+                }
+            }
+            return nameIndex;
+        }
+
+
+        void add(String name, String value) {
+            int entrySize = name.length() + value.length() + Hpack.ENTRY_OVERHEAD;
+
+            // an entry bigger than the table empties it and is not added
+            if (entrySize > this.maxSize) {
+                this.entries.clear();
+                this.size = 0;
+                return;
+            }
+            this.size += entrySize;
+            this.entries.add(new String[]{name, value});
+            this.evict();
+        }
+
+
+        void resize(int maxSize) {
+            this.maxSize = maxSize;
+            this.evict();
+        }
+
+
+        private void evict() {
+            while (this.size > this.maxSize) {
+                String[] evicted = this.entries.remove(0);
+                this.size -= evicted[0].length() + evicted[1].length() + Hpack.ENTRY_OVERHEAD;
+            }
+        }
+    }
+
+
+    /*
+        Class decoding the header blocks received on a connection, in the order they were sent
+     */
+    static class Decoder {
+        private final DynamicTable table = new DynamicTable();
+
+        // the table size advertised in the SETTINGS sent to the peer, the limit of its size updates
+        private final int maxTableSize;
+
+        Decoder(int maxTableSize) {
+            this.maxTableSize = maxTableSize;
+            this.table.resize(maxTableSize);
+        }
+
+
+        // Method decoding a whole header block, adding the names and values of its fields to the list (a name
+        // followed by its value); false is returned if the block is malformed, which breaks the connection as
+        // the table is no longer in sync with the peer's
+        boolean decode(ByteBuffer block, List<String> fields) {
+            boolean fieldSeen = false;
+
+            while (block.hasRemaining()) {
+                int first = block.get(block.position()) & 0xff;
+                String name;
+                String value;
+
+                if ((first & 0x80) != 0) {
+                    // indexed field
+                    String[] entry = this.table.get(Hpack.readInteger(block, 7));
+                    if (entry == null) {
+                        return false;
+                    }
+                    fields.add(entry[0]);
+                    fields.add(entry[1]);
+                    fieldSeen = true;
+                    continue;
+                }
+
+                if ((first & 0xe0) == 0x20) {
+                    // dynamic table size update, only before the first field
+                    int maxSize = Hpack.readInteger(block, 5);
+                    if (fieldSeen || maxSize < 0 || maxSize > this.maxTableSize) {
+                        return false;
+                    }
+                    this.table.resize(maxSize);
+                    continue;
+                }
+
+                // literal field, with incremental indexing (01), without indexing (0000) or never indexed (0001)
+                boolean indexing = (first & 0xc0) == 0x40;
+                int nameIndex = Hpack.readInteger(block, indexing ? 6 : 4);
+
+                if (nameIndex < 0) {
+                    return false;
+                } else if (nameIndex == 0) {
+                    name = Hpack.readString(block);
+                } else {
+                    String[] entry = this.table.get(nameIndex);
+                    name = entry != null ? entry[0] : null;
+                }
+                value = name != null ? Hpack.readString(block) : null;
+                if (value == null) {
+                    return false;
+                }
+
+                if (indexing) {
+                    this.table.add(name, value);
+                }
+                fields.add(name);
+                fields.add(value);
+                fieldSeen = true;
+            }
+            return true;
+        }
+    }
+
+
+    /*
+        Class encoding the header blocks sent on a connection; the blocks have to be sent in the order they are
+        encoded
+     */
+    static class Encoder {
+        private final DynamicTable table = new DynamicTable();
+
+        // size the peer allows for the table, applied (with a size update) at the start of the next block
+        private int pendingMaxSize = -1;
+
+        Encoder() {
+        }
+
+
+        // Method applying the table size of the peer's SETTINGS; the table never grows over the default size
+        void setMaxTableSize(int maxSize) {
+            this.pendingMaxSize = Math.min(maxSize, Hpack.DEFAULT_TABLE_SIZE);
+        }
+
+
+        // Method starting a header block
+        void begin(ByteArrayOutputStream output) {
+            if (this.pendingMaxSize >= 0) {
+                this.table.resize(this.pendingMaxSize);
+                Hpack.writeInteger(0x20, 5, this.pendingMaxSize, output);
+                this.pendingMaxSize = -1;
+            }
+        }
+
+
+        // Method encoding a field (with a lower-case name); a field which is not indexed is not added to the
+        // dynamic table, for the values which seldom repeat
+        void encode(String name, String value, boolean indexed, ByteArrayOutputStream output) {
+            Integer staticIndex = Hpack.STATIC_FIELDS.get(name + '\0' + value);
+            int dynamicIndex;
+            int nameIndex;
+
+            if (staticIndex != null) {
+                Hpack.writeInteger(0x80, 7, staticIndex, output);
+                return;
+            }
+
+            dynamicIndex = this.table.find(name, value);
+            if (dynamicIndex > 0) {
+                Hpack.writeInteger(0x80, 7, dynamicIndex, output);
+                return;
+            }
+
+            staticIndex = Hpack.STATIC_NAMES.get(name);
+            nameIndex = staticIndex != null ? staticIndex : -dynamicIndex;
+
+            if (indexed) {
+                Hpack.writeInteger(0x40, 6, nameIndex, output);
+            } else {
+                Hpack.writeInteger(0, 4, nameIndex, output);
+            }
+            if (nameIndex == 0) {
+                Hpack.writeString(name, output);
+            }
+            Hpack.writeString(value, output);
+
+            if (indexed) {
+                this.table.add(name, value);
+            }
+        }
+    }
+}
@@ -0,0 +1,1496 @@
+package webserver;
+
+import javax.net.ssl.SSLSocket;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+
+/*
+    Class implementing an HTTP/2 connection (RFC 9113) over cleartext TCP (h2c), started by a client which knows the
+    server speaks it (the connection preface instead of a request) or by an HTTP/1.1 request asking to upgrade, or
+    over TLS (h2) when the client chose it with ALPN. The connection takes the socket over from the HTTP/1.1
+    connection which detected it and runs on a reader thread of its own (at most http2.maxConnections of them, the
+    connections above are refused), which reads the frames: the requests of its streams are mapped to the Maps of
+    the parser and run concurrently by the Helper on the server's workers, which send their responses in frames
+    interleaved under a write lock. The request bodies are queued on their stream as they arrive and read by the
+    workers through a RequestBody; both directions are flow-controlled, so a stream which is not read cannot hold
+    the others up. The headers are compressed with HPACK
+ */
+public class Http2Connection implements Runnable, ClientLimits.Watched, Lifecycle.Drained {
+
+    // the bytes a client starts an HTTP/2 connection with ("PRI * HTTP/2.0" followed by "SM")
+    static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    // results of the comparison of the first bytes of a connection with the preface
+    static final int NO_PREFACE = 0;
+    static final int PARTIAL_PREFACE = 1;
+    static final int FULL_PREFACE = 2;
+
+    private static final byte[] SWITCHING_PROTOCOLS = ("HTTP/1.1 101 Switching Protocols\r\n"
+            + "Connection: Upgrade\r\n"
+            + "Upgrade: h2c\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+
+    // the frames received are never bigger than the default size, which is never raised
+    private static final int FRAME_HEADER_SIZE = 9;
+    private static final int MAX_FRAME_SIZE = 16384;
+    private static final int MAX_PEER_FRAME_SIZE = 16777215;
+
+    private static final int DEFAULT_WINDOW = 65535;
+    private static final long MAX_WINDOW = Integer.MAX_VALUE;
+
+    // windows granted to the request bodies, for every stream and for the whole connection: the bytes queued
+    // on the streams and not yet read by the workers never exceed the connection's
+    private static final int STREAM_WINDOW = 256 * 1024;
+    private static final int CONNECTION_WINDOW = 1024 * 1024;
+
+    // size of the buffer a worker reads the body of its stream through
+    private static final int BODY_BUFFER_SIZE = 16384;
+
+    // the reader wakes up this often to check the idle timeout and the writes which do not progress
+    private static final int TICK = 1000;
+
+    // frame types
+    private static final int DATA = 0x0;
+    private static final int HEADERS = 0x1;
+    private static final int PRIORITY = 0x2;
+    private static final int RST_STREAM = 0x3;
+    private static final int SETTINGS = 0x4;
+    private static final int PUSH_PROMISE = 0x5;
+    private static final int PING = 0x6;
+    private static final int GOAWAY = 0x7;
+    private static final int WINDOW_UPDATE = 0x8;
+    private static final int CONTINUATION = 0x9;
+
+    // frame flags
+    private static final int END_STREAM = 0x1;
+    private static final int ACK = 0x1;
+    private static final int END_HEADERS = 0x4;
+    private static final int PADDED = 0x8;
+    private static final int PRIORITY_FLAG = 0x20;
+
+    // settings
+    private static final int HEADER_TABLE_SIZE = 0x1;
+    private static final int ENABLE_PUSH = 0x2;
+    private static final int MAX_CONCURRENT_STREAMS = 0x3;
+    private static final int INITIAL_WINDOW_SIZE = 0x4;
+    private static final int MAX_FRAME_SIZE_SETTING = 0x5;
+    private static final int MAX_HEADER_LIST_SIZE = 0x6;
+
+    // error codes
+    private static final int NO_ERROR = 0x0;
+    private static final int PROTOCOL_ERROR = 0x1;
+    private static final int FLOW_CONTROL_ERROR = 0x3;
+    private static final int STREAM_CLOSED = 0x5;
+    private static final int FRAME_SIZE_ERROR = 0x6;
+    private static final int REFUSED_STREAM = 0x7;
+    private static final int CANCEL = 0x8;
+    private static final int COMPRESSION_ERROR = 0x9;
+    private static final int ENHANCE_YOUR_CALM = 0xb;
+
+    // the request headers which only make sense on an HTTP/1.1 connection, a request having one is malformed
+    private static final String[] CONNECTION_HEADERS = {"connection", "keep-alive", "proxy-connection",
+            "transfer-encoding", "upgrade"};
+
+    // the request headers stored for the Helper, by their lower-case HTTP/2 name (the framing ones are left out)
+    private static final Map<String, String> STORED_HEADERS = new HashMap<>();
+
+    static {
+        List<String> framingHeaders = List.of("Connection", "Transfer-Encoding", "Expect", "Upgrade",
+                "HTTP2-Settings");
+
+        for (String header : HTTPParser.headers) {
+            if (!framingHeaders.contains(header)) {
+                Http2Connection.STORED_HEADERS.put(header.toLowerCase(Locale.ROOT), header);
+            }
+        }
+    }
+
+    // answer of a connection sent the preface above http2.maxConnections: the server's (empty) SETTINGS and a
+    // GOAWAY refusing every stream, so the client can retry them on another connection
+    private static final byte[] REFUSED_CONNECTION = {
+            0, 0, 0, Http2Connection.SETTINGS, 0, 0, 0, 0, 0,
+            0, 0, 8, Http2Connection.GOAWAY, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, Http2Connection.REFUSED_STREAM};
+
+    // marks the end of the body in the queue of a stream
+    private static final ByteBuffer END_OF_BODY = ByteBuffer.allocate(0);
+
+    // the accepted socket, and the TLS socket layered over it (null for h2c) which the frames go through
+    private final Socket socket;
+    private final SSLSocket tlsSocket;
+    private GatheringByteChannel channel;
+    private final ExecutorService workersPool;
+    private final ServerContext context;
+    private final ClientLimits limits;
+    private final int maxConcurrentStreams;
+
+    // the request of an upgraded connection (answered on stream 1) and the settings it was sent with
+    private final Map<String, String> upgradeRequest;
+    private final byte[] upgradeSettings;
+
+    // the frames are read from here (in read mode), starting with the bytes received before the hand-over
+    private ByteBuffer input;
+    private InputStream inputStream;
+
+    private final Hpack.Decoder decoder;
+    private final ByteArrayOutputStream headerBlock;
+    private final Map<Integer, Stream> streams;
+
+    // state of the reader thread: the last stream opened by the client, the stream whose header block goes
+    // on in CONTINUATION frames
+    private int lastStreamId;
+    private int continuedStream;
+    private boolean continuedEndStream;
+    private boolean settingsReceived;
+    private boolean goingAway;
+    private volatile long lastActivity;
+
+    // last stream id of the GOAWAY sent, which a later one cannot raise (the streams opened after it were refused)
+    private int goAwayStreamId;
+
+    // the frames of the workers and of the reader are written one at a time, the header blocks are compressed
+    // in the order they are sent
+    private final Object writeLock;
+    private final Hpack.Encoder encoder;
+    private final ByteArrayOutputStream encodedHeaders;
+    private final ByteBuffer frameHeader;
+    private final ByteBuffer[] frame;
+
+    // progress of the write in progress (0 when none is), checked by the reader
+    private volatile long writingSince;
+    private volatile long lastWrite;
+
+    // flow control, guarded by this object's monitor: the bytes the client accepts on the connection, its
+    // initial window of the streams and the bytes it can still send on the connection
+    private long sendWindow;
+    private long peerInitialWindow;
+    private long receiveWindow;
+    private volatile int peerMaxFrameSize;
+    private boolean closed;
+
+    private int servedStreams;
+
+    Http2Connection(Socket socket, SSLSocket tlsSocket, ByteBuffer received, Map<String, String> upgradeRequest,
+                    byte[] upgradeSettings, ExecutorService workersPool, ServerContext context) {
+        this.socket = socket;
+        this.tlsSocket = tlsSocket;
+        this.workersPool = workersPool;
+        this.context = context;
+        this.limits = context.limits;
+        this.maxConcurrentStreams = context.maxConcurrentStreams;
+        this.upgradeRequest = upgradeRequest;
+        this.upgradeSettings = upgradeSettings;
+
+        this.input = ByteBuffer.allocate(Math.max(received.remaining(),
+                Http2Connection.FRAME_HEADER_SIZE + Http2Connection.MAX_FRAME_SIZE));
+        this.input.put(received);
+        this.input.flip();
+
+        this.decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+        this.headerBlock = new ByteArrayOutputStream();
+        this.streams = new ConcurrentHashMap<>();
+
+        this.writeLock = new Object();
+        this.encoder = new Hpack.Encoder();
+        this.encodedHeaders = new ByteArrayOutputStream();
+        this.frameHeader = ByteBuffer.allocate(Http2Connection.FRAME_HEADER_SIZE);
+        this.frame = new ByteBuffer[2];
+
+        this.sendWindow = Http2Connection.DEFAULT_WINDOW;
+        this.peerInitialWindow = Http2Connection.DEFAULT_WINDOW;
+        this.receiveWindow = Http2Connection.CONNECTION_WINDOW;
+        this.peerMaxFrameSize = Http2Connection.MAX_FRAME_SIZE;
+        this.goAwayStreamId = Integer.MAX_VALUE;
+    }
+
+
+    // Method comparing the first bytes of a connection (in read mode) with the preface: a client speaking
+    // HTTP/1.1 differs at the latest on the second byte
+    static int matchPreface(ByteBuffer buffer) {
+        int length = Math.min(buffer.remaining(), Http2Connection.PREFACE.length);
+
+        for (int i = 0; i < length; i++) {
+            if (buffer.get(buffer.position() + i) != Http2Connection.PREFACE[i]) {
+                return Http2Connection.NO_PREFACE;
+            }
+        }
+        return length == Http2Connection.PREFACE.length ? Http2Connection.FULL_PREFACE
+                : Http2Connection.PARTIAL_PREFACE;
+    }
+
+
+    // Method returning the settings of a request asking to upgrade to h2c (the payload of a SETTINGS frame
+    // sent in its HTTP2-Settings header), null if it is not such a request or cannot be upgraded: only a valid
+    // HTTP/1.1 request without a body is, so the connection carries nothing else when it switches
+    static byte[] getUpgradeSettings(Map<String, String> requestData, boolean hasBody) {
+        String upgrade = requestData.get("Upgrade");
+        String settings = requestData.get("HTTP2-Settings");
+
+        if (upgrade == null || settings == null || hasBody || requestData.containsKey("Code")
+                || !"HTTP/1.1".equals(requestData.get("Protocol"))) {
+            return null;
+        }
+
+        for (String protocol : upgrade.split(",")) {
+            if (protocol.trim().equalsIgnoreCase("h2c")) {
+                try {
+                    byte[] payload = Base64.getUrlDecoder().decode(settings.trim());
+                    return payload.length % 6 == 0 ? payload : null;
+                } catch (IllegalArgumentException e) {
+                    return null;
+                }
+            }
+        }
+        return null;
+    }
+
+
+    // Method handing the connection over to a reader thread of the server, or refusing it if the server holds as
+    // many HTTP/2 connections as allowed
+    void start() {
+        if (!this.context.admission.admitHttp2Connection()) {
+            this.refuse();
+            return;
+        }
+
+        try {
+            this.context.getHttp2Readers().execute(this);
+        } catch (RejectedExecutionException e) {
+            // the server is stopping, its readers take no new connection
+            this.context.admission.http2ConnectionClosed();
+            this.refuse();
+        }
+    }
+
+
+    // Method refusing the connection on the thread handing it over: an upgrade request is answered with 503 and
+    // Retry-After, a client which sent the preface with a GOAWAY. As in the rejections of the acceptor, the
+    // answer fits in the empty socket buffer and is written once without blocking (an event loop may be handing
+    // a cleartext connection over), and the bytes received are discarded so closing does not reset the connection
+    // before the client reads it
+    private void refuse() {
+        byte[] answer = this.upgradeRequest != null ? this.context.admission.getServiceUnavailable()
+                : Http2Connection.REFUSED_CONNECTION;
+
+        try {
+            if (this.tlsSocket != null) {
+                this.tlsSocket.getOutputStream().write(answer);
+            } else {
+                SocketChannel channel = this.socket.getChannel();
+                channel.configureBlocking(false);
+                channel.write(ByteBuffer.wrap(answer));
+                channel.shutdownOutput();
+                this.input.clear();
+                channel.read(this.input);
+            }
+        } catch (IOException e) {
+            // the client is gone, there is nobody to answer
+        } finally {
+            try {
+                this.socket.close();
+            } catch (IOException e) { }
+            this.context.metrics.connectionClosed();
+            this.context.admission.connectionClosed();
+        }
+
+        Log.debug(this.socket, " refused, the server holds too many HTTP/2 connections.");
+    }
+
+    @Override
+    public void run() {
+        Log.debug(this.socket, " switched to HTTP/2.");
+        this.lastActivity = System.currentTimeMillis();
+        this.limits.watch(this);
+        this.context.lifecycle.register(this);
+
+        try {
+            // a cleartext connection may come from an event loop, its channel is made blocking again
+            if (this.tlsSocket != null) {
+                this.channel = TlsTermination.outputOf(this.tlsSocket);
+                this.inputStream = this.tlsSocket.getInputStream();
+            } else {
+                this.socket.getChannel().configureBlocking(true);
+                this.channel = this.socket.getChannel();
+                this.inputStream = this.socket.getInputStream();
+            }
+            this.socket.setSoTimeout(Http2Connection.TICK);
+
+            // the server's SETTINGS are the first frame, sent right after the 101 response of an upgrade
+            if (this.upgradeRequest != null) {
+                this.write(ByteBuffer.wrap(Http2Connection.SWITCHING_PROTOCOLS));
+            }
+            this.writeSettings();
+            if (this.upgradeRequest != null) {
+                this.applySettings(ByteBuffer.wrap(this.upgradeSettings));
+                this.openUpgradedStream();
+            }
+
+            this.require(Http2Connection.PREFACE.length);
+            for (byte expected : Http2Connection.PREFACE) {
+                if (this.input.get() != expected) {
+                    throw new Http2Exception(Http2Connection.PROTOCOL_ERROR, "Invalid connection preface.");
+                }
+            }
+
+            while (true) {
+                this.checkDrain();
+                this.readFrame();
+            }
+
+        } catch (Http2Exception e) {
+            if (e.errorCode != Http2Connection.NO_ERROR) {
+                Log.debug(this.socket, " HTTP/2 error: " + e.getMessage());
+            }
+            this.goAway(e.errorCode);
+        } catch (EOFException e) {
+            // the client closed the connection
+        } catch (IOException e) {
+            Log.warn("Connection error on " + this.socket);
+        } finally {
+            this.close();
+        }
+    }
+
+
+    // Method making sure the buffer holds at least count bytes, reading from the socket; the reader wakes up
+    // every TICK to check the timeouts
+    private void require(int count) throws IOException {
+        while (this.input.remaining() < count) {
+            int read;
+
+            this.input.compact();
+            try {
+                read = this.inputStream.read(this.input.array(), this.input.position(), this.input.remaining());
+            } catch (SocketTimeoutException e) {
+                read = 0;
+                this.checkTimeouts(System.currentTimeMillis());
+            } finally {
+                this.input.flip();
+            }
+            if (read < 0) {
+                throw new EOFException("The client closed the connection.");
+            }
+            if (read > 0) {
+                this.input.limit(this.input.limit() + read);
+            }
+        }
+    }
+
+
+    // Method called by the reader when it waits: a connection without streams is closed after the idle timeout
+    // or once the client has gone away
+    private void checkTimeouts(long now) throws IOException {
+        this.checkDrain();
+        if (this.streams.isEmpty()
+                && (this.goingAway || now - this.lastActivity > this.context.idleTimeout)) {
+            throw new Http2Exception(Http2Connection.NO_ERROR, "Idle connection.");
+        }
+    }
+
+
+    // Method called by the reader: once the server drains, the client is sent GOAWAY, the streams it has opened
+    // are served and the new ones refused, and the connection is closed when the last one is done
+    private void checkDrain() {
+        if (!this.goingAway && this.context.lifecycle.isDraining()) {
+            this.goingAway = true;
+            this.goAway(Http2Connection.NO_ERROR);
+        }
+    }
+
+
+    // Method called by the server thread when it drains: nothing to do, the reader sees the drain at its next
+    // frame or tick
+    @Override
+    public void drain() {
+    }
+
+
+    // Method called by the server thread at the end of the drain timeout: the reader and the workers fail
+    @Override
+    public void abort() {
+        try {
+            this.socket.shutdownOutput();
+            this.socket.close();
+        } catch (IOException e) { }
+    }
+
+
+    // Method called by the watchdog thread: a client which reads none of the frames for the write timeout loses
+    // the connection; shutting the output down fails the blocked write (the reader and the workers see it)
+    @Override
+    public void checkWrite(long now) {
+        if (this.writingSince == 0 || now - this.lastWrite <= this.limits.writeTimeout) {
+            return;
+        }
+
+        this.limits.writeTimeout();
+        this.writingSince = 0;
+        try {
+            this.socket.shutdownOutput();
+            this.socket.close();
+        } catch (IOException e) { }
+    }
+
+
+    // Method reading and handling the next frame
+    private void readFrame() throws IOException {
+        int length;
+        int type;
+        int flags;
+        int streamId;
+        ByteBuffer payload;
+
+        this.require(Http2Connection.FRAME_HEADER_SIZE);
+        length = ((this.input.get() & 0xff) << 16) | ((this.input.get() & 0xff) << 8) | (this.input.get() & 0xff);
+        type = this.input.get() & 0xff;
+        flags = this.input.get() & 0xff;
+        streamId = this.input.getInt() & 0x7fffffff;
+
+        if (length > Http2Connection.MAX_FRAME_SIZE) {
+            throw new Http2Exception(Http2Connection.FRAME_SIZE_ERROR, "Frame of " + length + " bytes.");
+        }
+        this.require(length);
+        payload = this.input.slice();
+        payload.limit(length);
+        this.input.position(this.input.position() + length);
+        this.lastActivity = System.currentTimeMillis();
+
+        // the first frame of the client is its SETTINGS, and a header block is not interrupted
+        if (!this.settingsReceived && type != Http2Connection.SETTINGS) {
+            throw new Http2Exception(Http2Connection.PROTOCOL_ERROR, "SETTINGS expected.");
+        }
+        if (this.continuedStream != 0 && type != Http2Connection.CONTINUATION) {
+            throw new Http2Exception(Http2Connection.PROTOCOL_ERROR, "CONTINUATION expected.");
+        }
+
+        switch (type) {
+            case Http2Connection.DATA:
+                this.onData(streamId, flags, payload);
+                break;
+            case Http2Connection.HEADERS:
+                this.onHeaders(streamId, flags, payload);
+                break;
+            case Http2Connection.CONTINUATION:
+                this.onContinuation(streamId, flags, payload);
+                break;
+            case Http2Connection.PRIORITY:
+                // the priorities are not used, the streams are served in the order they arrive
+                if (streamId == 0) {
+                    throw new Http2Exception(Http2Connection.PROTOCOL_ERROR, "PRIORITY on the connection.");
+                }
+                break;
+            case Http2Connection.RST_STREAM:
+                this.onResetStream(streamId, payload);
+                break;
+            case Http2Connection.SETTINGS:
+                this.onSettings(streamId, flags, payload);
+                break;
+            case Http2Connection.PING:
+                if (streamId != 0 || length != 8) {
+                    throw new Http2Exception(Http2Connection.PROTOCOL_ERROR, "Invalid PING.");
+                }
+                if ((flags & Http2Connection.ACK) == 0) {
+                    this.writeFrame(Http2Connection.PING, Http2Connection.ACK, 0, payload);
+                }
+                break;
+            case Http2Connection.GOAWAY:
+                // the streams open are served, then the connection is closed
+                this.goingAway = true;
+                break;
+            case Http2Connection.WINDOW_UPDATE:
+                this.onWindowUpdate(streamId, payload);
+                break;
+            case Http2Connection.PUSH_PROMISE:
+                throw new Http2Exception(Http2Connection.PROTOCOL_ERROR, "PUSH_PROMISE from a client.");
+            default:
+                // the unknown frame types are ignored
+                break;
+        }
+    }
+
+
+    private void onData(int streamId, int flags, ByteBuffer payload) throws IOException {
+        int length = payload.remaining();
+        int padding = 0;
+        Stream stream = this.streams.get(streamId);
+
+        if (streamId == 0 || streamId > this.lastStreamId) {
+            throw new Http2Exception(Http2Connection.PROTOCOL_ERROR, "DATA on an idle stream.");
+        }
+        // the bytes which are not data (the pad length and the padding) are counted in padding
+        if ((flags & Http2Connection.PADDED) != 0) {
+            int padLength = length > 0 ? payload.get() & 0xff : length;
+            if (padLength >= length) {
+                throw new Http2Exception(Http2Connection.PROTOCOL_ERROR, "Invalid padding.");
+            }
+            payload.limit(length - padLength);
+            padding = padLength + 1;
+        }
+
+        synchronized (this) {
+            // the whole frame counts, the padding is given back at once
+            this.receiveWindow -= length;
+            if (this.receiveWindow < 0) {
+                throw new Http2Exception(Http2Connection.FLOW_CONTROL_ERROR, "Connection window exceeded.");
+            }
+
+            if (stream == null || stream.reset || stream.remoteClosed) {
+                // a stream which was reset (or whose response was sent) is forgotten, but its bytes are still
+                // given back to the connection
+                this.receiveWindow += length;
+                this.writeWindowUpdate(0, length);
+                if (stream != null && stream.remoteClosed && !stream.reset) {
+                    this.resetStream(stream, Http2Connection.STREAM_CLOSED);
+                }
+                return;
+            }
+
+            stream.receiveWindow -= length;
+            if (stream.receiveWindow < 0) {
+                this.receiveWindow += length;
+                this.writeWindowUpdate(0, length);
+                this.resetStream(stream, Http2Connection.FLOW_CONTROL_ERROR);
+                return;
+            }
+
+            if (payload.hasRemaining()) {
+                ByteBuffer data = ByteBuffer.allocate(payload.remaining());
+                data.put(payload);
+                stream.body.add(data.flip());
+            }
+            if (padding > 0) {
+                this.release(stream, padding);
+            }
+        }
+
+        if ((flags & Http2Connection.END_STREAM) != 0) {
+            this.endRemote(stream);
+        }
+    }
+
+
+    private void onHeaders(int streamId, int flags, ByteBuffer payload) throws IOException {
+        int padding = 0;
+
+        if (streamId == 0) {
+            throw new Http2Exception(Http2Connection.PROTOCOL_ERROR, "HEADERS on the connection.");
+        }
+        if ((flags & Http2Connection.PADDED) != 0) {
+            padding = payload.hasRemaining() ? payload.get() & 0xff : Integer.MAX_VALUE;
+        }
+        if ((flags & Http2Connection.PRIORITY_FLAG) != 0) {
+            if (payload.remaining() < 5) {
+                throw new Http2Exception(Http2Connection.FRAME_SIZE_ERROR, "Truncated priority.");
+            }
+            payload.position(payload.position() + 5);
+        }
+        if (padding > payload.remaining()) {
+            throw new Http2Exception(Http2Connection.PROTOCOL_ERROR, "Invalid padding.");
+        }
+        payload.limit(payload.limit() - padding);
+
+        this.headerBlock.reset();
+        this.appendHeaderBlock(payload);
+
+        if ((flags & Http2Connection.END_HEADERS) != 0) {
+            this.onHeaderBlock(streamId, (flags & Http2Connection.END_STREAM) != 0);
+        } else {
+            this.continuedStream = streamId;
+            this.continuedEndStream = (flags & Http2Connection.END_STREAM) != 0;
+        }
+    }
+
+
+    private void onContinuation(int streamId, int flags, ByteBuffer payload) throws IOException {
+        if (streamId == 0 || streamId != this.continuedStream) {
+            throw new Http2Exception(Http2Connection.PROTOCOL_ERROR, "Unexpected CONTINUATION.");
+        }
+        this.appendHeaderBlock(payload);
+
+        if ((flags & Http2Connection.END_HEADERS) != 0) {
+            this.continuedStream = 0;
+            this.onHeaderBlock(streamId, this.continuedEndStream);
+        }
+    }
+
+
+    // Method adding a fragment to the header block being received; a block is bounded, as it has to be decoded
+    // whole to keep the HPACK table in sync even if the request is refused
+    private void appendHeaderBlock(ByteBuffer fragment) throws IOException {
+        if (this.headerBlock.size() + fragment.remaining()
+                > 2L * this.limits.maxHeaderBytes + Http2Connection.MAX_FRAME_SIZE) {
+            this.limits.headersTooLarge();
+            throw new Http2Exception(Http2Connection.ENHANCE_YOUR_CALM, "Header block too large.");
+        }
+        this.headerBlock.write(fragment.array(), fragment.arrayOffset() + fragment.position(), fragment.remaining());
+    }
+
+
+    // Method handling a complete header block: the request of a new stream, or the trailers of a body
+    private void onHeaderBlock(int streamId, boolean endStream) throws IOException {
+        List<String> fields = new ArrayList<>();
+        Map<String, String> requestData;
+        Stream stream;
+
+        if (!this.decoder.decode(ByteBuffer.wrap(this.headerBlock.toByteArray()), fields)) {
+            throw new Http2Exception(Http2Connection.COMPRESSION_ERROR, "Invalid header block.");
+        }
+
+        stream = this.streams.get(streamId);
+        if (stream != null || streamId <= this.lastStreamId) {
+            // trailers, which are ignored; they end the body
+            if (!endStream) {
+                throw new Http2Exception(Http2Connection.PROTOCOL_ERROR, "Trailers without END_STREAM.");
+            }
+            if (stream != null) {
+                this.endRemote(stream);
+            }
+            return;
+        }
+
+        if (streamId % 2 == 0) {
+            throw new Http2Exception(Http2Connection.PROTOCOL_ERROR, "Stream opened with an even id.");
+        }
+        this.lastStreamId = streamId;
+
+        requestData = this.toRequest(fields);
+        stream = new Stream(streamId, requestData, !endStream, this.peerInitialWindow);
+
+        if (requestData == null) {
+            this.resetStream(stream, Http2Connection.PROTOCOL_ERROR);
+        } else if (this.goingAway || this.streams.size() >= this.maxConcurrentStreams) {
+            this.resetStream(stream, Http2Connection.REFUSED_STREAM);
+        } else {
+            this.dispatch(stream);
+        }
+    }
+
+
+    // Method mapping the fields of a request to the Map of the parser; null is returned if the request is
+    // malformed (its stream is reset), the requests over the limits get an error code as on HTTP/1.1
+    private Map<String, String> toRequest(List<String> fields) {
+        Map<String, String> requestData = new HashMap<>();
+        String method = null;
+        String path = null;
+        String scheme = null;
+        long headerBytes = 0;
+        int headerCount = 0;
+        boolean regularSeen = false;
+
+        for (int i = 0; i < fields.size(); i += 2) {
+            String name = fields.get(i);
+            String value = fields.get(i + 1);
+
+            headerBytes += name.length() + value.length() + 32;
+
+            if (name.startsWith(":")) {
+                // the pseudo-headers come first, once each
+                if (regularSeen) {
+                    return null;
+                } else if (name.equals(":method") && method == null) {
+                    method = value;
+                } else if (name.equals(":path") && path == null) {
+                    path = value;
+                } else if (name.equals(":scheme") && scheme == null) {
+                    scheme = value;
+                } else if (!name.equals(":authority")) {
+                    return null;
+                }
+                continue;
+            }
+
+            regularSeen = true;
+            headerCount++;
+            if (!name.equals(name.toLowerCase(Locale.ROOT))) {
+                return null;
+            }
+            for (String connectionHeader : Http2Connection.CONNECTION_HEADERS) {
+                if (name.equals(connectionHeader)) {
+                    return null;
+                }
+            }
+            if (name.equals("te") && !value.equals("trailers")) {
+                return null;
+            }
+
+            String header = Http2Connection.STORED_HEADERS.get(name);
+            if (header != null) {
+                requestData.put(header, value);
+            }
+        }
+
+        if (method == null || path == null || scheme == null || path.isEmpty()) {
+            return null;
+        }
+
+        // the path is decoded as the parser decodes the request line
+        path = new String(path.getBytes(StandardCharsets.ISO_8859_1), StandardCharsets.UTF_8);
+        requestData.put("Protocol", "HTTP/2.0");
+        requestData.put("Resource", path.equals("/") ? "/index.html" : path);
+        for (String knownMethod : HTTPParser.methods) {
+            if (knownMethod.equals(method)) {
+                requestData.put("Method", method);
+            }
+        }
+
+        String contentLength = requestData.get("Content-Length");
+        if (!requestData.containsKey("Method") || (contentLength != null && !contentLength.matches("[0-9]{1,18}"))) {
+            requestData.put("Code", ErrorCodes.BAD);
+        } else if (path.length() > this.limits.maxRequestLine) {
+            this.limits.requestLineTooLong();
+            requestData.put("Code", ErrorCodes.URI_TOO_LONG);
+        } else if (headerCount > this.limits.maxHeaderCount) {
+            this.limits.tooManyHeaders();
+            requestData.put("Code", ErrorCodes.HEADERS_TOO_LARGE);
+        } else if (headerBytes > this.limits.maxHeaderBytes) {
+            this.limits.headersTooLarge();
+            requestData.put("Code", ErrorCodes.HEADERS_TOO_LARGE);
+        } else if (contentLength != null && Long.parseLong(contentLength) > this.limits.maxBodyBytes) {
+            this.limits.bodyTooLarge();
+            requestData.put("Code", ErrorCodes.PAYLOAD_TOO_LARGE);
+        }
+        return requestData;
+    }
+
+
+    // Method opening stream 1, whose request is the one which asked for the upgrade (it has no body)
+    private void openUpgradedStream() throws IOException {
+        Map<String, String> requestData = new HashMap<>(this.upgradeRequest);
+        Stream stream;
+
+        requestData.put("Protocol", "HTTP/2.0");
+        requestData.remove("Connection");
+        requestData.remove("Upgrade");
+        requestData.remove("HTTP2-Settings");
+
+        this.lastStreamId = 1;
+        stream = new Stream(1, requestData, false, this.peerInitialWindow);
+        this.dispatch(stream);
+    }
+
+
+    // Method handing the request of a stream to a worker, unless the admission control sheds it or the queue of
+    // the workers is full (it is then answered with 503 by the reader)
+    private void dispatch(Stream stream) throws IOException {
+        long dispatchStart = System.nanoTime();
+
+        this.streams.put(stream.id, stream);
+        this.servedStreams++;
+
+        if (!this.context.admission.admitRequest()) {
+            this.shed(stream);
+            return;
+        }
+        try {
+            this.workersPool.execute(() -> this.process(stream, dispatchStart));
+        } catch (RejectedExecutionException e) {
+            this.context.admission.requestRejected();
+            this.shed(stream);
+        }
+    }
+
+
+    // Method answering a stream with 503 and Retry-After without processing it
+    private void shed(Stream stream) throws IOException {
+        Map<String, String> responseData = new HashMap<>();
+
+        responseData.put("Code", ErrorCodes.SERVICE_UNAVAILABLE);
+        responseData.put("Content-Length", "0");
+        responseData.put("Retry-After", String.valueOf(this.context.admission.getRetryAfter()));
+
+        this.writeHeaders(stream, responseData, null, true);
+        this.context.metrics.recordRequest(stream.requestData.get("Method"), ErrorCodes.SERVICE_UNAVAILABLE,
+                0, 0, 0);
+        if (this.context.accessLog.isEnabled()) {
+            this.context.accessLog.log(this.socket.getInetAddress(), stream.requestData,
+                    ErrorCodes.SERVICE_UNAVAILABLE, 0, 0);
+        }
+        this.finish(stream);
+    }
+
+
+    // Method run on a worker thread: apply the operation of the request of a stream and send its response
+    private void process(Stream stream, long dispatchStart) {
+        Map<String, String> requestData = stream.requestData;
+        Map<String, String> responseData = new HashMap<>();
+        RequestBody requestBody = null;
+        Helper helper = null;
+        boolean released = false;
+        long actionStart = System.nanoTime();
+        long writeStart = actionStart;
+
+        try {
+            if (stream.hasBody && !requestData.containsKey("Code")) {
+                String contentLength = requestData.get("Content-Length");
+                requestBody = new RequestBody(ByteBuffer.allocate(Http2Connection.BODY_BUFFER_SIZE),
+                        contentLength != null ? Long.parseLong(contentLength) : RequestBody.UNTIL_END, false,
+                        (buffer, sendContinue) -> this.receiveBody(stream, buffer), this.limits);
+            }
+
+            helper = new Helper(requestData, requestBody, responseData, this.context);
+            helper.applyAction();
+
+            writeStart = System.nanoTime();
+            this.context.admission.requestDone(writeStart - dispatchStart);
+            released = true;
+            this.sendResponse(stream, helper, responseData);
+
+        } catch (IOException e) {
+            // the stream was reset or the connection closed
+            Log.debug(this.socket, " stream " + stream.id + " failed: " + e.getMessage());
+        } finally {
+            if (!released) {
+                this.context.admission.requestDone(System.nanoTime() - dispatchStart);
+            }
+            if (helper != null) {
+                Http2Connection.closeQuietly(helper.getResponseFile());
+                Http2Connection.closeQuietly(helper.getResponseEncoder());
+                Http2Connection.closeQuietly(helper.getResponseMapping());
+            }
+            this.finish(stream);
+        }
+
+        long writeEnd = System.nanoTime();
+        this.context.metrics.recordRequest(requestData.get("Method"), responseData.get("Code"), 0,
+                writeStart - actionStart, writeEnd - writeStart);
+        if (this.context.accessLog.isEnabled()) {
+            this.context.accessLog.log(this.socket.getInetAddress(), requestData, responseData.get("Code"),
+                    helper != null ? helper.getBodyLength() : 0, writeEnd - actionStart);
+        }
+    }
+
+
+    // Method sending the response prepared by the Helper: its headers, then its body from memory, from the file
+    // (sendfile, frame by frame) or from the encoder; the last frame ends the stream
+    private void sendResponse(Stream stream, Helper helper, Map<String, String> responseData) throws IOException {
+        ErrorPages.Page page = helper.getErrorPage();
+        ByteBuffer[] buffers = helper.getResponseBuffers();
+        FileChannel file = helper.getResponseFile();
+        GzipEncoder encoder = helper.getResponseEncoder();
+        byte[] pageBody = page != null && helper.hasErrorBody() ? page.getBody() : null;
+
+        if (buffers != null) {
+            this.writeHeaders(stream, responseData, null, false);
+            for (int i = 0; i < buffers.length; i++) {
+                this.writeData(stream, buffers[i], i == buffers.length - 1);
+            }
+        } else if (file != null) {
+            this.writeHeaders(stream, responseData, null, false);
+            this.transferData(stream, file, helper.getResponseFilePosition(), helper.getResponseFileLength());
+        } else if (encoder != null) {
+            ByteBuffer chunk;
+
+            this.writeHeaders(stream, responseData, null, false);
+            while ((chunk = encoder.next()) != null) {
+                this.writeData(stream, chunk, false);
+            }
+            this.writeData(stream, Http2Connection.END_OF_BODY.duplicate(), true);
+        } else if (pageBody != null && pageBody.length > 0) {
+            this.writeHeaders(stream, responseData, page, false);
+            this.writeData(stream, ByteBuffer.wrap(pageBody), true);
+        } else {
+            this.writeHeaders(stream, responseData, page, true);
+        }
+    }
+
+
+    // Method reading the next bytes of the body of a stream (called by the RequestBody on the worker): the data
+    // received is given back to the client's windows once it is read; false is returned at the end of the body.
+    // A client which stops sending the body, or sends it below the minimum rate, fails the request with 408
+    private boolean receiveBody(Stream stream, ByteBuffer buffer) throws IOException {
+        int count = 0;
+
+        if (stream.bodyStart == 0) {
+            stream.bodyStart = System.currentTimeMillis();
+        }
+
+        while (buffer.hasRemaining()) {
+            if (stream.current == null || !stream.current.hasRemaining()) {
+                stream.current = count > 0 ? stream.body.poll() : this.takeBody(stream);
+                if (stream.current == null) {
+                    break;
+                }
+            }
+            if (stream.current == Http2Connection.END_OF_BODY) {
+                if (stream.reset) {
+                    throw new IOException("The stream was reset.");
+                }
+                stream.current = null;
+                stream.body.add(Http2Connection.END_OF_BODY);
+                if (count == 0) {
+                    return false;
+                }
+                break;
+            }
+
+            int chunk = Math.min(buffer.remaining(), stream.current.remaining());
+            ByteBuffer slice = stream.current.duplicate();
+            slice.limit(slice.position() + chunk);
+            buffer.put(slice);
+            stream.current.position(stream.current.position() + chunk);
+            count += chunk;
+        }
+
+        stream.bodyBytes += count;
+        synchronized (this) {
+            this.release(stream, count);
+        }
+        if (this.limits.isTooSlow(stream.bodyBytes, stream.bodyStart, System.currentTimeMillis())) {
+            this.limits.belowMinRate();
+            throw new SocketTimeoutException("The request body is sent below the minimum rate.");
+        }
+        return true;
+    }
+
+
+    // Method waiting for the next data of a stream, for the body timeout or less if the body would fall below
+    // the minimum rate before
+    private ByteBuffer takeBody(Stream stream) throws IOException {
+        long now = System.currentTimeMillis();
+        long rateDeadline = this.limits.rateDeadline(stream.bodyBytes, stream.bodyStart);
+        boolean rateBound = rateDeadline - now < this.limits.bodyTimeout;
+        ByteBuffer data;
+
+        try {
+            data = stream.body.poll(rateBound ? Math.max(1, rateDeadline - now) : this.limits.bodyTimeout,
+                    TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the request body.");
+        }
+
+        if (data == null) {
+            if (rateBound) {
+                this.limits.belowMinRate();
+            } else {
+                this.limits.bodyTimeout();
+            }
+            throw new SocketTimeoutException("The client stopped sending the request body.");
+        }
+        return data;
+    }
+
+
+    // Method giving bytes read (or dropped) back to the windows of the client (called with the monitor held);
+    // the window of a stream whose body is over is not updated
+    private void release(Stream stream, int count) {
+        if (count <= 0) {
+            return;
+        }
+        this.receiveWindow += count;
+        this.writeWindowUpdate(0, count);
+
+        if (!stream.remoteClosed && !stream.reset) {
+            stream.receiveWindow += count;
+            this.writeWindowUpdate(stream.id, count);
+        }
+    }
+
+
+    // Method marking the end of the body of a stream (END_STREAM received)
+    private void endRemote(Stream stream) {
+        synchronized (this) {
+            stream.remoteClosed = true;
+        }
+        stream.body.add(Http2Connection.END_OF_BODY);
+    }
+
+
+    // Method closing a stream once its response is sent: if the client is still sending its body, it is told
+    // to stop (RST_STREAM with NO_ERROR)
+    private void finish(Stream stream) {
+        synchronized (this) {
+            if (!stream.remoteClosed && !stream.reset) {
+                this.resetStream(stream, Http2Connection.NO_ERROR);
+            }
+        }
+        this.streams.remove(stream.id);
+        this.lastActivity = System.currentTimeMillis();
+    }
+
+
+    // Method resetting a stream: the body bytes still queued are given back to the connection, a worker waiting
+    // for the body or for the window is woken up
+    private void resetStream(Stream stream, int errorCode) {
+        ByteBuffer frame = ByteBuffer.allocate(4).putInt(errorCode).flip();
+        int queued = 0;
+
+        synchronized (this) {
+            stream.reset = true;
+            for (ByteBuffer data : stream.body) {
+                queued += data.remaining();
+            }
+            stream.body.clear();
+            stream.body.add(Http2Connection.END_OF_BODY);
+            if (queued > 0) {
+                this.receiveWindow += queued;
+                this.writeWindowUpdate(0, queued);
+            }
+            this.notifyAll();
+        }
+        this.streams.remove(stream.id);
+
+        try {
+            this.writeFrame(Http2Connection.RST_STREAM, 0, stream.id, frame);
+        } catch (IOException e) {
+            // the connection is closed by the reader
+        }
+    }
+
+
+    private void onResetStream(int streamId, ByteBuffer payload) throws IOException {
+        Stream stream = this.streams.remove(streamId);
+
+        if (streamId == 0 || streamId > this.lastStreamId) {
+            throw new Http2Exception(Http2Connection.PROTOCOL_ERROR, "RST_STREAM on an idle stream.");
+        }
+        if (payload.remaining() != 4) {
+            throw new Http2Exception(Http2Connection.FRAME_SIZE_ERROR, "Invalid RST_STREAM.");
+        }
+
+        if (stream != null) {
+            synchronized (this) {
+                stream.reset = true;
+                stream.remoteClosed = true;
+                this.notifyAll();
+            }
+            stream.body.add(Http2Connection.END_OF_BODY);
+        }
+    }
+
+
+    private void onSettings(int streamId, int flags, ByteBuffer payload) throws IOException {
+        if (streamId != 0) {
+            throw new Http2Exception(Http2Connection.PROTOCOL_ERROR, "SETTINGS on a stream.");
+        }
+        if ((flags & Http2Connection.ACK) != 0) {
+            if (payload.hasRemaining()) {
+                throw new Http2Exception(Http2Connection.FRAME_SIZE_ERROR, "SETTINGS acknowledgment with a payload.");
+            }
+            return;
+        }
+        if (payload.remaining() % 6 != 0) {
+            throw new Http2Exception(Http2Connection.FRAME_SIZE_ERROR, "Invalid SETTINGS.");
+        }
+
+        this.settingsReceived = true;
+        this.applySettings(payload);
+        this.writeFrame(Http2Connection.SETTINGS, Http2Connection.ACK, 0, Http2Connection.END_OF_BODY.duplicate());
+    }
+
+
+    // Method applying the settings of the client: the ones shaping what the server sends (the others are
+    // ignored)
+    private void applySettings(ByteBuffer payload) throws IOException {
+        while (payload.remaining() >= 6) {
+            int identifier = payload.getShort() & 0xffff;
+            long value = payload.getInt() & 0xffffffffL;
+
+            switch (identifier) {
+                case Http2Connection.HEADER_TABLE_SIZE:
+                    synchronized (this.writeLock) {
+                        this.encoder.setMaxTableSize((int) Math.min(value, Integer.MAX_VALUE));
+                    }
+                    break;
+                case Http2Connection.ENABLE_PUSH:
+                    if (value > 1) {
+                        throw new Http2Exception(Http2Connection.PROTOCOL_ERROR, "Invalid ENABLE_PUSH.");
+                    }
+                    break;
+                case Http2Connection.INITIAL_WINDOW_SIZE:
+                    if (value > Http2Connection.MAX_WINDOW) {
+                        throw new Http2Exception(Http2Connection.FLOW_CONTROL_ERROR, "Invalid INITIAL_WINDOW_SIZE.");
+                    }
+                    // the change applies to the windows of the open streams
+                    synchronized (this) {
+                        long delta = value - this.peerInitialWindow;
+                        this.peerInitialWindow = value;
+                        for (Stream stream : this.streams.values()) {
+                            stream.sendWindow += delta;
+                            if (stream.sendWindow > Http2Connection.MAX_WINDOW) {
+                                throw new Http2Exception(Http2Connection.FLOW_CONTROL_ERROR, "Window overflow.");
+                            }
+                        }
+                        this.notifyAll();
+                    }
+                    break;
+                case Http2Connection.MAX_FRAME_SIZE_SETTING:
+                    if (value < Http2Connection.MAX_FRAME_SIZE || value > Http2Connection.MAX_PEER_FRAME_SIZE) {
+                        throw new Http2Exception(Http2Connection.PROTOCOL_ERROR, "Invalid MAX_FRAME_SIZE.");
+                    }
+                    this.peerMaxFrameSize = (int) value;
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+
+    private void onWindowUpdate(int streamId, ByteBuffer payload) throws IOException {
+        int increment;
+        Stream stream;
+
+        if (payload.remaining() != 4) {
+            throw new Http2Exception(Http2Connection.FRAME_SIZE_ERROR, "Invalid WINDOW_UPDATE.");
+        }
+        increment = payload.getInt() & 0x7fffffff;
+
+        if (streamId == 0) {
+            synchronized (this) {
+                if (increment == 0 || this.sendWindow + increment > Http2Connection.MAX_WINDOW) {
+                    throw new Http2Exception(Http2Connection.FLOW_CONTROL_ERROR, "Invalid connection window.");
+                }
+                this.sendWindow += increment;
+                this.notifyAll();
+            }
+            return;
+        }
+
+        if (streamId > this.lastStreamId) {
+            throw new Http2Exception(Http2Connection.PROTOCOL_ERROR, "WINDOW_UPDATE on an idle stream.");
+        }
+        stream = this.streams.get(streamId);
+        if (stream == null) {
+            return;
+        }
+
+        synchronized (this) {
+            if (increment == 0 || stream.sendWindow + increment > Http2Connection.MAX_WINDOW) {
+                this.resetStream(stream, Http2Connection.FLOW_CONTROL_ERROR);
+                return;
+            }
+            stream.sendWindow += increment;
+            this.notifyAll();
+        }
+    }
+
+
+    // Method waiting until the client accepts some bytes on the stream and the connection, then taking up to
+    // wanted of them from both windows; a client which opens no window for the write timeout loses the stream
+    private int acquireWindow(Stream stream, int wanted) throws IOException {
+        long deadline = System.currentTimeMillis() + this.limits.writeTimeout;
+
+        synchronized (this) {
+            while (stream.sendWindow <= 0 || this.sendWindow <= 0) {
+                long wait = deadline - System.currentTimeMillis();
+
+                if (this.closed || stream.reset) {
+                    throw new IOException("The stream was closed.");
+                }
+                if (wait <= 0) {
+                    this.limits.writeTimeout();
+                    this.resetStream(stream, Http2Connection.CANCEL);
+                    throw new SocketTimeoutException("The client opens no window for the response.");
+                }
+                try {
+                    this.wait(wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for the flow control window.");
+                }
+            }
+
+            int count = (int) Math.min(wanted, Math.min(Math.min(stream.sendWindow, this.sendWindow),
+                    this.peerMaxFrameSize));
+            stream.sendWindow -= count;
+            this.sendWindow -= count;
+            return count;
+        }
+    }
+
+
+    // Method sending the headers of a response (with the pre-rendered error page's when there is one) in a
+    // HEADERS frame, followed by CONTINUATION frames if the block is bigger than a frame
+    private void writeHeaders(Stream stream, Map<String, String> responseData, ErrorPages.Page page,
+                              boolean endStream) throws IOException {
+        String code = responseData.get("Code");
+
+        if (stream.reset) {
+            throw new IOException("The stream was reset.");
+        }
+
+        synchronized (this.writeLock) {
+            ByteArrayOutputStream block = this.encodedHeaders;
+            byte[] encoded;
+            int offset = 0;
+
+            block.reset();
+            this.encoder.begin(block);
+            this.encoder.encode(":status", code.substring(0, 3), true, block);
+            this.encodeHeader("allow", responseData.get("Allow"), true);
+            this.encodeHeader("retry-after", responseData.get("Retry-After"), true);
+            this.encoder.encode("date", this.context.date.getValue(), true, block);
+            this.encoder.encode("server", "webserver.WebServer", true, block);
+
+            if (page != null) {
+                this.encodeHeader("content-length", String.valueOf(page.getBody().length), false);
+                this.encodeHeader("content-type", page.getContentType(), true);
+            } else {
+                // as on HTTP/1.1, only 204, 304 and a body compressed while it is sent have no length
+                if (responseData.containsKey("Content-Length")) {
+                    this.encodeHeader("content-length", responseData.get("Content-Length"), false);
+                } else if (!code.equals(ErrorCodes.NO_CONTENT) && !code.equals(ErrorCodes.NOT_MODIFIED)
+                        && !responseData.containsKey("Content-Encoding")) {
+                    this.encodeHeader("content-length", "0", false);
+                }
+                this.encodeHeader("content-range", responseData.get("Content-Range"), false);
+                this.encodeHeader("accept-ranges", responseData.get("Accept-Ranges"), true);
+                this.encodeHeader("content-type", responseData.get("Content-Type"), true);
+                this.encodeHeader("content-encoding", responseData.get("Content-Encoding"), true);
+                this.encodeHeader("vary", responseData.get("Vary"), true);
+                this.encodeHeader("etag", responseData.get("ETag"), true);
+                this.encodeHeader("last-modified", responseData.get("Last-Modified"), true);
+            }
+
+            encoded = block.toByteArray();
+            do {
+                int length = Math.min(encoded.length - offset, this.peerMaxFrameSize);
+                int flags = offset + length == encoded.length ? Http2Connection.END_HEADERS : 0;
+
+                if (offset == 0 && endStream) {
+                    flags |= Http2Connection.END_STREAM;
+                }
+                this.writeFrame(offset == 0 ? Http2Connection.HEADERS : Http2Connection.CONTINUATION, flags,
+                        stream.id, ByteBuffer.wrap(encoded, offset, length));
+                offset += length;
+            } while (offset < encoded.length);
+        }
+    }
+
+
+    // Method adding a response header to the block being encoded if the value is present (write lock held)
+    private void encodeHeader(String name, String value, boolean indexed) {
+        if (value != null) {
+            this.encoder.encode(name, value, indexed, this.encodedHeaders);
+        }
+    }
+
+
+    // Method sending a buffer of the body in DATA frames as the windows allow
+    private void writeData(Stream stream, ByteBuffer data, boolean last) throws IOException {
+        do {
+            int count = data.hasRemaining() ? this.acquireWindow(stream, data.remaining()) : 0;
+            ByteBuffer slice = data.duplicate();
+
+            slice.limit(slice.position() + count);
+            data.position(data.position() + count);
+            this.writeFrame(Http2Connection.DATA, last && !data.hasRemaining() ? Http2Connection.END_STREAM : 0,
+                    stream.id, slice);
+        } while (data.hasRemaining());
+    }
+
+
+    // Method sending size bytes of the file from the given position in DATA frames, each sent after its frame
+    // header straight from disk to the socket (sendfile), or through the TLS socket
+    private void transferData(Stream stream, FileChannel file, long position, long size) throws IOException {
+        long end = position + size;
+
+        if (size == 0) {
+            this.writeFrame(Http2Connection.DATA, Http2Connection.END_STREAM, stream.id,
+                    Http2Connection.END_OF_BODY.duplicate());
+            return;
+        }
+
+        while (position < end) {
+            int count = this.acquireWindow(stream, (int) Math.min(end - position, Integer.MAX_VALUE));
+
+            synchronized (this.writeLock) {
+                this.putFrameHeader(count, Http2Connection.DATA,
+                        position + count == end ? Http2Connection.END_STREAM : 0, stream.id);
+                this.write(this.frameHeader);
+
+                long sent = 0;
+                while (sent < count) {
+                    long transferred = file.transferTo(position + sent, count - sent, this.channel);
+                    if (transferred <= 0) {
+                        throw new IOException("The response file was truncated while being sent.");
+                    }
+                    sent += transferred;
+                    this.lastWrite = System.currentTimeMillis();
+                }
+                this.writingSince = 0;
+            }
+            position += count;
+        }
+    }
+
+
+    // Method sending the SETTINGS of the server and opening the connection's window for the request bodies
+    private void writeSettings() throws IOException {
+        ByteBuffer settings = ByteBuffer.allocate(3 * 6);
+
+        settings.putShort((short) Http2Connection.MAX_CONCURRENT_STREAMS).putInt(this.maxConcurrentStreams);
+        settings.putShort((short) Http2Connection.INITIAL_WINDOW_SIZE).putInt(Http2Connection.STREAM_WINDOW);
+        settings.putShort((short) Http2Connection.MAX_HEADER_LIST_SIZE).putInt(this.limits.maxHeaderBytes);
+        this.writeFrame(Http2Connection.SETTINGS, 0, 0, settings.flip());
+        this.writeWindowUpdate(0, Http2Connection.CONNECTION_WINDOW - Http2Connection.DEFAULT_WINDOW);
+    }
+
+
+    // Method sending a WINDOW_UPDATE, ignoring the errors (the reader sees them)
+    private void writeWindowUpdate(int streamId, int increment) {
+        try {
+            this.writeFrame(Http2Connection.WINDOW_UPDATE, 0, streamId,
+                    ByteBuffer.allocate(4).putInt(increment).flip());
+        } catch (IOException e) { }
+    }
+
+
+    // Method telling the client the connection is closed, and the last stream which was processed; a GOAWAY
+    // without error already sent by the drain is not repeated when the connection closes
+    private void goAway(int errorCode) {
+        if (errorCode == Http2Connection.NO_ERROR && this.goAwayStreamId != Integer.MAX_VALUE) {
+            return;
+        }
+        this.goAwayStreamId = Math.min(this.goAwayStreamId, this.lastStreamId);
+        try {
+            this.writeFrame(Http2Connection.GOAWAY, 0, 0,
+                    ByteBuffer.allocate(8).putInt(this.goAwayStreamId).putInt(errorCode).flip());
+        } catch (IOException e) { }
+    }
+
+
+    // Method writing a whole frame, its header and its payload with one gathering write
+    private void writeFrame(int type, int flags, int streamId, ByteBuffer payload) throws IOException {
+        synchronized (this.writeLock) {
+            this.putFrameHeader(payload.remaining(), type, flags, streamId);
+            this.frame[0] = this.frameHeader;
+            this.frame[1] = payload;
+            try {
+                this.write(this.frame);
+            } finally {
+                this.frame[1] = null;
+            }
+            this.writingSince = 0;
+        }
+    }
+
+
+    private void putFrameHeader(int length, int type, int flags, int streamId) {
+        this.frameHeader.clear();
+        this.frameHeader.put((byte) (length >>> 16)).put((byte) (length >>> 8)).put((byte) length);
+        this.frameHeader.put((byte) type).put((byte) flags).putInt(streamId);
+        this.frameHeader.flip();
+    }
+
+
+    // Method writing the buffers, whose progress is checked by the reader (write lock held)
+    private void write(ByteBuffer... buffers) throws IOException {
+        long now = System.currentTimeMillis();
+
+        this.lastWrite = now;
+        this.writingSince = now;
+        while (buffers[buffers.length - 1].hasRemaining() || buffers[0].hasRemaining()) {
+            if (this.channel.write(buffers) > 0) {
+                this.lastWrite = System.currentTimeMillis();
+            }
+        }
+    }
+
+
+    // Method closing the connection: the workers waiting for a body or a window are woken up and fail
+    private void close() {
+        synchronized (this) {
+            if (this.closed) {
+                return;
+            }
+            this.closed = true;
+            this.notifyAll();
+        }
+        Log.debug(this.socket, " has stopped after " + this.servedStreams + " HTTP/2 streams.");
+
+        try {
+            this.socket.close();
+        } catch (IOException e) { }
+
+        for (Stream stream : this.streams.values()) {
+            stream.reset = true;
+            stream.body.add(Http2Connection.END_OF_BODY);
+        }
+
+        this.limits.unwatch(this);
+        this.context.lifecycle.unregister(this);
+        this.context.metrics.connectionClosed();
+        this.context.admission.connectionClosed();
+        this.context.admission.http2ConnectionClosed();
+    }
+
+
+    // Method closing a response file or encoder, ignoring the errors
+    private static void closeQuietly(Closeable body) {
+        if (body != null) {
+            try {
+                body.close();
+            } catch (IOException e) { }
+        }
+    }
+
+
+    /*
+        Class holding the state of a stream: its request, the body bytes received and not read yet, and its
+        windows in both directions (guarded by the connection's monitor)
+     */
+    private static class Stream {
+        private final int id;
+        private final Map<String, String> requestData;
+        private final BlockingQueue<ByteBuffer> body;
+        private final boolean hasBody;
+
+        private long sendWindow;
+        private long receiveWindow;
+        private volatile boolean remoteClosed;
+        private volatile boolean reset;
+
+        // read by the worker only: the data being read, and the start and bytes of the body
+        private ByteBuffer current;
+        private long bodyStart;
+        private long bodyBytes;
+
+        Stream(int id, Map<String, String> requestData, boolean hasBody, long sendWindow) {
+            this.id = id;
+            this.requestData = requestData;
+            this.body = new LinkedBlockingQueue<>();
+            this.hasBody = hasBody;
+            this.remoteClosed = !hasBody;
+            this.sendWindow = sendWindow;
+            this.receiveWindow = Http2Connection.STREAM_WINDOW;
+        }
+    }
+
+
+    /*
+        Class of the errors which close the connection with a GOAWAY frame carrying their code
+     */
+    private static class Http2Exception extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private final int errorCode;
+
+        Http2Exception(int errorCode, String message) {
+            super(message);
+            this.errorCode = errorCode;
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package webserver;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/*
+    Class following the lifecycle of the server, for the health checks of the load balancer and the shutdown.
+    The server is live from its start and ready once it accepts connections. A shutdown first makes it unready,
+    while it still accepts connections for the drain delay so the load balancer sees it leave, then closes the
+    listening sockets and drains the connections: each one is closed once its current request is answered
+    (with Connection: close, or GOAWAY on HTTP/2), right away if it is idle. The connections still open at
+    the end of the drain timeout are closed. The blocking and HTTP/2 connections register here to be drained;
+    those of the event loops are drained by their loop
+ */
+public class Lifecycle {
+
+    // paths of the health checks, answered by the server itself like the metrics
+    static final String LIVE_PATH = "/_health/live";
+    static final String READY_PATH = "/_health/ready";
+
+    private static final int STARTING = 0;
+    private static final int READY = 1;
+    private static final int UNREADY = 2;
+    private static final int DRAINING = 3;
+
+    private static final String[] STATE_NAMES = {"starting", "ready", "unready", "draining"};
+
+    private final AtomicInteger state;
+    private final Set<Drained> connections;
+
+    // milliseconds between the end of the readiness and the closing of the listening sockets, and the longest
+    // drain (read when the shutdown starts, a reload changes them)
+    private volatile long drainDelay;
+    private volatile long drainTimeout;
+
+    Lifecycle(long drainDelay, long drainTimeout) {
+        this.state = new AtomicInteger(Lifecycle.STARTING);
+        this.connections = ConcurrentHashMap.newKeySet();
+        this.drainDelay = drainDelay;
+        this.drainTimeout = drainTimeout;
+    }
+
+
+    void reconfigure(long drainDelay, long drainTimeout) {
+        this.drainDelay = drainDelay;
+        this.drainTimeout = drainTimeout;
+    }
+
+
+    /*
+        Interface implemented by the connections drained by the server thread
+     */
+    interface Drained {
+        // Method closing the connection if it waits for a request; a busy one closes after its response
+        void drain();
+
+        // Method closing the connection at the end of the drain timeout
+        void abort();
+    }
+
+
+    void register(Drained connection) {
+        this.connections.add(connection);
+    }
+
+
+    void unregister(Drained connection) {
+        this.connections.remove(connection);
+    }
+
+
+    // Method marking the server ready, once its listening sockets are open
+    void started() {
+        this.state.compareAndSet(Lifecycle.STARTING, Lifecycle.READY);
+    }
+
+
+    // Method starting the shutdown by making the server unready; false if it was already shutting down
+    boolean stopReady() {
+        int current;
+
+        do {
+            current = this.state.get();
+            if (current >= Lifecycle.UNREADY) {
+                return false;
+            }
+        } while (!this.state.compareAndSet(current, Lifecycle.UNREADY));
+        return true;
+    }
+
+
+    // Method starting the drain, once the listening sockets are closed: the idle connections are closed, the
+    // others after their current request
+    void drain() {
+        this.state.set(Lifecycle.DRAINING);
+
+        for (Drained connection : this.connections) {
+            connection.drain();
+        }
+    }
+
+
+    // Method closing the connections still registered at the end of the drain timeout; returns their number
+    int abort() {
+        int count = 0;
+
+        for (Drained connection : this.connections) {
+            connection.abort();
+            count++;
+        }
+        return count;
+    }
+
+
+    boolean isReady() {
+        return this.state.get() == Lifecycle.READY;
+    }
+
+
+    // Method telling whether the connections have to close after their current request
+    boolean isDraining() {
+        return this.state.get() == Lifecycle.DRAINING;
+    }
+
+
+    long getDrainDelay() {
+        return this.drainDelay;
+    }
+
+
+    long getDrainTimeout() {
+        return this.drainTimeout;
+    }
+
+
+    // Method returning the body of a health check response: the state of the server
+    byte[] render() {
+        return (Lifecycle.STATE_NAMES[this.state.get()] + "\n").getBytes(StandardCharsets.US_ASCII);
+    }
+}
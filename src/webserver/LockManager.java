@@ -0,0 +1,99 @@
+package webserver;
+
+import java.nio.file.Path;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+
+/*
+    Class implementing the server-wide locks of the resources: one read-write lock per normalized path,
+    so concurrent reads of a file do not block each other while writes and deletes are exclusive; a lock
+    is kept in the map only while some request is holding or waiting for it
+ */
+public class LockManager {
+
+    private final ConcurrentHashMap<String, Entry> locks;
+
+    LockManager() {
+        this.locks = new ConcurrentHashMap<>();
+    }
+
+
+    // Method acquiring the shared (read) lock of a resource
+    ResourceLock lockRead(String path) {
+        Entry entry = this.reference(path);
+        return new ResourceLock(this, entry, entry.readWriteLock.readLock());
+    }
+
+
+    // Method acquiring the exclusive (write) lock of a resource
+    ResourceLock lockWrite(String path) {
+        Entry entry = this.reference(path);
+        return new ResourceLock(this, entry, entry.readWriteLock.writeLock());
+    }
+
+
+    // Method returning the number of resources currently locked (or waited for)
+    int size() {
+        return this.locks.size();
+    }
+
+
+    // Method getting (or creating) the lock of a path and counting the new reference to it; the map
+    // bucket is locked during compute, so no reference is lost to a concurrent release
+    private Entry reference(String path) {
+        String key = Path.of(path).toAbsolutePath().normalize().toString();
+
+        return this.locks.compute(key, (k, entry) -> {
+            if (entry == null) {
+                entry = new Entry(k);
+            }
+            entry.references++;
+            return entry;
+        });
+    }
+
+
+    // Method dropping a reference and removing the lock once nobody uses it
+    private void release(Entry entry) {
+        this.locks.computeIfPresent(entry.key, (k, current) -> --current.references == 0 ? null : current);
+    }
+
+
+    /*
+        Class holding the read-write lock of a path and the number of requests using it
+     */
+    private static class Entry {
+        private final String key;
+        private final ReentrantReadWriteLock readWriteLock;
+        private int references;     // only changed inside the map's compute methods
+
+        private Entry(String key) {
+            this.key = key;
+            this.readWriteLock = new ReentrantReadWriteLock();
+        }
+    }
+
+
+    /*
+        Class representing a lock acquired by a request, which releases it with unlock
+     */
+    static class ResourceLock {
+        private final LockManager manager;
+        private final Entry entry;
+        private final Lock lock;
+
+        private ResourceLock(LockManager manager, Entry entry, Lock lock) {
+            this.manager = manager;
+            this.entry = entry;
+            this.lock = lock;
+            this.lock.lock();
+        }
+
+        void unlock() {
+            this.lock.unlock();
+            this.manager.release(this.entry);
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package webserver;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/*
+    Class implementing an asynchronous, level-gated log: a disabled level costs a comparison, an enabled one
+    only queues the message, the console is written by a single daemon thread. Messages are dropped (and
+    counted) rather than blocking a connection when the queue is full. The level is the log.level setting of the
+    configuration (error, warn, info or debug; info by default), it can be changed by a reload.
+ */
+public class Log implements Runnable {
+
+    static final int ERROR = 0;
+    static final int WARN = 1;
+    static final int INFO = 2;
+    static final int DEBUG = 3;
+
+    private static final String[] LEVELS = {"error", "warn", "info", "debug"};
+    private static final int QUEUE_SIZE = 8192;
+
+    private static volatile int level = Log.INFO;
+    private static final BlockingQueue<Message> QUEUE = new ArrayBlockingQueue<>(Log.QUEUE_SIZE);
+    private static final LongAdder DROPPED = new LongAdder();
+
+    static {
+        Thread writer = new Thread(new Log(), "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+
+    /*
+        Class holding a queued message and the stream it goes to
+     */
+    private static class Message {
+        private final int level;
+        private final String text;
+
+        Message(int level, String text) {
+            this.level = level;
+            this.text = text;
+        }
+    }
+
+
+    private Log() {
+    }
+
+
+    static boolean isEnabled(int level) {
+        return level <= Log.level;
+    }
+
+
+    static void error(String text) {
+        Log.log(Log.ERROR, text);
+    }
+
+
+    static void warn(String text) {
+        Log.log(Log.WARN, text);
+    }
+
+
+    static void info(String text) {
+        Log.log(Log.INFO, text);
+    }
+
+
+    // Method logging "<subject><text>" at debug level, the message is only built if the level is enabled
+    static void debug(Object subject, String text) {
+        if (Log.isEnabled(Log.DEBUG)) {
+            Log.log(Log.DEBUG, subject + text);
+        }
+    }
+
+
+    private static void log(int level, String text) {
+        if (Log.isEnabled(level) && !Log.QUEUE.offer(new Message(level, text))) {
+            Log.DROPPED.increment();
+        }
+    }
+
+
+    // Method returning the number of messages dropped because the queue was full
+    static long getDropped() {
+        return Log.DROPPED.sum();
+    }
+
+
+    static void setLevel(int level) {
+        Log.level = level;
+    }
+
+
+    // Method returning the level of a name, -1 if it is unknown
+    static int parseLevel(String level) {
+        for (int i = 0; i < Log.LEVELS.length; i++) {
+            if (Log.LEVELS[i].equalsIgnoreCase(level)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+
+    // Method run by the writer thread: the errors and warnings go to System.err, the rest to System.out
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                Message message = Log.QUEUE.take();
+
+                if (message.level <= Log.WARN) {
+                    System.err.println(message.text);
+                } else {
+                    System.out.println(message.text);
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,279 @@
+package webserver;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/*
+    Class implementing the server-wide pool of memory-mapped files, for the files too big for the static cache
+    but read often: a mapped file is sent from its mapping, without opening, sending (sendfile) and closing it
+    for every request, the least recently used mappings are dropped once the mapped bytes exceed the budget and
+    a mapping is dropped when its file is written, deleted or modified. Every response sent from a mapping holds
+    a reference to it, released once the response is sent (or given up), and a dropped mapping is unmapped
+    when its last reference is released, so a deleted or replaced file does not stay mapped and the budget
+    bounds the memory really mapped. The unmapping uses sun.misc.Unsafe.invokeCleaner (jdk.unsupported); on a
+    JVM without it the dropped mappings are only released by the GC
+ */
+public class MappedFiles {
+
+    // the invokeCleaner method bound to the Unsafe instance, null if it is not available
+    private static final MethodHandle UNMAP = MappedFiles.lookUpUnmap();
+
+    // smallest and biggest file mapped (a mapping cannot be bigger than 2 GB); the budget can be changed by a
+    // configuration reload
+    private volatile long minBytes;
+    private volatile long maxEntryBytes;
+    private volatile long maxBytes;
+
+    // access-ordered map, so the iteration starts with the least recently used entry
+    private final LinkedHashMap<String, Entry> entries;
+    private long mappedBytes;
+
+    private final LongAdder hits;
+    private final LongAdder misses;
+    private final LongAdder evictions;
+
+    MappedFiles(long maxBytes, long minBytes) {
+        this.maxBytes = maxBytes;
+        this.minBytes = minBytes;
+        this.maxEntryBytes = Math.min(maxBytes, Integer.MAX_VALUE);
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);
+        this.hits = new LongAdder();
+        this.misses = new LongAdder();
+        this.evictions = new LongAdder();
+    }
+
+
+    // Method returning a reference to the mapped content of a file, mapping it on a miss, which the caller
+    // releases once its response is sent; null is returned if the file is not in the size range of the mapped
+    // files (it is then sent from disk); the mapping is checked against the indexed size and modification time
+    Mapping get(String path, File file, ResourceIndex.Resource resource) throws IOException {
+        long lastModified = resource.lastModified;
+        long size = resource.length;
+        Entry entry;
+
+        if (size < this.minBytes || size > this.maxEntryBytes) {
+            return null;
+        }
+
+        synchronized (this) {
+            entry = this.entries.get(path);
+
+            // a file modified since it was mapped is mapped again
+            if (entry != null && (entry.lastModified != lastModified || entry.body.capacity() != size)) {
+                this.remove(path);
+                entry = null;
+            }
+            if (entry != null) {
+                entry.references++;
+            }
+        }
+
+        if (entry != null) {
+            this.hits.increment();
+            return new Mapping(this, entry);
+        }
+
+        this.misses.increment();
+        entry = MappedFiles.map(file, lastModified);
+        if (entry == null) {
+            return null;
+        }
+        this.put(path, entry);
+        return new Mapping(this, entry);
+    }
+
+
+    // Method dropping the mapping of a file which has been written or deleted
+    synchronized void invalidate(String path) {
+        this.remove(path);
+    }
+
+
+    // Method applying a reloaded budget: the mappings of files now out of the size range are dropped and the least
+    // recently used ones until the new budget is respected
+    synchronized void resize(long maxBytes, long minBytes) {
+        this.maxBytes = maxBytes;
+        this.minBytes = minBytes;
+        this.maxEntryBytes = Math.min(maxBytes, Integer.MAX_VALUE);
+
+        Iterator<Entry> iterator = this.entries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.body.capacity() < this.minBytes || entry.body.capacity() > this.maxEntryBytes) {
+                iterator.remove();
+                this.drop(entry);
+            }
+        }
+        this.trim();
+    }
+
+
+    long getHits() {
+        return this.hits.sum();
+    }
+
+
+    long getMisses() {
+        return this.misses.sum();
+    }
+
+
+    long getEvictions() {
+        return this.evictions.sum();
+    }
+
+
+    synchronized long getMappedBytes() {
+        return this.mappedBytes;
+    }
+
+
+    // Method adding an entry, referenced by the response which mapped it, and dropping the least recently used
+    // ones until the budget is respected
+    private synchronized void put(String path, Entry entry) {
+        entry.references++;
+        this.remove(path);
+        this.entries.put(path, entry);
+        this.mappedBytes += entry.body.capacity();
+        this.trim();
+    }
+
+
+    // Method dropping the least recently used entries until the budget is respected
+    private void trim() {
+        Iterator<Map.Entry<String, Entry>> iterator = this.entries.entrySet().iterator();
+        while (this.mappedBytes > this.maxBytes && iterator.hasNext()) {
+            Entry evicted = iterator.next().getValue();
+            iterator.remove();
+            this.drop(evicted);
+            this.evictions.increment();
+        }
+    }
+
+
+    private void remove(String path) {
+        Entry removed = this.entries.remove(path);
+
+        if (removed != null) {
+            this.drop(removed);
+        }
+    }
+
+
+    // Method taking an entry out of the budget; it is unmapped now if no response is sent from it, otherwise
+    // when the last one releases it
+    private void drop(Entry entry) {
+        this.mappedBytes -= entry.body.capacity();
+        entry.dropped = true;
+        if (entry.references == 0) {
+            MappedFiles.unmap(entry);
+        }
+    }
+
+
+    // Method releasing the reference of a response to an entry
+    private synchronized void release(Entry entry) {
+        if (--entry.references == 0 && entry.dropped) {
+            MappedFiles.unmap(entry);
+        }
+    }
+
+
+    private static void unmap(Entry entry) {
+        if (MappedFiles.UNMAP != null) {
+            try {
+                MappedFiles.UNMAP.invokeExact(entry.body);
+            } catch (Throwable e) {
+                System.err.println("Could not unmap a dropped file, it is released by the GC.");
+            }
+        }
+    }
+
+
+    // Method looking up sun.misc.Unsafe.invokeCleaner at runtime, which releases the mapping of a buffer at once
+    private static MethodHandle lookUpUnmap() {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field instance = unsafeClass.getDeclaredField("theUnsafe");
+            instance.setAccessible(true);
+            return MethodHandles.lookup().unreflect(unsafeClass.getMethod("invokeCleaner", ByteBuffer.class))
+                    .bindTo(instance.get(null));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            System.err.println("The mappings cannot be unmapped explicitly, the dropped ones are released by the GC.");
+            return null;
+        }
+    }
+
+
+    // Method mapping a whole file read-only (the mapping stays valid after the file is closed); null is returned
+    // if the file was truncated to nothing in the meantime
+    private static Entry map(File file, long lastModified) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+
+            if (size == 0 || size > Integer.MAX_VALUE) {
+                return null;
+            }
+            return new Entry(channel.map(FileChannel.MapMode.READ_ONLY, 0, size), lastModified);
+        }
+    }
+
+
+    /*
+        Class holding the mapping of a file, the modification time it was mapped at and the responses sent from
+        it (guarded by the pool's monitor)
+     */
+    private static class Entry {
+        private final ByteBuffer body;
+        private final long lastModified;
+        private int references;
+        private boolean dropped;
+
+        Entry(ByteBuffer body, long lastModified) {
+            this.body = body;
+            this.lastModified = lastModified;
+        }
+    }
+
+
+    /*
+        Class representing the reference of a response to a mapping: its own view of the content, and close
+        releasing the reference once the response is sent (a second close does nothing)
+     */
+    static class Mapping implements Closeable {
+        private final MappedFiles pool;
+        private final Entry entry;
+        private final ByteBuffer body;
+        private boolean released;
+
+        private Mapping(MappedFiles pool, Entry entry) {
+            this.pool = pool;
+            this.entry = entry;
+            this.body = entry.body.duplicate();
+        }
+
+        ByteBuffer getBody() {
+            return this.body;
+        }
+
+        @Override
+        public void close() {
+            if (!this.released) {
+                this.released = true;
+                this.pool.release(this.entry);
+            }
+        }
+    }
+}
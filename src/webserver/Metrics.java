@@ -0,0 +1,367 @@
+package webserver;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/*
+    Class holding the server-wide counters, gauges and latency histograms; the hot path only increments
+    LongAdders, the text exposition format of Prometheus is rendered when the reserved path is requested
+ */
+public class Metrics {
+
+    // reserved resource serving the metrics, it never reaches the document root
+    static final String PATH = "/_metrics";
+    static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private static final String[] PHASES = {"parse", "action", "write"};
+    private static final int PARSE = 0;
+    private static final int ACTION = 1;
+    private static final int WRITE = 2;
+
+    // label of the requests whose method is missing or unknown (bad requests)
+    private static final String INVALID_METHOD = "INVALID";
+
+    private final StaticCache cache;
+    private final MappedFiles mappedFiles;
+    private final ResourceIndex index;
+    private final AdmissionControl admission;
+    private final ClientLimits limits;
+    private final AccessLog accessLog;
+
+    private final LongAdder[] requests;
+    private final Histogram[][] latencies;
+    private final ConcurrentHashMap<String, LongAdder> responses;
+
+    private final LongAdder openedConnections;
+    private final LongAdder activeConnections;
+
+    private volatile ExecutorService workersPool;
+    private volatile Acceptor[] acceptors;
+    private volatile TlsTermination tls;
+
+    Metrics(StaticCache cache, MappedFiles mappedFiles, ResourceIndex index, AdmissionControl admission,
+            ClientLimits limits, AccessLog accessLog) {
+        int noMethods = HTTPParser.methods.length + 1;
+
+        this.cache = cache;
+        this.mappedFiles = mappedFiles;
+        this.index = index;
+        this.admission = admission;
+        this.limits = limits;
+        this.accessLog = accessLog;
+        this.requests = new LongAdder[noMethods];
+        this.latencies = new Histogram[noMethods][Metrics.PHASES.length];
+        this.responses = new ConcurrentHashMap<>();
+        this.openedConnections = new LongAdder();
+        this.activeConnections = new LongAdder();
+
+        for (int i = 0; i < noMethods; i++) {
+            this.requests[i] = new LongAdder();
+            for (int j = 0; j < Metrics.PHASES.length; j++) {
+                this.latencies[i][j] = new Histogram();
+            }
+        }
+    }
+
+
+    // Method setting the pool whose queue depth is reported (once the server has created it)
+    void setWorkersPool(ExecutorService workersPool) {
+        this.workersPool = workersPool;
+    }
+
+
+    // Method setting the acceptors whose accepted connections are reported (once the server has opened them)
+    void setAcceptors(Acceptor[] acceptors) {
+        this.acceptors = acceptors;
+    }
+
+
+    // Method setting the TLS termination whose handshakes are reported (null if the server has no TLS port)
+    void setTls(TlsTermination tls) {
+        this.tls = tls;
+    }
+
+
+    void connectionOpened() {
+        this.openedConnections.increment();
+        this.activeConnections.increment();
+    }
+
+
+    void connectionClosed() {
+        this.activeConnections.decrement();
+    }
+
+
+    // Method recording a served request: its method, response code and the time spent in every phase
+    void recordRequest(String method, String code, long parseNanos, long actionNanos, long writeNanos) {
+        int index = Metrics.indexOf(method);
+
+        this.requests[index].increment();
+        this.latencies[index][Metrics.PARSE].record(parseNanos);
+        this.latencies[index][Metrics.ACTION].record(actionNanos);
+        this.latencies[index][Metrics.WRITE].record(writeNanos);
+
+        if (code != null) {
+            LongAdder counter = this.responses.get(code);
+            if (counter == null) {
+                counter = this.responses.computeIfAbsent(code, key -> new LongAdder());
+            }
+            counter.increment();
+        }
+    }
+
+
+    // Method rendering all the metrics in the Prometheus text format
+    byte[] render() {
+        StringBuilder text = new StringBuilder(8192);
+        ExecutorService pool = this.workersPool;
+        Acceptor[] acceptors = this.acceptors;
+        TlsTermination tls = this.tls;
+
+        text.append("# HELP webserver_requests_total Requests served, by method.\n")
+                .append("# TYPE webserver_requests_total counter\n");
+        for (int i = 0; i < this.requests.length; i++) {
+            text.append("webserver_requests_total{method=\"").append(Metrics.methodName(i)).append("\"} ")
+                    .append(this.requests[i].sum()).append('\n');
+        }
+
+        text.append("# HELP webserver_responses_total Responses sent, by status code.\n")
+                .append("# TYPE webserver_responses_total counter\n");
+        for (Map.Entry<String, LongAdder> entry : this.responses.entrySet()) {
+            String code = entry.getKey();
+            int space = code.indexOf(' ');
+
+            text.append("webserver_responses_total{code=\"").append(space > 0 ? code.substring(0, space) : code)
+                    .append("\"} ").append(entry.getValue().sum()).append('\n');
+        }
+
+        text.append("# HELP webserver_request_phase_seconds Time spent parsing, processing and writing a request.\n")
+                .append("# TYPE webserver_request_phase_seconds histogram\n");
+        for (int i = 0; i < this.latencies.length; i++) {
+            for (int j = 0; j < Metrics.PHASES.length; j++) {
+                this.latencies[i][j].render(text, "webserver_request_phase_seconds",
+                        "method=\"" + Metrics.methodName(i) + "\",phase=\"" + Metrics.PHASES[j] + "\"");
+            }
+        }
+
+        text.append("# HELP webserver_connections_total Connections accepted.\n")
+                .append("# TYPE webserver_connections_total counter\n")
+                .append("webserver_connections_total ").append(this.openedConnections.sum()).append('\n')
+                .append("# HELP webserver_connections_active Connections currently open.\n")
+                .append("# TYPE webserver_connections_active gauge\n")
+                .append("webserver_connections_active ").append(this.activeConnections.sum()).append('\n');
+
+        // the connection rate of every acceptor is the rate of its counter, the balance of SO_REUSEPORT shows
+        // in how close the counters are
+        if (acceptors != null) {
+            text.append("# HELP webserver_acceptor_connections_total Connections accepted, by acceptor thread.\n")
+                    .append("# TYPE webserver_acceptor_connections_total counter\n");
+            for (Acceptor acceptor : acceptors) {
+                text.append("webserver_acceptor_connections_total{acceptor=\"").append(acceptor.index)
+                        .append("\"} ").append(acceptor.getAccepted()).append('\n');
+            }
+        }
+
+        // the virtual thread executor has no queue, a thread is started for every connection
+        if (pool instanceof ThreadPoolExecutor) {
+            ThreadPoolExecutor executor = (ThreadPoolExecutor) pool;
+
+            text.append("# HELP webserver_executor_queue_depth Tasks waiting for a worker.\n")
+                    .append("# TYPE webserver_executor_queue_depth gauge\n")
+                    .append("webserver_executor_queue_depth ").append(executor.getQueue().size()).append('\n')
+                    .append("# HELP webserver_executor_active_workers Workers running a task.\n")
+                    .append("# TYPE webserver_executor_active_workers gauge\n")
+                    .append("webserver_executor_active_workers ").append(executor.getActiveCount()).append('\n');
+        }
+
+        text.append("# HELP webserver_rejected_total Connections and requests shed with 503, by reason.\n")
+                .append("# TYPE webserver_rejected_total counter\n")
+                .append("webserver_rejected_total{reason=\"connections\"} ")
+                .append(this.admission.getRejectedConnections()).append('\n')
+                .append("webserver_rejected_total{reason=\"http2\"} ")
+                .append(this.admission.getRejectedHttp2()).append('\n')
+                .append("webserver_rejected_total{reason=\"queue\"} ")
+                .append(this.admission.getRejectedQueue()).append('\n')
+                .append("webserver_rejected_total{reason=\"limit\"} ")
+                .append(this.admission.getRejectedLimit()).append('\n')
+                .append("# HELP webserver_requests_in_flight Requests queued for or running on a worker.\n")
+                .append("# TYPE webserver_requests_in_flight gauge\n")
+                .append("webserver_requests_in_flight ").append(this.admission.getInFlight()).append('\n')
+                .append("# HELP webserver_concurrency_limit Adaptive limit of the requests in flight.\n")
+                .append("# TYPE webserver_concurrency_limit gauge\n")
+                .append("webserver_concurrency_limit ").append(this.admission.getLimit()).append('\n')
+                .append("# HELP webserver_http2_connections Connections switched to HTTP/2, each held by a reader.\n")
+                .append("# TYPE webserver_http2_connections gauge\n")
+                .append("webserver_http2_connections ").append(this.admission.getHttp2Connections()).append('\n');
+
+        this.limits.render(text);
+
+        if (tls != null) {
+            tls.render(text);
+        }
+
+        text.append("# HELP webserver_cache_hits_total Static cache hits.\n")
+                .append("# TYPE webserver_cache_hits_total counter\n")
+                .append("webserver_cache_hits_total ").append(this.cache.getHits()).append('\n')
+                .append("# HELP webserver_cache_misses_total Static cache misses.\n")
+                .append("# TYPE webserver_cache_misses_total counter\n")
+                .append("webserver_cache_misses_total ").append(this.cache.getMisses()).append('\n')
+                .append("# HELP webserver_cache_evictions_total Static cache evictions.\n")
+                .append("# TYPE webserver_cache_evictions_total counter\n")
+                .append("webserver_cache_evictions_total ").append(this.cache.getEvictions()).append('\n')
+                .append("# HELP webserver_cache_bytes Bytes held by the static cache.\n")
+                .append("# TYPE webserver_cache_bytes gauge\n")
+                .append("webserver_cache_bytes ").append(this.cache.getUsedBytes()).append('\n');
+
+        text.append("# HELP webserver_mmap_hits_total Requests sent from a mapped file.\n")
+                .append("# TYPE webserver_mmap_hits_total counter\n")
+                .append("webserver_mmap_hits_total ").append(this.mappedFiles.getHits()).append('\n')
+                .append("# HELP webserver_mmap_misses_total Files mapped.\n")
+                .append("# TYPE webserver_mmap_misses_total counter\n")
+                .append("webserver_mmap_misses_total ").append(this.mappedFiles.getMisses()).append('\n')
+                .append("# HELP webserver_mmap_evictions_total Mappings dropped to respect the budget.\n")
+                .append("# TYPE webserver_mmap_evictions_total counter\n")
+                .append("webserver_mmap_evictions_total ").append(this.mappedFiles.getEvictions()).append('\n')
+                .append("# HELP webserver_mmap_bytes Bytes of the mapped files.\n")
+                .append("# TYPE webserver_mmap_bytes gauge\n")
+                .append("webserver_mmap_bytes ").append(this.mappedFiles.getMappedBytes()).append('\n');
+
+        text.append("# HELP webserver_index_resources Files and directories in the index of the document root.\n")
+                .append("# TYPE webserver_index_resources gauge\n")
+                .append("webserver_index_resources ").append(this.index.size()).append('\n')
+                .append("# HELP webserver_index_rescans_total Walks of the whole document root after lost events.\n")
+                .append("# TYPE webserver_index_rescans_total counter\n")
+                .append("webserver_index_rescans_total ").append(this.index.getRescans()).append('\n');
+
+        text.append("# HELP webserver_access_log_records_total Requests written to the access log.\n")
+                .append("# TYPE webserver_access_log_records_total counter\n")
+                .append("webserver_access_log_records_total ").append(this.accessLog.getWritten()).append('\n')
+                .append("# HELP webserver_access_log_dropped_total Requests not logged because their ring was full.\n")
+                .append("# TYPE webserver_access_log_dropped_total counter\n")
+                .append("webserver_access_log_dropped_total ").append(this.accessLog.getDropped()).append('\n');
+
+        text.append("# HELP webserver_log_dropped_total Log messages dropped because the log queue was full.\n")
+                .append("# TYPE webserver_log_dropped_total counter\n")
+                .append("webserver_log_dropped_total ").append(Log.getDropped()).append('\n');
+
+        return text.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+
+    // Method returning the index of the method in HTTPParser.methods, the last index for an invalid one
+    private static int indexOf(String method) {
+        if (method != null) {
+            for (int i = 0; i < HTTPParser.methods.length; i++) {
+                if (HTTPParser.methods[i].equals(method)) {
+                    return i;
+                }
+            }
+        }
+        return HTTPParser.methods.length;
+    }
+
+
+    private static String methodName(int index) {
+        return index < HTTPParser.methods.length ? HTTPParser.methods[index] : Metrics.INVALID_METHOD;
+    }
+
+
+    /*
+        Class implementing a lock-free latency histogram with log-linear buckets (in the way of HdrHistogram):
+        every power of two microseconds is split in 4 buckets, so a value is kept with a relative error
+        below 25% from 1 microsecond to more than a day. It is exported with a bucket per power of two.
+     */
+    static class Histogram {
+
+        private static final int SUB_BUCKETS = 4;
+        private static final int MAX_POWER = 36;
+        private static final int NO_BUCKETS = Histogram.SUB_BUCKETS * Histogram.MAX_POWER;
+
+        // exported upper bounds: 1 microsecond to 2^26 microseconds (about 67 seconds)
+        private static final int EXPORTED_POWERS = 27;
+        private static final String[] BOUNDS = Histogram.bounds();
+
+        private final LongAdder[] buckets;
+        private final LongAdder sumNanos;
+
+        Histogram() {
+            this.buckets = new LongAdder[Histogram.NO_BUCKETS];
+            this.sumNanos = new LongAdder();
+
+            for (int i = 0; i < Histogram.NO_BUCKETS; i++) {
+                this.buckets[i] = new LongAdder();
+            }
+        }
+
+
+        void record(long nanos) {
+            this.buckets[Histogram.indexOf(nanos / 1000)].increment();
+            this.sumNanos.add(nanos);
+        }
+
+
+        // Method returning the bucket of a value: 0-3 microseconds have a bucket each, from there on the
+        // 2 bits after the most significant one select one of the 4 buckets of the power of two
+        private static int indexOf(long micros) {
+            if (micros < Histogram.SUB_BUCKETS) {
+                return (int) Math.max(micros, 0);
+            }
+
+            int power = 63 - Long.numberOfLeadingZeros(micros);
+            int subBucket = (int) (micros >>> (power - 2)) & (Histogram.SUB_BUCKETS - 1);
+
+            return Math.min(Histogram.SUB_BUCKETS * (power - 1) + subBucket, Histogram.NO_BUCKETS - 1);
+        }
+
+
+        // Method appending the cumulative buckets, the sum and the count; an unused histogram is skipped
+        void render(StringBuilder text, String name, String labels) {
+            long[] counts = new long[Histogram.NO_BUCKETS];
+            long total = 0;
+
+            for (int i = 0; i < Histogram.NO_BUCKETS; i++) {
+                counts[i] = this.buckets[i].sum();
+                total += counts[i];
+            }
+
+            if (total == 0) {
+                return;
+            }
+
+            long cumulative = 0;
+            int next = 0;
+
+            for (int power = 0; power < Histogram.EXPORTED_POWERS; power++) {
+                // the values below 2^power microseconds are in the buckets before this index
+                int end = power < 2 ? 1 << power : Histogram.SUB_BUCKETS * (power - 1);
+
+                for (; next < end; next++) {
+                    cumulative += counts[next];
+                }
+                text.append(name).append("_bucket{").append(labels).append(",le=\"").append(Histogram.BOUNDS[power])
+                        .append("\"} ").append(cumulative).append('\n');
+            }
+
+            text.append(name).append("_bucket{").append(labels).append(",le=\"+Inf\"} ").append(total).append('\n')
+                    .append(name).append("_sum{").append(labels).append("} ")
+                    .append(this.sumNanos.sum() / 1e9).append('\n')
+                    .append(name).append("_count{").append(labels).append("} ").append(total).append('\n');
+        }
+
+
+        private static String[] bounds() {
+            String[] bounds = new String[Histogram.EXPORTED_POWERS];
+
+            for (int power = 0; power < Histogram.EXPORTED_POWERS; power++) {
+                bounds[power] = String.valueOf((1L << power) / 1e6);
+            }
+            return bounds;
+        }
+    }
+}
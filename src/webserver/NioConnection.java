@@ -0,0 +1,592 @@
+package webserver;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+
+/*
+    Class implementing the connection behaviour for the NIO mode as a state machine driven by an EventLoop:
+    READING (waiting for a complete request) -> PROCESSING (on a worker) -> WRITING -> READING or closed;
+    while a streamed request body is processed, the worker hands the read buffer back to the event loop
+    whenever it needs more of the body (PROCESSING -> RECEIVING -> PROCESSING). A client speaking HTTP/2 gets
+    the channel handed over to an HTTP/2 connection (READING -> HANDED_OVER)
+ */
+public class NioConnection {
+
+    private static final int READ_BUFFER_SIZE = 8192;
+
+    private static final int READING = 0;
+    private static final int PROCESSING = 1;
+    private static final int WRITING = 2;
+    private static final int CLOSED = 3;
+    private static final int RECEIVING = 4;
+    private static final int HANDED_OVER = 5;
+
+    private final SocketChannel channel;
+    private final EventLoop eventLoop;
+    private final ExecutorService workersPool;
+    private final ServerContext context;
+    private final ClientLimits limits;
+    private final HTTPParser parser;
+    private final ResponseHeaders headers;
+
+    // the arrays written by the gathering write of the headers alone, or of the headers and a single body
+    // buffer, reused for every response
+    private final ByteBuffer[] headersOnly;
+    private final ByteBuffer[] headersAndBody;
+
+    private SelectionKey key;
+    private ByteBuffer readBuffer;
+    private ByteBuffer[] writeBuffers;
+    private FileChannel bodyFile;
+    private long bodyPosition;
+    private long bodyEnd;
+    private GzipEncoder bodyEncoder;
+    private MappedFiles.Mapping bodyMapping;
+    private ByteBuffer encodedChunk;
+    private CompletableFuture<Boolean> bodyReceived;
+
+    private int state;
+    private int servedRequests;
+
+    // true until the first bytes of the connection differ from the HTTP/2 preface
+    private boolean mayBePreface;
+    private boolean keepAlive;
+    private long lastActivity;
+
+    // first byte of the request being read (0 between requests), start and bytes of the streamed body being
+    // received and of the response being written, checked against the timeouts and the minimum rate
+    private long requestStart;
+    private long bodyStart;
+    private long bodyBytes;
+    private long responseStart;
+    private long writtenBytes;
+
+    // method, response code, body length and phase times of the current request, recorded once its response is
+    // written
+    private String requestMethod;
+    private String responseCode;
+    private long responseLength;
+    private long parseNanos;
+    private long actionNanos;
+    private long writeStart;
+
+    // time the current request was handed to the workers, its latency is fed to the admission control
+    private long dispatchStart;
+
+    NioConnection(SocketChannel channel, EventLoop eventLoop, ExecutorService workersPool, ServerContext context) {
+        this.channel = channel;
+        this.eventLoop = eventLoop;
+        this.workersPool = workersPool;
+        this.context = context;
+        this.limits = context.limits;
+        this.parser = new HTTPParser(context.limits, context.accessLog.logsHeaders());
+        this.headers = new ResponseHeaders(context.date);
+        this.headersOnly = new ByteBuffer[1];
+        this.headersAndBody = new ByteBuffer[2];
+        this.readBuffer = ByteBuffer.allocate(NioConnection.READ_BUFFER_SIZE);
+        this.state = NioConnection.READING;
+        this.mayBePreface = context.maxConcurrentStreams > 0;
+        this.keepAlive = true;
+        this.lastActivity = System.currentTimeMillis();
+        this.context.metrics.connectionOpened();
+    }
+
+
+    // Method registering the channel on the event loop's selector (called on the event loop thread)
+    void register(Selector selector) {
+        try {
+            this.key = this.channel.register(selector, SelectionKey.OP_READ, this);
+            Log.debug(this.channel, " has started working.");
+        } catch (IOException e) {
+            this.close();
+        }
+    }
+
+
+    // Method called by the event loop when the channel has data to be read
+    void onReadable() {
+        try {
+            int count = this.channel.read(this.readBuffer);
+            if (count < 0) {
+                // the client closed the connection
+                this.close();
+                return;
+            }
+            this.lastActivity = System.currentTimeMillis();
+
+            if (this.state == NioConnection.RECEIVING) {
+                this.handBodyOver(count);
+            } else {
+                this.dispatchRequest();
+            }
+
+        } catch (IOException e) {
+            this.close();
+        }
+    }
+
+
+    // Method called by the event loop when the channel can accept more response bytes
+    void onWritable() {
+        try {
+            // the headers and the cached content are written together (gathering write), a file is then
+            // sent straight from disk (sendfile)
+            boolean buffered = this.hasBufferedBytes();
+            long written = 0;
+            if (buffered) {
+                written += this.channel.write(this.writeBuffers);
+                buffered = this.hasBufferedBytes();
+            }
+            if (!buffered && this.bodyFile != null) {
+                written += this.transferBody();
+            }
+            if (!buffered && this.bodyEncoder != null) {
+                written += this.writeEncoded();
+            }
+            if (written > 0) {
+                this.writtenBytes += written;
+                this.lastActivity = System.currentTimeMillis();
+            }
+
+            // the socket buffer is full, wait for the next write readiness
+            if (buffered || this.bodyFile != null || this.bodyEncoder != null) {
+                this.key.interestOps(SelectionKey.OP_WRITE);
+                return;
+            }
+
+            this.writeBuffers = null;
+            this.headersAndBody[1] = null;
+            NioConnection.closeQuietly(this.bodyMapping);
+            this.bodyMapping = null;
+            this.lastActivity = System.currentTimeMillis();
+            long writeNanos = System.nanoTime() - this.writeStart;
+            this.context.metrics.recordRequest(this.requestMethod, this.responseCode, this.parseNanos,
+                    this.actionNanos, writeNanos);
+            if (this.context.accessLog.isEnabled()) {
+                this.context.accessLog.log(this.channel.socket().getInetAddress(), this.parser.getRequest(),
+                        this.responseCode, this.responseLength, this.parseNanos + this.actionNanos + writeNanos);
+            }
+
+            if (!this.keepAlive) {
+                this.close();
+                return;
+            }
+
+            // go back to reading, a pipelined request may already be in the buffer
+            this.parser.reset();
+            this.parseNanos = 0;
+            this.state = NioConnection.READING;
+            this.key.interestOps(SelectionKey.OP_READ);
+            this.dispatchRequest();
+
+        } catch (IOException e) {
+            this.close();
+        }
+    }
+
+
+    // Method telling whether some bytes of the headers or of the buffered body are still to be written;
+    // every buffer is checked, as the last one may be an empty body (a cached empty file)
+    private boolean hasBufferedBytes() {
+        for (ByteBuffer buffer : this.writeBuffers) {
+            if (buffer.hasRemaining()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    // Method feeding the buffered bytes to the parser and handing a complete request to a worker
+    private void dispatchRequest() {
+        boolean complete;
+        long parseStart;
+
+        if (this.state != NioConnection.READING) {
+            return;
+        }
+
+        this.readBuffer.flip();
+
+        // the first bytes of the connection are not parsed as long as they may be the HTTP/2 preface
+        if (this.mayBePreface) {
+            int preface = Http2Connection.matchPreface(this.readBuffer);
+
+            if (preface == Http2Connection.FULL_PREFACE) {
+                this.handOver(null, null);
+                return;
+            }
+            this.mayBePreface = preface == Http2Connection.PARTIAL_PREFACE;
+        }
+
+        parseStart = System.nanoTime();
+        complete = !this.mayBePreface && this.parser.parse(this.readBuffer);
+        this.parseNanos += System.nanoTime() - parseStart;
+        this.readBuffer = HTTPParser.compact(this.readBuffer);
+
+        if (!complete) {
+            // from its first byte on, the headers of the request have to arrive within the header timeout
+            if (this.requestStart == 0 && this.parser.isStarted(this.readBuffer)) {
+                this.requestStart = System.currentTimeMillis();
+            }
+            return;
+        }
+        this.requestStart = 0;
+
+        // a request asking to upgrade to HTTP/2 is answered by the HTTP/2 connection
+        byte[] upgradeSettings = Http2Connection.getUpgradeSettings(this.parser.getRequest(), this.parser.hasBody());
+        if (upgradeSettings != null && this.context.maxConcurrentStreams > 0) {
+            this.readBuffer.flip();
+            this.handOver(new HashMap<>(this.parser.getRequest()), upgradeSettings);
+            return;
+        }
+
+        // over the adaptive limit of the requests in flight the request is shed without being queued
+        if (!this.context.admission.admitRequest()) {
+            this.shed();
+            return;
+        }
+
+        // stop reading until the response has been written, so the responses keep the requests' order
+        this.state = NioConnection.PROCESSING;
+        this.key.interestOps(0);
+        this.dispatchStart = System.nanoTime();
+
+        try {
+            this.workersPool.execute(this::process);
+        } catch (RejectedExecutionException e) {
+            // the workers' queue is full
+            this.context.admission.requestRejected();
+            this.shed();
+        }
+    }
+
+
+    // Method handing the channel, and the bytes received after the preface or the upgrade request (the read
+    // buffer in read mode), over to an HTTP/2 connection running on a thread of its own; the channel is
+    // deregistered from the selector first, as it has to be blocking again (event loop thread)
+    private void handOver(Map<String, String> upgradeRequest, byte[] upgradeSettings) {
+        ByteBuffer received = this.readBuffer;
+
+        this.state = NioConnection.HANDED_OVER;
+        this.eventLoop.deregister(this.key, () -> new Http2Connection(this.channel.socket(), null, received,
+                upgradeRequest, upgradeSettings, this.workersPool, this.context).start());
+    }
+
+
+    // Method answering the parsed request with 503 and Retry-After without processing it; the connection is
+    // closed once the response is written, as the rest of the request (a body) has not been read
+    private void shed() {
+        this.keepAlive = false;
+        this.requestMethod = this.parser.getRequest().get("Method");
+        this.responseCode = ErrorCodes.SERVICE_UNAVAILABLE;
+        this.responseLength = 0;
+        this.actionNanos = 0;
+        this.writeStart = System.nanoTime();
+
+        this.writeBuffers = new ByteBuffer[] {ByteBuffer.wrap(this.context.admission.getServiceUnavailable())};
+        this.startWriting();
+        this.key.interestOps(0);
+        this.onWritable();
+    }
+
+
+    // Method run on a worker thread: apply the operation of the parsed request and post the response
+    // back to the event loop
+    private void process() {
+        Map<String, String> requestData = this.parser.getRequest();
+        Map<String, String> responseData = new HashMap<>();
+        RequestBody requestBody;
+        Helper helper;
+        ByteBuffer response;
+        long actionStart = System.nanoTime();
+
+        this.bodyStart = 0;
+        requestBody = this.parser.getBody(this.readBuffer, this::receiveBody);
+
+        this.servedRequests++;
+        this.keepAlive = Connection.isKeepAlive(requestData, this.servedRequests, this.context.maxRequests);
+
+        helper = new Helper(requestData, requestBody, responseData, this.context);
+        helper.applyAction();
+
+        // the part of a streamed body which was not read cannot be told apart from the next request
+        if (requestBody != null && !requestBody.isFinished()) {
+            this.keepAlive = false;
+        }
+        // a body compressed while it is sent has no length, if it is not chunked closing the connection
+        // marks its end
+        if (helper.getResponseEncoder() != null && !responseData.containsKey("Transfer-Encoding")) {
+            this.keepAlive = false;
+        }
+        // a draining server closes the connection after this response
+        if (this.context.lifecycle.isDraining()) {
+            this.keepAlive = false;
+        }
+        responseData.put("Connection", this.keepAlive ? "keep-alive" : "close");
+
+        // the write phase starts with building the headers, as in the blocking Connection
+        this.writeStart = System.nanoTime();
+        this.actionNanos = this.writeStart - actionStart;
+        this.context.admission.requestDone(this.writeStart - this.dispatchStart);
+        this.requestMethod = requestData.get("Method");
+        this.responseCode = responseData.get("Code");
+        this.responseLength = this.context.accessLog.isEnabled() ? helper.getBodyLength() : 0;
+
+        // the previous response has been written, so the headers buffer of the connection is free
+        this.headers.clear();
+        if (helper.getErrorPage() != null) {
+            this.headers.append(helper.getErrorPage(), responseData, helper.hasErrorBody());
+        } else {
+            this.headers.append(responseData);
+        }
+        response = this.headers.flip();
+
+        this.eventLoop.execute(() -> {
+            if (this.state == NioConnection.PROCESSING) {
+                ByteBuffer[] body = helper.getResponseBuffers();
+                if (body == null) {
+                    this.writeBuffers = this.headersOnly;
+                } else if (body.length == 1) {
+                    this.writeBuffers = this.headersAndBody;
+                    this.writeBuffers[1] = body[0];
+                } else {
+                    this.writeBuffers = new ByteBuffer[body.length + 1];
+                    System.arraycopy(body, 0, this.writeBuffers, 1, body.length);
+                }
+                this.writeBuffers[0] = response;
+                this.bodyFile = helper.getResponseFile();
+                this.bodyPosition = helper.getResponseFilePosition();
+                this.bodyEnd = this.bodyPosition + helper.getResponseFileLength();
+                this.bodyEncoder = helper.getResponseEncoder();
+                this.bodyMapping = helper.getResponseMapping();
+                this.startWriting();
+                this.onWritable();
+            } else {
+                NioConnection.closeQuietly(helper.getResponseFile());
+                NioConnection.closeQuietly(helper.getResponseEncoder());
+                NioConnection.closeQuietly(helper.getResponseMapping());
+            }
+        });
+    }
+
+
+    // Method run on the worker thread when a streamed request body needs more bytes: the read buffer is handed
+    // to the event loop, which sends 100 Continue if the client waits for it and reads from the channel once it
+    // is readable; returns false if the connection was closed in the meantime
+    private boolean receiveBody(ByteBuffer buffer, boolean sendContinue) throws IOException {
+        CompletableFuture<Boolean> received = new CompletableFuture<>();
+
+        this.eventLoop.execute(() -> {
+            if (this.state != NioConnection.PROCESSING) {
+                received.complete(false);
+                return;
+            }
+            this.bodyReceived = received;
+
+            try {
+                if (sendContinue) {
+                    ByteBuffer interimResponse = ByteBuffer.wrap(HTTPParser.CONTINUE);
+                    this.channel.write(interimResponse);
+                    // a fresh socket buffer always has room for it
+                    if (interimResponse.hasRemaining()) {
+                        throw new IOException("Could not send 100 Continue.");
+                    }
+                }
+            } catch (IOException e) {
+                this.close();
+                return;
+            }
+
+            this.state = NioConnection.RECEIVING;
+            this.lastActivity = System.currentTimeMillis();
+            if (this.bodyStart == 0) {
+                this.bodyStart = this.lastActivity;
+                this.bodyBytes = 0;
+            }
+            this.key.interestOps(SelectionKey.OP_READ);
+        });
+
+        try {
+            return received.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the request body.");
+        } catch (ExecutionException e) {
+            // a timeout is rethrown as it is, so the request is answered with 408
+            if (e.getCause() instanceof SocketTimeoutException) {
+                throw (SocketTimeoutException) e.getCause();
+            }
+            throw new IOException("Could not receive the request body.", e.getCause());
+        }
+    }
+
+
+    // Method handing the read buffer back to the worker waiting for the request body (event loop thread)
+    private void handBodyOver(int count) {
+        if (count == 0) {
+            return;
+        }
+
+        this.bodyBytes += count;
+        this.state = NioConnection.PROCESSING;
+        this.key.interestOps(0);
+        this.bodyReceived.complete(true);
+        this.bodyReceived = null;
+    }
+
+
+    // Method failing the body expected by the worker (event loop thread): the client stopped sending it, or
+    // sends it below the minimum rate, and the request is answered with 408 Request Timeout
+    private void failBody(String message) {
+        this.state = NioConnection.PROCESSING;
+        this.key.interestOps(0);
+        this.bodyReceived.completeExceptionally(new SocketTimeoutException(message));
+        this.bodyReceived = null;
+    }
+
+
+    // Method starting to write a response (event loop thread), whose progress is checked against the write
+    // timeout and the minimum rate
+    private void startWriting() {
+        this.state = NioConnection.WRITING;
+        this.responseStart = System.currentTimeMillis();
+        this.lastActivity = this.responseStart;
+        this.writtenBytes = 0;
+    }
+
+
+    // Method sending as much of the response file as the socket accepts without blocking; returns the number
+    // of bytes sent
+    private long transferBody() throws IOException {
+        long count = this.bodyFile.transferTo(this.bodyPosition, this.bodyEnd - this.bodyPosition, this.channel);
+
+        // nothing sent although the socket was writable: the file was truncated in the meantime
+        if (count == 0 && this.bodyPosition >= this.bodyFile.size()) {
+            throw new IOException("The response file was truncated while being sent.");
+        }
+        this.bodyPosition += count;
+
+        if (this.bodyPosition >= this.bodyEnd) {
+            NioConnection.closeQuietly(this.bodyFile);
+            this.bodyFile = null;
+        }
+        return count;
+    }
+
+
+    // Method sending the output of the encoder as it is produced, until the socket does not accept more;
+    // returns the number of bytes sent
+    private long writeEncoded() throws IOException {
+        long written = 0;
+
+        while (true) {
+            if (this.encodedChunk == null || !this.encodedChunk.hasRemaining()) {
+                this.encodedChunk = this.bodyEncoder.next();
+
+                if (this.encodedChunk == null) {
+                    NioConnection.closeQuietly(this.bodyEncoder);
+                    this.bodyEncoder = null;
+                    return written;
+                }
+            }
+
+            written += this.channel.write(this.encodedChunk);
+            if (this.encodedChunk.hasRemaining()) {
+                return written;
+            }
+        }
+    }
+
+
+    // Method closing a response file or encoder, ignoring the errors
+    private static void closeQuietly(Closeable body) {
+        if (body != null) {
+            try {
+                body.close();
+            } catch (IOException e) { }
+        }
+    }
+
+
+    // Method called periodically by the event loop: the connection is closed if it has waited for a request
+    // for longer than the idle timeout, if the client takes too long to send the headers or to read the
+    // response, or reads it below the minimum rate; a body which the client stops sending (or sends too
+    // slowly) is failed instead, so the worker answers it with 408. The time spent on a worker is not limited
+    void checkTimeouts(long now) {
+        switch (this.state) {
+            case NioConnection.READING:
+                if (this.requestStart == 0) {
+                    // an idle connection is closed as soon as the server drains
+                    if (now - this.lastActivity > this.context.idleTimeout || this.context.lifecycle.isDraining()) {
+                        this.close();
+                    }
+                } else if (now - this.requestStart > this.limits.headerTimeout) {
+                    this.limits.headerTimeout();
+                    this.close();
+                }
+                break;
+            case NioConnection.RECEIVING:
+                if (now - this.lastActivity > this.limits.bodyTimeout) {
+                    this.limits.bodyTimeout();
+                    this.failBody("The client stopped sending the request body.");
+                } else if (this.limits.isTooSlow(this.bodyBytes, this.bodyStart, now)) {
+                    this.limits.belowMinRate();
+                    this.failBody("The request body is sent below the minimum rate.");
+                }
+                break;
+            case NioConnection.WRITING:
+                if (now - this.lastActivity > this.limits.writeTimeout) {
+                    this.limits.writeTimeout();
+                    this.close();
+                } else if (this.limits.isTooSlow(this.writtenBytes, this.responseStart, now)) {
+                    this.limits.belowMinRate();
+                    this.close();
+                }
+                break;
+            default:
+                // a request being processed on a worker
+                break;
+        }
+    }
+
+
+    // Method closing the channel (called on the event loop thread), unless an HTTP/2 connection owns it now
+    void close() {
+        if (this.state == NioConnection.CLOSED || this.state == NioConnection.HANDED_OVER) {
+            return;
+        }
+        this.state = NioConnection.CLOSED;
+
+        try {
+            this.channel.close();
+        } catch (IOException e) { }
+
+        NioConnection.closeQuietly(this.bodyFile);
+        NioConnection.closeQuietly(this.bodyEncoder);
+        NioConnection.closeQuietly(this.bodyMapping);
+
+        // a worker waiting for the request body gets the end of the stream
+        if (this.bodyReceived != null) {
+            this.bodyReceived.complete(false);
+            this.bodyReceived = null;
+        }
+
+        this.context.metrics.connectionClosed();
+        this.context.admission.connectionClosed();
+        Log.debug(this.channel, " has stopped after " + this.servedRequests + " requests.");
+    }
+}
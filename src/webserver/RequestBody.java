@@ -0,0 +1,270 @@
+package webserver;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+
+/*
+    Class holding the body of a request: a small body is parsed into memory with the headers, a big one
+    (or a chunked one, or one the client sends only after "Expect: 100-continue") is left on the connection
+    and read while the request is processed, straight from the connection's buffer to the file being
+    written, so the memory used by a request does not depend on the size of its body
+ */
+public class RequestBody {
+
+    // length of a body sent with "Transfer-Encoding: chunked"
+    static final long CHUNKED = -1;
+
+    // length of a body which ends with its stream (an HTTP/2 request without content-length)
+    static final long UNTIL_END = -2;
+
+    // the chunk size line (with its extensions) and the trailer lines must fit in the connection's buffer
+    private static final int CHUNK_SIZE = 0;
+    private static final int CHUNK_DATA = 1;
+    private static final int CHUNK_END = 2;
+    private static final int TRAILER = 3;
+
+    private final byte[] content;
+    private final ByteBuffer buffer;
+    private final Source source;
+    private final boolean chunked;
+    private final boolean untilEnd;
+    private final ClientLimits limits;
+
+    private long remaining;
+    private int chunkState;
+    private boolean expectContinue;
+    private boolean finished;
+    private boolean malformed;
+    private boolean tooLarge;
+    private long length;
+
+
+    /*
+        Interface implemented by the connections to read more bytes of a streamed body from the client
+     */
+    interface Source {
+        // Method reading more bytes from the client into the buffer (in write mode), preceded by the interim
+        // 100 Continue response if the client waits for it; returns false if the client closed the connection
+        // (or, for an HTTP/2 stream, ended the body)
+        boolean fill(ByteBuffer buffer, boolean sendContinue) throws IOException;
+    }
+
+
+    // a body parsed into memory with the headers
+    RequestBody(byte[] content) {
+        this.content = content;
+        this.buffer = null;
+        this.source = null;
+        this.chunked = false;
+        this.untilEnd = false;
+        this.limits = null;
+        this.remaining = content.length;
+    }
+
+
+    // a body left on the connection: the buffer (in write mode) holds its first bytes, the source the rest;
+    // length is the Content-Length, CHUNKED or UNTIL_END (whose length is checked against the limits as it is read)
+    RequestBody(ByteBuffer buffer, long length, boolean expectContinue, Source source, ClientLimits limits) {
+        this.content = null;
+        this.buffer = buffer;
+        this.source = source;
+        this.chunked = length == RequestBody.CHUNKED;
+        this.untilEnd = length == RequestBody.UNTIL_END;
+        this.limits = limits;
+        this.remaining = this.chunked ? 0 : this.untilEnd ? Long.MAX_VALUE : length;
+        this.chunkState = RequestBody.CHUNK_SIZE;
+        this.expectContinue = expectContinue;
+        this.finished = length == 0;
+    }
+
+
+    // Method telling whether the body is read from the connection while the request is processed
+    boolean isStreamed() {
+        return this.content == null;
+    }
+
+
+    // Method telling whether the whole body has been read, so the connection can go on with the next request
+    boolean isFinished() {
+        return this.finished;
+    }
+
+
+    // Method telling whether reading the body failed because of its chunked framing (400 Bad Request)
+    boolean isMalformed() {
+        return this.malformed;
+    }
+
+
+    // Method telling whether reading the body failed because the chunks went over the maximum body size
+    // (413 Payload Too Large)
+    boolean isTooLarge() {
+        return this.tooLarge;
+    }
+
+
+    // Method returning the number of bytes of the body read so far (the decoded length of a chunked body)
+    long getLength() {
+        return this.length;
+    }
+
+
+    // Method writing the whole (rest of the) body to the target; returns the number of bytes written
+    long transferTo(WritableByteChannel target) throws IOException {
+        long start = this.length;
+
+        if (this.content != null) {
+            ByteBuffer content = ByteBuffer.wrap(this.content, (int) this.length, (int) this.remaining);
+            while (content.hasRemaining()) {
+                this.length += target.write(content);
+            }
+            this.remaining = 0;
+            this.finished = true;
+            return this.length - start;
+        }
+
+        // the buffer is read from here on and handed back in write mode, holding the bytes following the body
+        // (a pipelined request)
+        this.buffer.flip();
+        try {
+            while (!this.finished) {
+                if (this.chunked && this.chunkState != RequestBody.CHUNK_DATA) {
+                    if (!this.parseChunkLine()) {
+                        this.fill();
+                    }
+                } else if (!this.buffer.hasRemaining()) {
+                    this.fill();
+                } else {
+                    this.writeData(target);
+                }
+            }
+        } finally {
+            this.buffer.compact();
+        }
+
+        return this.length - start;
+    }
+
+
+    // Method writing the body bytes available in the buffer, up to the end of the body or of the chunk
+    private void writeData(WritableByteChannel target) throws IOException {
+        int count = (int) Math.min(this.buffer.remaining(), this.remaining);
+        int end = this.buffer.position() + count;
+        ByteBuffer data = this.buffer.duplicate();
+
+        data.limit(end);
+        while (data.hasRemaining()) {
+            target.write(data);
+        }
+        this.buffer.position(end);
+
+        this.length += count;
+        this.remaining -= count;
+
+        if (this.untilEnd && this.length > this.limits.maxBodyBytes) {
+            this.tooLarge = true;
+            this.limits.bodyTooLarge();
+            throw new IOException("The request body is over the maximum body size.");
+        }
+
+        if (this.remaining == 0) {
+            if (this.chunked) {
+                this.chunkState = RequestBody.CHUNK_END;
+            } else {
+                this.finished = true;
+            }
+        }
+    }
+
+
+    // Method consuming the next line of the chunked framing (chunk size, end of the chunk data or trailer);
+    // returns false if the line is not complete in the buffer
+    private boolean parseChunkLine() throws IOException {
+        int start = this.buffer.position();
+        int lineFeed = -1;
+
+        for (int i = start; i < this.buffer.limit(); i++) {
+            if (this.buffer.get(i) == '\n') {
+                lineFeed = i;
+                break;
+            }
+        }
+        if (lineFeed < 0) {
+            return false;
+        }
+
+        int end = (lineFeed > start && this.buffer.get(lineFeed - 1) == '\r') ? lineFeed - 1 : lineFeed;
+        this.buffer.position(lineFeed + 1);
+
+        switch (this.chunkState) {
+            case RequestBody.CHUNK_SIZE:
+                // <size in hex>[;extensions], the extensions are ignored; the last chunk has size 0
+                long size = 0;
+                int i = start;
+                for (; i < end && this.buffer.get(i) != ';'; i++) {
+                    int digit = Character.digit(this.buffer.get(i), 16);
+                    if (digit < 0 || size > (Long.MAX_VALUE >> 4)) {
+                        this.malformed();
+                    }
+                    size = (size << 4) + digit;
+                }
+                if (i == start) {
+                    this.malformed();
+                }
+                if (size > this.limits.maxBodyBytes - this.length) {
+                    this.tooLarge = true;
+                    this.limits.bodyTooLarge();
+                    throw new IOException("The chunked request body is over the maximum body size.");
+                }
+
+                this.remaining = size;
+                this.chunkState = size > 0 ? RequestBody.CHUNK_DATA : RequestBody.TRAILER;
+                break;
+            case RequestBody.CHUNK_END:
+                // the chunk data is followed by an empty line
+                if (end != start) {
+                    this.malformed();
+                }
+                this.chunkState = RequestBody.CHUNK_SIZE;
+                break;
+            default:
+                // the trailer fields are skipped, an empty line ends the body
+                if (end == start) {
+                    this.finished = true;
+                }
+        }
+        return true;
+    }
+
+
+    // Method reading more bytes from the client into the buffer (kept in read mode)
+    private void fill() throws IOException {
+        this.buffer.compact();
+
+        // a chunk line which does not fit in the buffer
+        if (!this.buffer.hasRemaining()) {
+            this.buffer.flip();
+            this.malformed();
+        }
+
+        boolean open = this.source.fill(this.buffer, this.expectContinue);
+        this.expectContinue = false;
+        this.buffer.flip();
+
+        if (!open && this.untilEnd) {
+            this.finished = true;
+        } else if (!open) {
+            throw new EOFException("The client closed the connection in the middle of the request body.");
+        }
+    }
+
+
+    // Method failing on an invalid chunked framing
+    private void malformed() throws IOException {
+        this.malformed = true;
+        throw new IOException("Invalid chunked request body.");
+    }
+}
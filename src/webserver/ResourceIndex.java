@@ -0,0 +1,390 @@
+package webserver;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/*
+    Class holding the metadata of every file and directory under the document root (size, modification time,
+    content type), keyed by the normalized resource path, so a request is resolved, and answered 404 or 403,
+    with a map lookup instead of several stat calls. The index is built at start by a parallel walk of the
+    tree and kept current by a watcher thread following the WatchService events of every directory (an
+    overflow makes it walk the whole tree again), while the writes and deletes of the server update it before
+    they release the lock of the file. The directories behind symbolic links are indexed but not walked into.
+    A disabled index stats the file at every lookup instead. The writes receive their bodies in a private
+    directory under the root (on the same file system, so the new file is renamed over the old one
+    atomically), which is neither indexed nor served, and emptied at start of what a crash left there
+ */
+public class ResourceIndex implements Runnable {
+
+    private static final String ROOT = "/";
+    private static final String UPLOADS = "/.webserver-uploads";
+
+    private final Path root;
+    private final boolean enabled;
+
+    // the resource path of the error pages directory if it is under the root (its files are Forbidden), or null
+    private final String errorDirectory;
+
+    // the directory the temporary files of the writes are created in
+    private final Path uploads;
+
+    private final ConcurrentHashMap<String, Resource> resources;
+    private final LongAdder rescans;
+    private final WatchService watcher;
+
+    ResourceIndex(String rootDirectory, String errorDirectory, boolean enabled) {
+        Path errors = Path.of(errorDirectory).toAbsolutePath().normalize();
+        WatchService watcher = null;
+
+        this.root = Path.of(rootDirectory).toAbsolutePath().normalize();
+        this.errorDirectory = errors.startsWith(this.root) ? this.resourceOf(errors) : null;
+        this.uploads = this.root.resolve(ResourceIndex.UPLOADS.substring(1));
+        this.resources = new ConcurrentHashMap<>();
+        this.rescans = new LongAdder();
+        this.enabled = enabled;
+
+        if (enabled) {
+            try {
+                watcher = this.root.getFileSystem().newWatchService();
+            } catch (IOException e) {
+                System.err.println("Could not watch the document root, the changes made outside the server are "
+                        + "not seen by the index: " + e.getMessage());
+            }
+        }
+        this.watcher = watcher;
+
+        if (enabled) {
+            this.scan();
+        }
+        this.clearUploads();
+    }
+
+
+    // Method normalizing a requested resource: the "." and empty segments are dropped and ".." removes the
+    // previous segment; returns null if the path does not start with '/' or climbs above the root
+    static String normalize(String resource) {
+        if (!resource.startsWith(ResourceIndex.ROOT)) {
+            return null;
+        }
+        if (!resource.contains("/.") && !resource.contains("//")) {
+            return resource;
+        }
+
+        List<String> segments = new ArrayList<>();
+        for (String segment : resource.split("/")) {
+            if (segment.equals("..")) {
+                if (segments.isEmpty()) {
+                    return null;
+                }
+                segments.remove(segments.size() - 1);
+            } else if (!segment.isEmpty() && !segment.equals(".")) {
+                segments.add(segment);
+            }
+        }
+        return ResourceIndex.ROOT + String.join("/", segments);
+    }
+
+
+    // Method telling whether a normalized resource is in the error pages directory or the uploads directory,
+    // which are not served
+    boolean isForbidden(String resource) {
+        return this.errorDirectory != null && ResourceIndex.isUnder(resource, this.errorDirectory)
+                || ResourceIndex.isUnder(resource, ResourceIndex.UPLOADS);
+    }
+
+
+    private static boolean isUnder(String resource, String directory) {
+        return resource.equals(directory)
+                || resource.startsWith(directory) && resource.charAt(directory.length()) == '/';
+    }
+
+
+    // Method returning the directory the writes create their temporary files in, created if it is missing
+    Path getUploadDirectory() throws IOException {
+        return Files.createDirectories(this.uploads);
+    }
+
+
+    // Method returning the metadata of a normalized resource, null if it does not exist
+    Resource lookup(String resource) {
+        if (this.enabled) {
+            return this.resources.get(resource);
+        }
+        return this.stat(resource);
+    }
+
+
+    // Method reading again the metadata of a resource the server has written (called with its lock held)
+    Resource update(String resource) {
+        if (!this.enabled) {
+            return this.stat(resource);
+        }
+
+        Resource updated = this.stat(resource);
+        if (updated != null) {
+            this.resources.put(resource, updated);
+        } else {
+            this.resources.remove(resource);
+        }
+        return updated;
+    }
+
+
+    // Method dropping a resource the server has deleted (called with its lock held)
+    void remove(String resource) {
+        if (this.enabled) {
+            this.resources.remove(resource);
+        }
+    }
+
+
+    int size() {
+        return this.resources.size();
+    }
+
+
+    long getRescans() {
+        return this.rescans.sum();
+    }
+
+
+    /*
+        Method implementing the watcher thread: every event is applied by reading the metadata of the path it
+        names again, so the events coalesced or received late still leave the current state in the index
+     */
+    @Override
+    public void run() {
+        while (true) {
+            WatchKey key;
+
+            try {
+                key = this.watcher.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+
+            Path directory = (Path) key.watchable();
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    // events were lost, the whole tree is read again
+                    this.rescans.increment();
+                    this.scan();
+                } else {
+                    this.changed(directory.resolve((Path) event.context()));
+                }
+            }
+
+            // the key of a deleted directory is no longer valid, its entries went with its DELETE event
+            key.reset();
+        }
+    }
+
+
+    // Method starting the watcher thread (by the server, once it is listening)
+    void start() {
+        if (this.watcher != null) {
+            Thread thread = new Thread(this, "index-watcher");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+
+    // Method stopping the watcher thread
+    void close() {
+        if (this.watcher != null) {
+            try {
+                this.watcher.close();
+            } catch (IOException e) {
+                System.err.println("Could not close the watcher of the document root.");
+            }
+        }
+    }
+
+
+    // Method deleting the temporary files a crash left in the uploads directory: they were never renamed, the
+    // writes which created them were not answered
+    private void clearUploads() {
+        if (!Files.isDirectory(this.uploads, LinkOption.NOFOLLOW_LINKS)) {
+            return;
+        }
+
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(this.uploads)) {
+            for (Path path : entries) {
+                Files.deleteIfExists(path);
+            }
+        } catch (IOException e) {
+            System.err.println("Could not clear the uploads directory: " + e.getMessage());
+        }
+    }
+
+
+    // Method walking the whole tree in parallel, on the common fork-join pool; the entries of the files gone
+    // since the previous walk are dropped
+    private void scan() {
+        ConcurrentHashMap<String, Resource> found = new ConcurrentHashMap<>();
+
+        found.put(ResourceIndex.ROOT, new Resource(0, 0, null, true));
+        ForkJoinPool.commonPool().invoke(new Walk(this.root, found));
+
+        this.resources.putAll(found);
+        this.resources.keySet().retainAll(found.keySet());
+    }
+
+
+    // Method applying a change under the root: the path is read again, a new directory is walked (and watched)
+    // and a deleted one takes its entries with it
+    private void changed(Path path) {
+        String resource = this.resourceOf(path);
+
+        if (ResourceIndex.isUnder(resource, ResourceIndex.UPLOADS)) {
+            return;
+        }
+        Resource current = this.stat(resource);
+
+        if (current == null) {
+            Resource removed = this.resources.remove(resource);
+            if (removed != null && removed.directory) {
+                String prefix = resource + "/";
+                this.resources.keySet().removeIf(key -> key.startsWith(prefix));
+            }
+        } else if (current.directory && !Files.isSymbolicLink(path)) {
+            ConcurrentHashMap<String, Resource> found = new ConcurrentHashMap<>();
+            new Walk(path, found).invoke();
+            this.resources.putAll(found);
+            this.resources.put(resource, current);
+        } else {
+            this.resources.put(resource, current);
+        }
+    }
+
+
+    // Method reading the metadata of a normalized resource from the file system, null if it does not exist
+    private Resource stat(String resource) {
+        try {
+            Path path = this.root.resolve(resource.substring(1));
+            return ResourceIndex.read(path, Files.readAttributes(path, BasicFileAttributes.class));
+        } catch (IOException | InvalidPathException e) {
+            return null;
+        }
+    }
+
+
+    private static Resource read(Path path, BasicFileAttributes attributes) throws IOException {
+        if (attributes.isDirectory()) {
+            return new Resource(0, attributes.lastModifiedTime().toMillis(), null, true);
+        }
+        return new Resource(attributes.size(), attributes.lastModifiedTime().toMillis(),
+                Files.probeContentType(path), false);
+    }
+
+
+    // Method returning the resource path of a path under the root ("/a/b.html")
+    private String resourceOf(Path path) {
+        String relative = this.root.relativize(path).toString();
+
+        if (!path.getFileSystem().getSeparator().equals("/")) {
+            relative = relative.replace(path.getFileSystem().getSeparator(), "/");
+        }
+        return ResourceIndex.ROOT + relative;
+    }
+
+
+    /*
+        Class walking a directory: its files are indexed and its subdirectories walked by tasks of their own,
+        the directory being watched before it is listed so none of its changes is missed
+     */
+    private class Walk extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Path directory;
+        private final ConcurrentHashMap<String, Resource> found;
+
+        Walk(Path directory, ConcurrentHashMap<String, Resource> found) {
+            this.directory = directory;
+            this.found = found;
+        }
+
+
+        @Override
+        protected void compute() {
+            List<Walk> subdirectories = new ArrayList<>();
+
+            try {
+                if (ResourceIndex.this.watcher != null) {
+                    this.directory.register(ResourceIndex.this.watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                            StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                }
+
+                try (DirectoryStream<Path> entries = Files.newDirectoryStream(this.directory)) {
+                    for (Path path : entries) {
+                        this.index(path, subdirectories);
+                    }
+                }
+            } catch (ClosedWatchServiceException e) {
+                return;
+            } catch (IOException e) {
+                // a directory removed during the walk is left out
+            }
+
+            ForkJoinTask.invokeAll(subdirectories);
+        }
+
+
+        private void index(Path path, List<Walk> subdirectories) {
+            if (path.equals(ResourceIndex.this.uploads)) {
+                return;
+            }
+
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class,
+                        LinkOption.NOFOLLOW_LINKS);
+
+                if (attributes.isSymbolicLink()) {
+                    attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                } else if (attributes.isDirectory()) {
+                    subdirectories.add(new Walk(path, this.found));
+                }
+                this.found.put(ResourceIndex.this.resourceOf(path), ResourceIndex.read(path, attributes));
+            } catch (IOException e) {
+                // a file removed during the walk, or a broken link, is left out
+            }
+        }
+    }
+
+
+    /*
+        Class holding the metadata of a file or a directory
+     */
+    static class Resource {
+        final long length;
+        final long lastModified;
+        final String contentType;
+        final boolean directory;
+
+        Resource(long length, long lastModified, String contentType, boolean directory) {
+            this.length = length;
+            this.lastModified = lastModified;
+            this.contentType = contentType;
+            this.directory = directory;
+        }
+    }
+}
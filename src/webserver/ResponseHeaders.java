@@ -0,0 +1,199 @@
+package webserver;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+
+/*
+    Class encoding the response headers straight into a buffer reused by the connection: the status lines,
+    the header names and the fixed lines are encoded once, the Date line is taken from the DateHeader and only
+    the values are copied, so no String or byte array is built for a response. The buffer stays in write mode
+    between the responses; the connection flips it to send the headers and clears it once they are written
+ */
+public class ResponseHeaders {
+
+    private static final int INITIAL_SIZE = 1024;
+
+    private static final String[] CODES = {ErrorCodes.OK, ErrorCodes.CREATED, ErrorCodes.NO_CONTENT,
+            ErrorCodes.PARTIAL_CONTENT, ErrorCodes.NOT_MODIFIED, ErrorCodes.BAD, ErrorCodes.FORBIDDEN,
+            ErrorCodes.NOT_FOUND, ErrorCodes.REQUEST_TIMEOUT, ErrorCodes.PAYLOAD_TOO_LARGE, ErrorCodes.URI_TOO_LONG,
+            ErrorCodes.RANGE_NOT_SATISFIABLE, ErrorCodes.HEADERS_TOO_LARGE, ErrorCodes.ISE,
+            ErrorCodes.NOT_IMPLEMENTED, ErrorCodes.SERVICE_UNAVAILABLE};
+
+    // status line of every response code, by protocol
+    private static final Map<String, byte[]> STATUS_1_0 = ResponseHeaders.encodeStatusLines("HTTP/1.0");
+    private static final Map<String, byte[]> STATUS_1_1 = ResponseHeaders.encodeStatusLines("HTTP/1.1");
+
+    private static final byte[] SERVER = ResponseHeaders.encode("Server: webserver.WebServer\r\n");
+    private static final byte[] KEEP_ALIVE = ResponseHeaders.encode("Connection: keep-alive\r\n");
+    private static final byte[] CLOSE = ResponseHeaders.encode("Connection: close\r\n");
+    private static final byte[] NO_LENGTH = ResponseHeaders.encode("Content-Length: 0\r\n");
+    private static final byte[] CRLF = ResponseHeaders.encode("\r\n");
+
+    private static final byte[] ALLOW = ResponseHeaders.encode("Allow: ");
+    private static final byte[] CONTENT_LENGTH = ResponseHeaders.encode("Content-Length: ");
+    private static final byte[] TRANSFER_ENCODING = ResponseHeaders.encode("Transfer-Encoding: ");
+    private static final byte[] CONTENT_RANGE = ResponseHeaders.encode("Content-Range: ");
+    private static final byte[] ACCEPT_RANGES = ResponseHeaders.encode("Accept-Ranges: ");
+    private static final byte[] CONTENT_TYPE = ResponseHeaders.encode("Content-Type: ");
+    private static final byte[] CONTENT_ENCODING = ResponseHeaders.encode("Content-Encoding: ");
+    private static final byte[] VARY = ResponseHeaders.encode("Vary: ");
+    private static final byte[] ETAG = ResponseHeaders.encode("ETag: ");
+    private static final byte[] LAST_MODIFIED = ResponseHeaders.encode("Last-Modified: ");
+
+    private final DateHeader date;
+    private ByteBuffer buffer;
+
+    ResponseHeaders(DateHeader date) {
+        this.date = date;
+        this.buffer = ByteBuffer.allocate(ResponseHeaders.INITIAL_SIZE);
+    }
+
+
+    // Method appending the headers of a response from its Map (the body, if any, is sent after them)
+    void append(Map<String, String> responseData) {
+        String code = responseData.get("Code");
+
+        this.putStatusLine(responseData.get("Protocol"), code);
+
+        // in case of OPTIONS request, append Allow header
+        this.putHeader(ResponseHeaders.ALLOW, responseData.get("Allow"));
+
+        this.put(this.date.getLine());
+        this.put(ResponseHeaders.SERVER);
+        this.put("keep-alive".equals(responseData.get("Connection"))
+                ? ResponseHeaders.KEEP_ALIVE : ResponseHeaders.CLOSE);
+
+        // append the content headers if existent; a persistent connection needs the length
+        // of every response (even an empty one) so the client knows where the next one starts,
+        // except for 204 and 304 which never have a body and for a body compressed while it is
+        // sent (Content-Encoding without a length), which is chunked or ends with the connection
+        if (responseData.containsKey("Content-Length")) {
+            this.putHeader(ResponseHeaders.CONTENT_LENGTH, responseData.get("Content-Length"));
+        } else if (responseData.containsKey("Transfer-Encoding")) {
+            this.putHeader(ResponseHeaders.TRANSFER_ENCODING, responseData.get("Transfer-Encoding"));
+        } else if (!code.equals(ErrorCodes.NO_CONTENT) && !code.equals(ErrorCodes.NOT_MODIFIED)
+                && !responseData.containsKey("Content-Encoding")) {
+            this.put(ResponseHeaders.NO_LENGTH);
+        }
+
+        this.putHeader(ResponseHeaders.CONTENT_RANGE, responseData.get("Content-Range"));
+        this.putHeader(ResponseHeaders.ACCEPT_RANGES, responseData.get("Accept-Ranges"));
+        this.putHeader(ResponseHeaders.CONTENT_TYPE, responseData.get("Content-Type"));
+        this.putHeader(ResponseHeaders.CONTENT_ENCODING, responseData.get("Content-Encoding"));
+        this.putHeader(ResponseHeaders.VARY, responseData.get("Vary"));
+        this.putHeader(ResponseHeaders.ETAG, responseData.get("ETag"));
+        this.putHeader(ResponseHeaders.LAST_MODIFIED, responseData.get("Last-Modified"));
+
+        this.put(ResponseHeaders.CRLF);
+    }
+
+
+    // Method appending a whole error response: its status line, the Allow line of a 405, the Date line and the
+    // pre-rendered rest
+    void append(ErrorPages.Page page, Map<String, String> responseData, boolean withBody) {
+        this.putStatusLine(responseData.get("Protocol"), responseData.get("Code"));
+        this.putHeader(ResponseHeaders.ALLOW, responseData.get("Allow"));
+        this.put(this.date.getLine());
+        this.put(page.getTail("keep-alive".equals(responseData.get("Connection")), withBody));
+    }
+
+
+    // Method appending bytes sent as they are (an interim response) after the pending headers
+    void append(byte[] bytes) {
+        this.put(bytes);
+    }
+
+
+    // Method telling whether no headers are waiting to be written
+    boolean isEmpty() {
+        return this.buffer.position() == 0;
+    }
+
+
+    // Method returning the buffer flipped for writing the pending headers
+    ByteBuffer flip() {
+        return this.buffer.flip();
+    }
+
+
+    // Method emptying the buffer (in write mode) once its content has been written
+    void clear() {
+        this.buffer.clear();
+    }
+
+
+    // Method appending the pre-encoded status line of the code, or encoding it for an unusual protocol
+    private void putStatusLine(String protocol, String code) {
+        Map<String, byte[]> statusLines = protocol.equals("HTTP/1.1") ? ResponseHeaders.STATUS_1_1
+                : protocol.equals("HTTP/1.0") ? ResponseHeaders.STATUS_1_0 : null;
+        byte[] statusLine = statusLines != null ? statusLines.get(code) : null;
+
+        if (statusLine != null) {
+            this.put(statusLine);
+        } else {
+            this.put(protocol);
+            this.put(" ");
+            this.put(code);
+            this.put(ResponseHeaders.CRLF);
+        }
+    }
+
+
+    // Method appending a header line if the value is present
+    private void putHeader(byte[] name, String value) {
+        if (value != null) {
+            this.put(name);
+            this.put(value);
+            this.put(ResponseHeaders.CRLF);
+        }
+    }
+
+
+    private void put(byte[] bytes) {
+        this.ensureRemaining(bytes.length);
+        this.buffer.put(bytes);
+    }
+
+
+    // Method copying a value as ISO-8859-1, the characters out of it are sent as '?' (as String.getBytes does)
+    private void put(String value) {
+        int length = value.length();
+
+        this.ensureRemaining(length);
+        for (int i = 0; i < length; i++) {
+            char character = value.charAt(i);
+            this.buffer.put(character < 256 ? (byte) character : (byte) '?');
+        }
+    }
+
+
+    // Method growing the buffer if the next bytes do not fit (headers bigger than usual)
+    private void ensureRemaining(int length) {
+        if (this.buffer.remaining() < length) {
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(2 * this.buffer.capacity(),
+                    this.buffer.position() + length));
+            this.buffer.flip();
+            bigger.put(this.buffer);
+            this.buffer = bigger;
+        }
+    }
+
+
+    // Method pre-encoding the status line of every response code for the protocol
+    private static Map<String, byte[]> encodeStatusLines(String protocol) {
+        Map<String, byte[]> statusLines = new HashMap<>();
+
+        for (String code : ResponseHeaders.CODES) {
+            statusLines.put(code, ResponseHeaders.encode(protocol + " " + code + "\r\n"));
+        }
+        return statusLines;
+    }
+
+
+    private static byte[] encode(String text) {
+        return text.getBytes(StandardCharsets.ISO_8859_1);
+    }
+}
@@ -1,9 +1,13 @@
 package webserver;
 
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 /*
@@ -12,100 +16,473 @@ import java.util.concurrent.*;
 public class Server implements Runnable {
 
     private static final int TIMEOUT = 5;
-    private static final String ROOT = "www/html";
-    private static final String SERVER = "127.0.0.1";
+    private static final long TIMER_PERIOD = 1000;
+
+    // period of the checks of the open connections while they drain
+    private static final long DRAIN_PERIOD = 50;
+
+    // an HTTP/2 reader thread of the blocking and NIO modes idle that long is ended
+    private static final long HTTP2_READER_KEEP_ALIVE = 60;
 
     private final int runningPort;
     private final int noWorkers;
+    private final String threadModel;
+    private final int noEventLoops;
+    private final ServerContext context;
+    private final SocketSettings sockets;
+    private final TlsTermination tls;
+    private final AdmissionControl admission;
 
-    private boolean running;
+    private volatile boolean running;
 
-    private ServerSocket socketServer;
+    private Acceptor[] acceptors;
     private ExecutorService workersPool;
+    private ExecutorService http2Readers;
+    private Semaphore connectionPermits;
+    private EventLoop[] eventLoops;
+    private ScheduledExecutorService timer;
 
-    Server(int port, int maxNoThreads) {
+    // tls is null if the server has no TLS port
+    Server(int port, int maxNoThreads, String threadModel, int noEventLoops, ServerContext context,
+           SocketSettings sockets, TlsTermination tls) {
         this.runningPort = port;
         this.noWorkers = maxNoThreads;
+        this.threadModel = threadModel;
+        this.noEventLoops = noEventLoops;
+        this.context = context;
+        this.sockets = sockets;
+        this.tls = tls;
+        this.admission = context.admission;
         this.running = false;
     }
 
     @Override
     public void run() {
         try {
-            this.socketServer = new ServerSocket(this.runningPort);
-            this.workersPool = Executors.newFixedThreadPool(this.noWorkers);
+            if (this.threadModel.equals(ThreadModels.VIRTUAL)) {
+                // one virtual thread per connection, the number of workers limits the concurrent connections
+                this.workersPool = Server.newVirtualThreadPerTaskExecutor();
+                this.connectionPermits = new Semaphore(this.noWorkers);
+            } else {
+                // the queue is bounded, the work it has no room for is rejected instead of piling up
+                this.workersPool = new ThreadPoolExecutor(this.noWorkers, this.noWorkers, 0L, TimeUnit.MILLISECONDS,
+                        new ArrayBlockingQueue<>(this.admission.queueSize));
+            }
+            this.context.metrics.setWorkersPool(this.workersPool);
+            this.startHttp2Readers();
+            this.context.accessLog.start();
+
+            // the accepted sockets are backed by channels, so files can be sent to them with transferTo
+            // and, in the NIO mode, they can be switched to non-blocking mode
+            this.openAcceptors();
+            this.context.metrics.setAcceptors(this.acceptors);
+            this.context.metrics.setTls(this.tls);
+
+            if (this.threadModel.equals(ThreadModels.NIO)) {
+                this.startEventLoops();
+            }
+            this.startTimer();
+            this.context.index.start();
             this.running = true;
+            this.context.lifecycle.started();
 
             System.out.println("Server has started.");
 
-            // Server logic
-            while (true) {
-                Socket connectionSocket;
+            // the first acceptor runs on the server thread, the others on their own threads
+            Thread[] acceptorThreads = new Thread[this.acceptors.length];
+            for (int i = 1; i < this.acceptors.length; i++) {
+                Acceptor acceptor = this.acceptors[i];
+                acceptorThreads[i] = new Thread(() -> this.accept(acceptor), "acceptor-" + i);
+                acceptorThreads[i].start();
+            }
+            this.accept(this.acceptors[0]);
 
-                try {
-                    connectionSocket = socketServer.accept();   // waiting for connections
+            for (int i = 1; i < acceptorThreads.length; i++) {
+                Server.joinQuietly(acceptorThreads[i]);
+            }
+            this.finish();
 
-                    // if the running flag is changed to false, the server stops execution
-                    if (!this.running) {
-                        this.finish();
-                        break;
-                    }
-                    System.out.println("New connection from " + connectionSocket);
+        } catch (IOException e) {
+            System.err.println(e.getMessage() != null ? e.getMessage() : "Port unavailable");
+            this.closeAcceptors();
+        }
+    }
+
+
+    /*
+        Method opening the listening sockets: one per acceptor, all bound to the port with SO_REUSEPORT so the
+        kernel balances the new connections among them, or a single one shared by the acceptors if the port
+        cannot be reused; the TLS port gets as many acceptors as the cleartext one
+     */
+    private void openAcceptors() throws IOException {
+        // a single listening socket is bound with SO_REUSEPORT as well, so a new server can take the port over
+        boolean reusePort = SocketSettings.isReusePortSupported();
+
+        if (!reusePort && (this.sockets.noAcceptors > 1 || this.sockets.handover)) {
+            System.err.println("SO_REUSEPORT is not supported, the acceptors share one listening socket and the "
+                    + "port cannot be handed over.");
+        }
+
+        this.acceptors = new Acceptor[this.sockets.noAcceptors * (this.tls != null ? 2 : 1)];
+        this.openAcceptors(this.runningPort, 0, false, reusePort);
+        if (this.tls != null) {
+            this.openAcceptors(this.tls.port, this.sockets.noAcceptors, true, reusePort);
+        }
+    }
+
+
+    /*
+        Method opening the listening sockets of one port, for the acceptors from the given index on
+     */
+    private void openAcceptors(int port, int first, boolean tls, boolean reusePort) throws IOException {
+        // a socket without SO_REUSEPORT cannot be bound if another server already listens on the port, which
+        // the reused port would otherwise share with it silently; a handover shares it on purpose
+        if (reusePort && !this.sockets.handover) {
+            this.sockets.listen(port, false).close();
+        }
 
-                    // execute connection's logic on a new worker thread in the workers pool
-                    this.workersPool.execute(new Connection(connectionSocket, Server.ROOT));
+        for (int i = first; i < first + this.sockets.noAcceptors; i++) {
+            ServerSocketChannel channel = (reusePort || i == first)
+                    ? this.sockets.listen(port, reusePort) : this.acceptors[first].channel;
+            this.acceptors[i] = new Acceptor(i, channel, tls);
+        }
+    }
+
+
+    /*
+        Method implementing the accept loop of an acceptor, until the server is shut down
+     */
+    private void accept(Acceptor acceptor) {
+        while (this.running) {
+            SocketChannel channel;
+            boolean admitted = false;
+
+            try {
+                channel = acceptor.channel.accept();   // waiting for connections
+            } catch (ClosedChannelException e) {
+                // the listening socket is closed when the server is shut down
+                break;
+            } catch (IOException e) {
+                System.err.println("Could not accept a connection: " + e.getMessage());
+                continue;
+            }
 
-                } catch (Exception e) {
-                    e.printStackTrace();
+            try {
+                acceptor.accepted();
+                Log.debug(channel, " accepted.");
+
+                // above the maximum number of connections the new ones are answered with 503 right away
+                if (!this.admission.admitConnection()) {
+                    this.reject(channel, acceptor);
+                    continue;
+                }
+                admitted = true;
+
+                this.sockets.configure(channel);
+                TlsTermination tls = acceptor.tls ? this.tls : null;
+
+                if (this.threadModel.equals(ThreadModels.NIO) && tls == null) {
+                    // hand the connection over to the next event loop
+                    this.register(channel, acceptor);
+                } else if (this.threadModel.equals(ThreadModels.VIRTUAL)) {
+                    // execute connection's logic on its own virtual thread once a permit is available, or reject
+                    // it if the acceptor is interrupted while waiting or the server stops taking work
+                    try {
+                        this.executeLimited(new Connection(channel.socket(), tls, this.workersPool, this.context));
+                    } catch (InterruptedException e) {
+                        this.admission.connectionClosed();
+                        this.reject(channel, acceptor);
+                        Thread.currentThread().interrupt();
+                    } catch (RejectedExecutionException e) {
+                        this.admission.connectionClosed();
+                        this.reject(channel, acceptor);
+                    }
+                } else {
+                    // execute connection's logic on a new worker thread in the workers pool, or reject it
+                    // if as many connections as the queue holds are already waiting for a worker (a TLS
+                    // connection of the NIO mode too, its records are read and written by blocking calls)
+                    try {
+                        this.workersPool.execute(new Connection(channel.socket(), tls, this.workersPool,
+                                this.context));
+                    } catch (RejectedExecutionException e) {
+                        this.admission.connectionClosed();
+                        this.admission.queueFull();
+                        this.reject(channel, acceptor);
+                    }
+                }
+
+            } catch (Exception e) {
+                // the connection could not be set up, its place is given back and the socket closed
+                Log.error("Could not start the connection of " + channel + ": " + e);
+                if (admitted) {
+                    this.admission.connectionClosed();
                 }
+                try {
+                    channel.close();
+                } catch (IOException f) { }
             }
+        }
+    }
 
+
+    /*
+        Method answering a connection the server has no room for with 503 and Retry-After, on the acceptor
+        thread: the response fits in the empty socket buffer, so a single non-blocking write sends it and a
+        slow client cannot hold the acceptor
+     */
+    private void reject(SocketChannel channel, Acceptor acceptor) {
+        try {
+            channel.configureBlocking(false);
+            channel.write(ByteBuffer.wrap(this.admission.getServiceUnavailable()));
+            channel.shutdownOutput();
+
+            // the request bytes already received are discarded, so closing does not reset the connection
+            // before the client reads the response
+            acceptor.discardBuffer.clear();
+            channel.read(acceptor.discardBuffer);
         } catch (IOException e) {
-            System.err.println("Port unavailable");
+            // the client is gone, there is nobody to answer
+        } finally {
+            try {
+                channel.close();
+            } catch (IOException e) { }
+        }
+
+        Log.debug(channel, " rejected.");
+    }
+
+
+    /*
+        Method running a connection on the workers pool, waiting first until the number
+        of concurrent connections drops below the limit
+     */
+    private void executeLimited(Connection connection) throws InterruptedException {
+        this.connectionPermits.acquire();
+
+        try {
+            this.workersPool.execute(() -> {
+                try {
+                    connection.run();
+                } finally {
+                    this.connectionPermits.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            this.connectionPermits.release();
+            throw e;
+        }
+    }
+
+
+    /*
+        Method creating the virtual thread per task executor; it is looked up at runtime
+        so the server still builds and runs the other modes on JDKs older than 21
+     */
+    private static ExecutorService newVirtualThreadPerTaskExecutor() throws IOException {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+            throw new IOException("Virtual threads are not supported by this JVM (Java 21 or newer is needed).");
+        }
+    }
+
+
+    /*
+        Method creating the threads of the HTTP/2 connections, one reader for each: in the virtual mode they are
+        virtual threads of the workers pool, otherwise platform threads kept for the next connections once theirs
+        is closed. Their number is bounded by http2.maxConnections, the admission control refusing the connections
+        above it before they are handed to a reader
+     */
+    private void startHttp2Readers() {
+        if (this.threadModel.equals(ThreadModels.VIRTUAL)) {
+            this.http2Readers = this.workersPool;
+        } else {
+            AtomicInteger count = new AtomicInteger();
+            this.http2Readers = new ThreadPoolExecutor(0, Integer.MAX_VALUE, Server.HTTP2_READER_KEEP_ALIVE,
+                    TimeUnit.SECONDS, new SynchronousQueue<>(), task -> {
+                        Thread thread = new Thread(task, "http2-reader-" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+        }
+        this.context.setHttp2Readers(this.http2Readers);
+    }
+
+
+    /*
+        Method starting the event loop threads of the NIO mode
+     */
+    private void startEventLoops() throws IOException {
+        this.eventLoops = new EventLoop[this.noEventLoops];
+
+        for (int i = 0; i < this.noEventLoops; i++) {
+            this.eventLoops[i] = new EventLoop();
+            new Thread(this.eventLoops[i], "event-loop-" + i).start();
         }
     }
 
 
+    /*
+        Method starting the timer thread: it refreshes the Date header and the changed error pages every second
+        and is the watchdog of the blocking writes, those of the blocking modes and of the HTTP/2 connections (a
+        blocking write cannot time out, so the connections whose client stopped reading the response are closed
+        from this thread)
+     */
+    private void startTimer() {
+        this.timer = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "server-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.timer.scheduleAtFixedRate(this.context.date::refresh, Server.TIMER_PERIOD, Server.TIMER_PERIOD,
+                TimeUnit.MILLISECONDS);
+        this.timer.scheduleWithFixedDelay(this.context.errorPages::refresh, Server.TIMER_PERIOD,
+                Server.TIMER_PERIOD, TimeUnit.MILLISECONDS);
+        this.timer.scheduleWithFixedDelay(this.context.limits::checkWrites, Server.TIMER_PERIOD,
+                Server.TIMER_PERIOD, TimeUnit.MILLISECONDS);
+    }
+
+
+    /*
+        Method registering an accepted channel on the event loops in a round-robin fashion
+     */
+    private void register(SocketChannel channel, Acceptor acceptor) throws IOException {
+        EventLoop eventLoop = this.eventLoops[acceptor.nextEventLoop(this.eventLoops.length)];
+
+        channel.configureBlocking(false);
+        eventLoop.register(new NioConnection(channel, eventLoop, this.workersPool, this.context));
+    }
+
+
     /*
         Method where the server ends its execution
      */
     private void finish() {
+        this.closeAcceptors();
+        this.drain();
+        this.workersPool.shutdown();
+
         try {
-            this.socketServer.close();  // closing the server's socket
-        } catch (IOException e) {
-            System.err.println("Could not close server's socket.");
+            // the workers still running once the connections are closed are interrupted
+            if (!this.workersPool.awaitTermination(Server.TIMEOUT, TimeUnit.SECONDS)) {
+                System.err.println("The workers did not finish, they are interrupted.");
+                this.workersPool.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            System.err.println("Error while waiting for the connections to finish.");
         }
 
-        this.workersPool.shutdown();
+        // the drain has closed the HTTP/2 connections, their idle readers are ended
+        if (this.http2Readers != this.workersPool) {
+            this.http2Readers.shutdown();
+        }
+
+        // the watchdog keeps closing the stuck connections until the workers are done
+        if (this.timer != null) {
+            this.timer.shutdownNow();
+        }
+        this.context.index.close();
+
+        // the event loops are stopped last, after the workers have posted their responses
+        if (this.eventLoops != null) {
+            for (EventLoop eventLoop : this.eventLoops) {
+                eventLoop.shutdown();
+            }
+        }
+        this.context.accessLog.close();
 
-        while (true) {
+        StaticCache cache = this.context.cache;
+        System.out.println("Static cache: " + cache.getHits() + " hits, " + cache.getMisses()
+                + " misses, " + cache.getEvictions() + " evictions, " + cache.getUsedBytes() + " bytes used.");
+    }
+
+
+    /*
+        Method draining the connections once the listening sockets are closed: each one is closed after its
+        current request, the idle ones right away, and those still open at the end of the drain timeout are
+        closed by the server
+     */
+    private void drain() {
+        long deadline = System.currentTimeMillis() + this.context.lifecycle.getDrainTimeout();
+        int open;
+
+        this.context.lifecycle.drain();
+        System.out.println("Draining " + this.admission.getOpenConnections() + " connections");
+
+        while ((open = this.admission.getOpenConnections()) > 0 && System.currentTimeMillis() < deadline) {
             try {
-                // waits until all the threads in the workers pool finish their execution
-                if (this.workersPool.awaitTermination(Server.TIMEOUT, TimeUnit.SECONDS)) {
-                    break;
-                }
+                Thread.sleep(Server.DRAIN_PERIOD);
             } catch (InterruptedException e) {
-                System.err.println("Error while waiting for the connections to finish.");
+                break;
+            }
+        }
+
+        if (open > 0) {
+            System.out.println("Closing the " + open + " connections still open after the drain timeout");
+            this.context.lifecycle.abort();
+            if (this.eventLoops != null) {
+                for (EventLoop eventLoop : this.eventLoops) {
+                    eventLoop.shutdown();
+                }
             }
-            System.out.println("Waiting for the connections to finish");
         }
     }
 
 
     /*
-        Method which sends shutdown signal to the server thread
+        Method which sends shutdown signal to the server thread: the server is unready first and keeps accepting
+        connections for the drain delay, so the load balancer stops sending it new ones, then its listening
+        sockets are closed and its connections drained. A second call (the console and a signal) does nothing
      */
-    void shutdown(int port) {
-        Socket mockSocket;
+    void shutdown() {
+        long delay = this.context.lifecycle.getDrainDelay();
+
+        if (!this.context.lifecycle.stopReady()) {
+            return;
+        }
+        if (delay > 0) {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
 
         this.running = false;   // puts the running flag on false
 
-        // creates a mock connection to move the thread from the socket waiting state (accept)
+        // closing the listening sockets moves the acceptors from the socket waiting state (accept)
+        this.closeAcceptors();
+    }
+
+
+    /*
+        Method closing the listening sockets of the acceptors
+     */
+    private void closeAcceptors() {
+        if (this.acceptors == null) {
+            return;
+        }
+
+        for (Acceptor acceptor : this.acceptors) {
+            try {
+                if (acceptor != null) {
+                    acceptor.channel.close();
+                }
+            } catch (IOException e) {
+                System.err.println("Could not close server's socket.");
+            }
+        }
+    }
+
+
+    /*
+        Method waiting for a thread to end
+     */
+    private static void joinQuietly(Thread thread) {
         try {
-            mockSocket = new Socket(Server.SERVER, port);
-            mockSocket.close();
-        } catch (IOException e) {
-            System.err.println("Could not create a mock socket while shutting down the server.");
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 }
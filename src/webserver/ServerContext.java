@@ -0,0 +1,89 @@
+package webserver;
+
+import java.util.concurrent.ExecutorService;
+
+
+/*
+    Class holding the server-wide settings and shared objects used by the connections and the Helper
+ */
+public class ServerContext {
+
+    final String rootDirectory;
+    final String errorDirectory;
+
+    // the settings below can be changed by a configuration reload, they are read again for every request
+    volatile int idleTimeout;
+    volatile int maxRequests;
+
+    final StaticCache cache;
+    final MappedFiles mappedFiles;
+    final ResourceIndex index;
+    final ErrorPages errorPages;
+    final LockManager locks;
+    final Durability durability;
+    final AdmissionControl admission;
+    final ClientLimits limits;
+    final AccessLog accessLog;
+    final Lifecycle lifecycle;
+    final Metrics metrics;
+    final DateHeader date;
+
+    // if false, POST/PUT/PATCH answer with the number of bytes written instead of the resulting file
+    volatile boolean echoWrites;
+
+    // smallest body compressed by the server (negative if only the precompressed files are sent encoded)
+    volatile long compressionMinBytes;
+
+    // most streams open at once on an HTTP/2 connection, 0 if HTTP/2 is disabled (new connections see a change)
+    volatile int maxConcurrentStreams;
+
+    // runs the readers of the HTTP/2 connections (set by the server once it has created its threads)
+    private volatile ExecutorService http2Readers;
+
+    ServerContext(String rootDirectory, String errorDirectory, int idleTimeout, int maxRequests, StaticCache cache,
+                  MappedFiles mappedFiles, Durability durability, AdmissionControl admission, ClientLimits limits,
+                  AccessLog accessLog, Lifecycle lifecycle, boolean echoWrites, long compressionMinBytes,
+                  int maxConcurrentStreams, boolean indexed) {
+        this.rootDirectory = rootDirectory;
+        this.errorDirectory = errorDirectory;
+        this.idleTimeout = idleTimeout;
+        this.maxRequests = maxRequests;
+        this.cache = cache;
+        this.mappedFiles = mappedFiles;
+        this.index = new ResourceIndex(rootDirectory, errorDirectory, indexed);
+        this.errorPages = new ErrorPages(errorDirectory);
+        this.locks = new LockManager();
+        this.durability = durability;
+        this.admission = admission;
+        this.limits = limits;
+        this.accessLog = accessLog;
+        this.lifecycle = lifecycle;
+        this.metrics = new Metrics(cache, mappedFiles, this.index, admission, limits, accessLog);
+        this.date = new DateHeader();
+        this.echoWrites = echoWrites;
+        this.compressionMinBytes = compressionMinBytes;
+        this.maxConcurrentStreams = maxConcurrentStreams;
+    }
+
+
+    // Method applying the reloaded keep-alive and response settings (the open connections see them from their
+    // next request)
+    void reconfigure(int idleTimeout, int maxRequests, boolean echoWrites, long compressionMinBytes,
+                     int maxConcurrentStreams) {
+        this.idleTimeout = idleTimeout;
+        this.maxRequests = maxRequests;
+        this.echoWrites = echoWrites;
+        this.compressionMinBytes = compressionMinBytes;
+        this.maxConcurrentStreams = maxConcurrentStreams;
+    }
+
+
+    void setHttp2Readers(ExecutorService http2Readers) {
+        this.http2Readers = http2Readers;
+    }
+
+
+    ExecutorService getHttp2Readers() {
+        return this.http2Readers;
+    }
+}
@@ -0,0 +1,76 @@
+package webserver;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+
+/*
+    Class holding the options of the listening and accepted sockets: the number of acceptor threads (each with
+    its own listening socket bound with SO_REUSEPORT, so the kernel spreads the new connections among them),
+    the accept backlog, TCP_NODELAY and the socket buffer sizes (0 keeps the kernel's default and autotuning).
+    With handover, the listening sockets are bound even if another server listens on the port (with
+    SO_REUSEPORT, as this one does), so a new instance shares it until the old one has drained
+ */
+public class SocketSettings {
+
+    final int noAcceptors;
+    final int backlog;
+    final boolean noDelay;
+    final int sendBuffer;
+    final int receiveBuffer;
+    final boolean handover;
+
+    SocketSettings(int noAcceptors, int backlog, boolean noDelay, int sendBuffer, int receiveBuffer,
+                   boolean handover) {
+        this.noAcceptors = noAcceptors;
+        this.backlog = backlog;
+        this.noDelay = noDelay;
+        this.sendBuffer = sendBuffer;
+        this.receiveBuffer = receiveBuffer;
+        this.handover = handover;
+    }
+
+
+    // Method telling whether the listening sockets can share the port (SO_REUSEPORT is not supported everywhere)
+    static boolean isReusePortSupported() {
+        try (ServerSocketChannel channel = ServerSocketChannel.open()) {
+            return channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+
+    // Method opening a listening socket on the port; reusePort lets several of them be bound to it. The receive
+    // buffer is set before binding, so the accepted sockets inherit it (and the window scale it needs)
+    ServerSocketChannel listen(int port, boolean reusePort) throws IOException {
+        ServerSocketChannel channel = ServerSocketChannel.open();
+
+        try {
+            if (reusePort) {
+                channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            if (this.receiveBuffer > 0) {
+                channel.setOption(StandardSocketOptions.SO_RCVBUF, this.receiveBuffer);
+            }
+            channel.bind(new InetSocketAddress(port), this.backlog);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return channel;
+    }
+
+
+    // Method setting the options of an accepted socket; without TCP_NODELAY a small response written after its
+    // headers can wait for the client's delayed ACK (about 40 ms)
+    void configure(SocketChannel channel) throws IOException {
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, this.noDelay);
+        if (this.sendBuffer > 0) {
+            channel.setOption(StandardSocketOptions.SO_SNDBUF, this.sendBuffer);
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package webserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/*
+    Class implementing the server-wide cache of static files: the content is kept in off-heap (direct)
+    buffers together with its headers, the least recently used files are evicted when the byte budget
+    is exceeded and an entry is dropped when the file is written, deleted or modified. The encoded variants
+    of a file (precompressed sibling or compressed copy) are kept as entries of their own, keyed by encoding
+ */
+public class StaticCache {
+
+    private static final String[] ENCODINGS = {ContentEncoding.GZIP, ContentEncoding.BROTLI};
+
+    // the budget can be changed by a configuration reload
+    private volatile long maxBytes;
+    private volatile long maxEntryBytes;
+
+    // access-ordered map, so the iteration starts with the least recently used entry
+    private final LinkedHashMap<String, Entry> entries;
+    private long usedBytes;
+
+    private final LongAdder hits;
+    private final LongAdder misses;
+    private final LongAdder evictions;
+
+    StaticCache(long maxBytes, long maxEntryBytes) {
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = Math.min(maxEntryBytes, maxBytes);
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);
+        this.hits = new LongAdder();
+        this.misses = new LongAdder();
+        this.evictions = new LongAdder();
+    }
+
+
+    // Method returning the cached entry of a file, loading it on a miss; null is returned if the file
+    // is too big to be cached (it is then served from disk). The entry is checked against the indexed size
+    // and modification time of the file, without reading them from the file system
+    Entry get(String path, File file, ResourceIndex.Resource resource) throws IOException {
+        return this.get(path, file, resource, null, false);
+    }
+
+
+    // Method returning the cached content of the precompressed sibling (.gz, .br) of a file
+    Entry getPrecompressed(String path, File sibling, ResourceIndex.Resource resource, String encoding)
+            throws IOException {
+        return this.get(StaticCache.key(path, encoding), sibling, resource, encoding, false);
+    }
+
+
+    // Method returning the gzip variant of a file, compressed once when it is loaded
+    Entry getCompressed(String path, File file, ResourceIndex.Resource resource) throws IOException {
+        return this.get(StaticCache.key(path, ContentEncoding.GZIP), file, resource, ContentEncoding.GZIP, true);
+    }
+
+
+    private Entry get(String key, File file, ResourceIndex.Resource resource, String encoding, boolean compress)
+            throws IOException {
+        long lastModified = resource.lastModified;
+        long size = resource.length;
+        Entry entry;
+
+        synchronized (this) {
+            entry = this.entries.get(key);
+
+            // a file modified since it was cached is loaded again
+            if (entry != null && (entry.lastModified != lastModified || entry.sourceLength != size)) {
+                this.remove(key);
+                entry = null;
+            }
+        }
+
+        if (entry != null) {
+            this.hits.increment();
+            return entry;
+        }
+
+        this.misses.increment();
+        if (size > this.maxEntryBytes) {
+            return null;
+        }
+
+        entry = StaticCache.load(file, lastModified, encoding, compress);
+        if (entry.sourceLength <= this.maxEntryBytes) {
+            this.put(key, entry);
+        }
+        return entry;
+    }
+
+
+    // Method dropping the entries (all the variants) of a file which has been written or deleted
+    synchronized void invalidate(String path) {
+        this.remove(path);
+        for (String encoding : StaticCache.ENCODINGS) {
+            this.remove(StaticCache.key(path, encoding));
+        }
+    }
+
+
+    private static String key(String path, String encoding) {
+        return path + "|" + encoding;
+    }
+
+
+    long getHits() {
+        return this.hits.sum();
+    }
+
+
+    long getMisses() {
+        return this.misses.sum();
+    }
+
+
+    long getEvictions() {
+        return this.evictions.sum();
+    }
+
+
+    // Method applying a reloaded budget: the entries of files now too big are dropped and the least recently used
+    // ones are evicted until the new budget is respected
+    synchronized void resize(long maxBytes, long maxEntryBytes) {
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = Math.min(maxEntryBytes, maxBytes);
+
+        Iterator<Entry> iterator = this.entries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.sourceLength > this.maxEntryBytes) {
+                iterator.remove();
+                this.usedBytes -= entry.body.capacity();
+            }
+        }
+        this.trim();
+    }
+
+
+    synchronized long getUsedBytes() {
+        return this.usedBytes;
+    }
+
+
+    // Method adding an entry and evicting the least recently used ones until the budget is respected
+    private synchronized void put(String path, Entry entry) {
+        this.remove(path);
+        this.entries.put(path, entry);
+        this.usedBytes += entry.body.capacity();
+        this.trim();
+    }
+
+
+    // Method evicting the least recently used entries until the budget is respected
+    private void trim() {
+        Iterator<Map.Entry<String, Entry>> iterator = this.entries.entrySet().iterator();
+        while (this.usedBytes > this.maxBytes && iterator.hasNext()) {
+            Entry evicted = iterator.next().getValue();
+            iterator.remove();
+            this.usedBytes -= evicted.body.capacity();
+            this.evictions.increment();
+        }
+    }
+
+
+    private void remove(String path) {
+        Entry removed = this.entries.remove(path);
+
+        if (removed != null) {
+            this.usedBytes -= removed.body.capacity();
+        }
+    }
+
+
+    // Method returning the entity tag of a file version, made of its size and its modification time
+    // (and of the content coding for an encoded variant)
+    static String eTag(long size, long lastModified, String encoding) {
+        return "\"" + Long.toHexString(size) + "-" + Long.toHexString(lastModified)
+                + (encoding != null ? "-" + encoding : "") + "\"";
+    }
+
+
+    // Method reading a file into a direct buffer (compressing it first if asked) and pre-computing its headers
+    private static Entry load(File file, long lastModified, String encoding, boolean compress) throws IOException {
+        ByteBuffer body;
+        long sourceLength;
+
+        if (compress) {
+            byte[] content = Files.readAllBytes(file.toPath());
+            byte[] compressed = ContentEncoding.gzip(content, ContentEncoding.CACHED_LEVEL);
+
+            sourceLength = content.length;
+            body = ByteBuffer.allocateDirect(compressed.length);
+            body.put(compressed);
+        } else {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                body = ByteBuffer.allocateDirect((int) Math.min(channel.size(), Integer.MAX_VALUE));
+                while (body.hasRemaining() && channel.read(body) >= 0) { }
+            }
+            sourceLength = body.position();
+        }
+        body.flip();
+
+        return new Entry(body.asReadOnlyBuffer(), Files.probeContentType(file.toPath()), lastModified,
+                sourceLength, encoding);
+    }
+
+
+    /*
+        Class holding the pre-encoded response of a cached file
+     */
+    static class Entry {
+        private final ByteBuffer body;
+        final String contentType;
+        final String contentLength;
+        final String eTag;
+        final long lastModified;
+        final String lastModifiedDate;
+
+        // size of the file the entry was loaded from (before compression), to detect a modification
+        private final long sourceLength;
+
+        Entry(ByteBuffer body, String contentType, long lastModified, long sourceLength, String encoding) {
+            this.body = body;
+            this.contentType = contentType;
+            this.contentLength = String.valueOf(body.remaining());
+            this.eTag = StaticCache.eTag(sourceLength, lastModified, encoding);
+            this.lastModified = lastModified;
+            this.lastModifiedDate = HTTPParser.formatDate(lastModified);
+            this.sourceLength = sourceLength;
+        }
+
+        // Method returning a view of the content with its own position, so it can be sent concurrently
+        ByteBuffer getBody() {
+            return this.body.duplicate();
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package webserver;
+
+
+/*
+    Class naming the thread models of the server (the mode setting): a worker per connection, event loops
+    handing the requests to the workers, or a virtual thread per connection
+ */
+class ThreadModels {
+    static final String BLOCKING = "blocking";
+    static final String NIO = "nio";
+    static final String VIRTUAL = "virtual";
+}
@@ -0,0 +1,259 @@
+package webserver;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/*
+    Class terminating TLS on the connections accepted on the TLS port: the server's certificate and key are
+    loaded once from a keystore, the handshake of every connection runs on the thread of the connection, over
+    the accepted socket, before its first request. The sessions are kept in the server's session cache and, with
+    session tickets, in the tickets held by the clients, so a returning client resumes its session without the
+    certificate exchange and key agreement of a full handshake. ALPN offers h2 (while HTTP/2 is enabled) and
+    http/1.1. The handshakes, full, resumed and failed, are counted and timed for the metrics
+ */
+public class TlsTermination {
+
+    static final String HTTP_2 = "h2";
+    static final String HTTP_1_1 = "http/1.1";
+
+    // the bytes given to one write of the TLS socket, the largest record payload; a larger gathering write
+    // returns after this many records so the watchdog sees its progress
+    private static final int RECORD_SIZE = 16384;
+    private static final int RECORDS_PER_WRITE = 16;
+
+    // the JDK reads it once, before the first TLS connection of the JVM
+    private static final String SESSION_TICKETS_PROPERTY = "jdk.tls.server.enableSessionTicketExtension";
+
+    final int port;
+
+    private final SSLSocketFactory factory;
+    private final SSLParameters parameters;
+    private final ServerContext context;
+
+    private final LongAdder fullHandshakes;
+    private final LongAdder resumedHandshakes;
+    private final LongAdder failedHandshakes;
+    private final Metrics.Histogram fullLatency;
+    private final Metrics.Histogram resumedLatency;
+
+    /*
+        The keystore (PKCS12 or JKS) holds the certificate chain and the key of the server, protected by the same
+        password; protocols are the enabled TLS versions, the session cache holds sessionCacheSize sessions for
+        sessionTimeout seconds (0 for the JDK's defaults)
+     */
+    TlsTermination(int port, String keyStore, String keyStoreType, String password, String[] protocols,
+                   int sessionCacheSize, int sessionTimeout, boolean sessionTickets, ServerContext context)
+            throws IOException {
+        KeyStore keys;
+        SSLContext sslContext;
+
+        this.port = port;
+        this.context = context;
+        System.setProperty(TlsTermination.SESSION_TICKETS_PROPERTY, String.valueOf(sessionTickets));
+
+        try (InputStream input = new FileInputStream(keyStore)) {
+            keys = KeyStore.getInstance(keyStoreType);
+            keys.load(input, password.toCharArray());
+
+            KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keyManagers.init(keys, password.toCharArray());
+
+            sslContext = SSLContext.getInstance("TLS");
+            sslContext.init(keyManagers.getKeyManagers(), null, null);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Cannot load the keystore " + keyStore + ": " + e.getMessage(), e);
+        }
+
+        SSLSessionContext sessions = sslContext.getServerSessionContext();
+        sessions.setSessionCacheSize(sessionCacheSize);
+        sessions.setSessionTimeout(sessionTimeout);
+
+        this.factory = sslContext.getSocketFactory();
+        this.parameters = sslContext.getDefaultSSLParameters();
+        try {
+            this.parameters.setProtocols(protocols);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid TLS protocols: " + e.getMessage(), e);
+        }
+
+        this.fullHandshakes = new LongAdder();
+        this.resumedHandshakes = new LongAdder();
+        this.failedHandshakes = new LongAdder();
+        this.fullLatency = new Metrics.Histogram();
+        this.resumedLatency = new Metrics.Histogram();
+    }
+
+
+    // Method layering TLS over an accepted socket and running the handshake, which has to end within the header
+    // timeout; closing the returned socket closes the accepted one. A resumed session was created before the
+    // handshake started
+    SSLSocket handshake(Socket socket) throws IOException {
+        SSLSocket tlsSocket = (SSLSocket) this.factory.createSocket(socket,
+                socket.getInetAddress().getHostAddress(), socket.getPort(), true);
+        long start = System.nanoTime();
+        long startMillis = System.currentTimeMillis();
+        SSLSession session;
+
+        tlsSocket.setUseClientMode(false);
+        tlsSocket.setSSLParameters(this.parameters);
+        tlsSocket.setHandshakeApplicationProtocolSelector(this::selectProtocol);
+        socket.setSoTimeout(this.context.limits.headerTimeout);
+
+        try {
+            tlsSocket.startHandshake();
+        } catch (IOException e) {
+            this.failedHandshakes.increment();
+            throw e;
+        }
+
+        session = tlsSocket.getSession();
+        if (session.getCreationTime() < startMillis) {
+            this.resumedHandshakes.increment();
+            this.resumedLatency.record(System.nanoTime() - start);
+        } else {
+            this.fullHandshakes.increment();
+            this.fullLatency.record(System.nanoTime() - start);
+        }
+        return tlsSocket;
+    }
+
+
+    // Method choosing the application protocol among those offered by the client: h2 while HTTP/2 is enabled,
+    // then http/1.1; an empty string sends no ALPN answer (a client offering neither is served HTTP/1.1)
+    private String selectProtocol(SSLSocket socket, List<String> offered) {
+        if (this.context.maxConcurrentStreams > 0 && offered.contains(TlsTermination.HTTP_2)) {
+            return TlsTermination.HTTP_2;
+        }
+        return offered.contains(TlsTermination.HTTP_1_1) ? TlsTermination.HTTP_1_1 : "";
+    }
+
+
+    long getFullHandshakes() {
+        return this.fullHandshakes.sum();
+    }
+
+
+    long getResumedHandshakes() {
+        return this.resumedHandshakes.sum();
+    }
+
+
+    // Method appending the handshake counters and latencies to the metrics
+    void render(StringBuilder text) {
+        text.append("# HELP webserver_tls_handshakes_total TLS handshakes, by result.\n")
+                .append("# TYPE webserver_tls_handshakes_total counter\n")
+                .append("webserver_tls_handshakes_total{result=\"full\"} ")
+                .append(this.fullHandshakes.sum()).append('\n')
+                .append("webserver_tls_handshakes_total{result=\"resumed\"} ")
+                .append(this.resumedHandshakes.sum()).append('\n')
+                .append("webserver_tls_handshakes_total{result=\"failed\"} ")
+                .append(this.failedHandshakes.sum()).append('\n');
+
+        text.append("# HELP webserver_tls_handshake_seconds Time spent in the successful TLS handshakes.\n")
+                .append("# TYPE webserver_tls_handshake_seconds histogram\n");
+        this.fullLatency.render(text, "webserver_tls_handshake_seconds", "result=\"full\"");
+        this.resumedLatency.render(text, "webserver_tls_handshake_seconds", "result=\"resumed\"");
+    }
+
+
+    // Method returning the channel writing to a TLS socket, used by the connections in place of the socket's
+    // channel
+    static GatheringByteChannel outputOf(SSLSocket socket) throws IOException {
+        return new RecordChannel(socket.getOutputStream());
+    }
+
+
+    /*
+        Class writing buffers to the output stream of a TLS socket: the bytes of the buffers (often off-heap) are
+        gathered into records of the largest size, so the headers and a small body go in one record. A write
+        blocks until its bytes are sent
+     */
+    private static class RecordChannel implements GatheringByteChannel {
+        private final OutputStream output;
+        private final byte[] record;
+        private volatile boolean open;
+
+        RecordChannel(OutputStream output) {
+            this.output = output;
+            this.record = new byte[TlsTermination.RECORD_SIZE];
+            this.open = true;
+        }
+
+
+        @Override
+        public int write(ByteBuffer source) throws IOException {
+            return (int) this.write(new ByteBuffer[]{source}, 0, 1);
+        }
+
+
+        @Override
+        public long write(ByteBuffer[] sources) throws IOException {
+            return this.write(sources, 0, sources.length);
+        }
+
+
+        @Override
+        public long write(ByteBuffer[] sources, int offset, int length) throws IOException {
+            long written = 0;
+            int filled = 0;
+            int records = 0;
+
+            if (!this.open) {
+                throw new ClosedChannelException();
+            }
+
+            for (int i = offset; i < offset + length && records < TlsTermination.RECORDS_PER_WRITE; i++) {
+                ByteBuffer source = sources[i];
+
+                while (source.hasRemaining() && records < TlsTermination.RECORDS_PER_WRITE) {
+                    int count = Math.min(source.remaining(), this.record.length - filled);
+
+                    source.get(this.record, filled, count);
+                    filled += count;
+                    written += count;
+                    if (filled == this.record.length) {
+                        this.output.write(this.record, 0, filled);
+                        filled = 0;
+                        records++;
+                    }
+                }
+            }
+
+            if (filled > 0) {
+                this.output.write(this.record, 0, filled);
+            }
+            return written;
+        }
+
+
+        @Override
+        public boolean isOpen() {
+            return this.open;
+        }
+
+
+        @Override
+        public void close() throws IOException {
+            this.open = false;
+            this.output.close();
+        }
+    }
+}
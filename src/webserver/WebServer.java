@@ -1,6 +1,11 @@
 package webserver;
 
+import java.io.IOException;
+import java.util.List;
 import java.util.Scanner;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 
 /*
@@ -8,51 +13,115 @@ import java.util.Scanner;
  */
 public class WebServer {
 
-    private static final int MINIMUM_PORT_NUMBER = 1024;
-    private static final int MAXIMUM_NO_THREADS = 16;
+    private static String[] arguments;
+    private static Configuration configuration;
+    private static ServerContext context;
+
+    // modification time of the configuration file when it was last read (even if it was invalid)
+    private static long checkedModified;
 
     public static void main(String[] args) {
-        int port;
-        int maxNoThreads;
         Server server;
+        Thread serverThread;
+        TlsTermination tls = null;
+        ScheduledExecutorService reloader = null;
         Scanner scanner = new Scanner(System.in);
 
-        if (args.length < 2) {
-            System.out.println("Usage: java webserver.Server <port no> <maximum no of workers>");
+        WebServer.arguments = args;
+        try {
+            WebServer.configuration = Configuration.load(args);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            System.exit(0);
+        } catch (IOException e) {
+            System.out.println("Cannot read the configuration file: " + e.getMessage());
             System.exit(0);
         }
 
+        Log.setLevel(WebServer.configuration.logLevel);
+        WebServer.context = WebServer.configuration.newContext();
+        WebServer.checkedModified = WebServer.configuration.sourceModified;
         try {
-            port = Integer.parseInt(args[0]);
-            maxNoThreads = Integer.parseInt(args[1]);
+            tls = WebServer.configuration.newTls(WebServer.context);
+        } catch (IOException e) {
+            System.out.println("Cannot set up TLS: " + e.getMessage());
+            System.exit(0);
+        }
 
-            if (port < WebServer.MINIMUM_PORT_NUMBER) {
-                System.out.println("Port number should be greater or equal to 1024");
-                System.exit(0);
-            }
+        // Start the server thread
+        server = new Server(WebServer.configuration.port, WebServer.configuration.workers,
+                WebServer.configuration.threadModel, WebServer.configuration.noEventLoops, WebServer.context,
+                WebServer.configuration.newSocketSettings(), tls);
+        serverThread = new Thread(server, "server");
+        serverThread.start();
 
-            if (maxNoThreads > WebServer.MAXIMUM_NO_THREADS) {
-                System.out.println("Maximum number of threads should be lower or equal to 16");
-                System.exit(0);
+        // a SIGTERM or SIGINT shuts the server down like the exit command, the JVM exits once it has drained
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.shutdown();
+            try {
+                serverThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
+        }, "shutdown"));
 
-            // Start the server thread
-            server = new Server(port, maxNoThreads);
-            new Thread(server).start();
+        // the configuration file is checked for changes periodically
+        if (WebServer.configuration.reloadSeconds > 0) {
+            reloader = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task, "config-reloader");
+                thread.setDaemon(true);
+                return thread;
+            });
+            reloader.scheduleWithFixedDelay(WebServer::reloadIfModified, WebServer.configuration.reloadSeconds,
+                    WebServer.configuration.reloadSeconds, TimeUnit.SECONDS);
+        }
 
-            // Wait for "Exit", "EXIT", "exit" etc. command in command-line to shutdown the server
-            while (true) {
-                String line = scanner.nextLine();
-                if (line.toLowerCase().contentEquals("exit")) {
-                    System.out.println("Shutting down the server");
+        // Wait for "Exit", "EXIT", "exit" etc. command in command-line to shutdown the server,
+        // "reload" reloads the configuration; without a console (its input closed) the server runs until a signal
+        while (scanner.hasNextLine()) {
+            String line = scanner.nextLine().trim().toLowerCase();
+            if (line.contentEquals("exit")) {
+                System.out.println("Shutting down the server");
 
-                    server.shutdown(port);
-                    break;
+                if (reloader != null) {
+                    reloader.shutdownNow();
                 }
+                server.shutdown();
+                break;
+            } else if (line.contentEquals("reload")) {
+                WebServer.reload();
             }
+        }
+    }
+
+
+    // Method reloading the configuration if its file has been modified since it was loaded
+    private static synchronized void reloadIfModified() {
+        if (WebServer.configuration.source.lastModified() != WebServer.checkedModified) {
+            WebServer.reload();
+        }
+    }
+
+
+    // Method loading the configuration again and applying its safe settings to the running server; an invalid
+    // configuration is reported and the current one is kept
+    private static synchronized void reload() {
+        Configuration reloaded;
+
+        WebServer.checkedModified = WebServer.configuration.source.lastModified();
+        try {
+            reloaded = Configuration.load(WebServer.arguments);
+        } catch (IllegalArgumentException | IOException e) {
+            System.err.println("Configuration not reloaded: " + e.getMessage());
+            return;
+        }
+
+        List<String> restartKeys = reloaded.apply(WebServer.context, WebServer.configuration);
+        WebServer.configuration = reloaded;
 
-        } catch (NumberFormatException e) {
-            System.out.println("Port number and maximum number of threads should be integers.");
+        System.out.println("Configuration reloaded from " + reloaded.source);
+        if (!restartKeys.isEmpty()) {
+            System.out.println("Changes needing a restart: " + String.join(", ", restartKeys));
         }
     }
 }